@@ -0,0 +1,87 @@
+package jfgServerExample.benchmarkExample;
+
+import java.io.IOException;
+
+import net.jfabricationgames.jfgserver.client.JFGClientMessage;
+import net.jfabricationgames.jfgserver.client.JFGServerMessage;
+import net.jfabricationgames.jfgserver.codec.JFGBinaryCodec;
+import net.jfabricationgames.jfgserver.codec.JFGFrame;
+import net.jfabricationgames.jfgserver.codec.JFGMessageCodec;
+import net.jfabricationgames.jfgserver.codec.JFGSerializationCodec;
+import net.jfabricationgames.jfgserver.server.DefaultJFGMessage;
+
+/**
+ * This benchmark compares the frame size and the time to encode and decode a message using the java serialization and the binary codec.
+ *
+ * The binary codec needs the message classes to be registered (with the same ids on the server and the clients):
+ * 	JFGBinaryCodec codec = new JFGBinaryCodec();
+ * 	codec.register(1, DefaultJFGMessage.class);
+ * 	codec.register(2, PositionMessage.class);
+ * 	server.setMessageCodec(codec);
+ */
+public class CodecBenchmark {
+
+	public static void main(String[] args) throws IOException, ClassNotFoundException {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+
+		JFGBinaryCodec binaryCodec = new JFGBinaryCodec();
+		binaryCodec.register(1, DefaultJFGMessage.class);
+		binaryCodec.register(2, PositionMessage.class);
+		JFGSerializationCodec serializationCodec = new JFGSerializationCodec();
+
+		DefaultJFGMessage message = new DefaultJFGMessage();
+		message.setMessage("Hello");
+		PositionMessage position = new PositionMessage();
+		position.playerId = 3;
+		position.x = 120;
+		position.y = -42;
+		position.turn = 17;
+
+		run("DefaultJFGMessage", message, serializationCodec, binaryCodec, iterations);
+		run("PositionMessage", position, serializationCodec, binaryCodec, iterations);
+	}
+
+	private static void run(String name, Object message, JFGMessageCodec serializationCodec, JFGMessageCodec binaryCodec, int iterations) throws IOException, ClassNotFoundException {
+		int serializedSize = JFGFrame.encode(serializationCodec, message).getSize();
+		int binarySize = JFGFrame.encode(binaryCodec, message).getSize();
+		//run both codecs once before measuring, so the JIT compiler doesn't falsify the result
+		measure(serializationCodec, message, iterations);
+		measure(binaryCodec, message, iterations);
+		long serializedTime = measure(serializationCodec, message, iterations);
+		long binaryTime = measure(binaryCodec, message, iterations);
+
+		System.out.println(name + ":");
+		System.out.println("  frame size:    serialization " + serializedSize + " bytes, binary " + binarySize + " bytes (" + (serializedSize / binarySize) + "x smaller)");
+		System.out.println("  encode+decode: serialization " + serializedTime + " ns, binary " + binaryTime + " ns (" + (serializedTime / Math.max(1, binaryTime)) + "x faster)");
+	}
+
+	/**
+	 * Measure the average time to encode and decode the message (in nanoseconds).
+	 */
+	private static long measure(JFGMessageCodec codec, Object message, int iterations) throws IOException, ClassNotFoundException {
+		long start = System.nanoTime();
+		int check = 0;
+		for (int i = 0; i < iterations; i++) {
+			byte[] data = codec.encode(message);
+			check += codec.decode(data, 0, data.length) == null ? 0 : 1;
+		}
+		long time = (System.nanoTime() - start) / iterations;
+		if (check != iterations) {
+			throw new IllegalStateException("Not all messages were decoded.");
+		}
+		return time;
+	}
+
+	/**
+	 * A small message like the position or turn messages of a game.
+	 */
+	public static class PositionMessage implements JFGClientMessage, JFGServerMessage {
+
+		private static final long serialVersionUID = -3417563460947851452L;
+
+		private int playerId;
+		private int x;
+		private int y;
+		private int turn;
+	}
+}
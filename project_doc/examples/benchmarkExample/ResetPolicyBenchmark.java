@@ -0,0 +1,76 @@
+package jfgServerExample.benchmarkExample;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+
+import net.jfabricationgames.jfgserver.codec.JFGObjectOutputStream;
+import net.jfabricationgames.jfgserver.codec.JFGResetPolicy;
+import net.jfabricationgames.jfgserver.server.DefaultJFGMessage;
+
+/**
+ * This benchmark compares the bandwidth and the memory (objects kept in the handle table) of the different reset policies.
+ *
+ * Every message is a new DefaultJFGMessage, like the messages of a long game session. The objects in the handle table can't be collected till the next reset.
+ */
+public class ResetPolicyBenchmark {
+
+	public static void main(String[] args) throws IOException {
+		int messages = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+
+		System.out.println(messages + " messages:");
+		runPlainStream(messages);
+		run("never", JFGResetPolicy.NEVER, messages);
+		run("every message", JFGResetPolicy.EVERY_MESSAGE, messages);
+		run("every 100 messages", JFGResetPolicy.everyMessages(100), messages);
+		run("every 64 KB", JFGResetPolicy.everyBytes(64 * 1024), messages);
+		run("1000 handles", JFGResetPolicy.handleLimit(1000), messages);
+	}
+
+	private static void run(String name, JFGResetPolicy policy, int messages) throws IOException {
+		JFGObjectOutputStream out = new JFGObjectOutputStream(new NullOutputStream(), true);
+		out.setResetPolicy(policy);
+		int maxHandles = 0;
+		for (int i = 0; i < messages; i++) {
+			out.writeMessage(createMessage(i), false);
+			maxHandles = Math.max(maxHandles, out.getHandleCount());
+		}
+		System.out.printf("  %-20s %6.1f bytes/message, %7d resets, max. %7d objects in the handle table, %d class descriptors sent (%d cached)%n", name,
+				(double) out.getBytesWritten() / messages, out.getResets(), maxHandles, out.getDescriptors(), out.getCachedDescriptors());
+	}
+
+	/**
+	 * A normal ObjectOutputStream that is reset before every message (like the old resetBeforeSending flag) sends the class descriptors again every time.
+	 */
+	private static void runPlainStream(int messages) throws IOException {
+		NullOutputStream bytes = new NullOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		for (int i = 0; i < messages; i++) {
+			out.reset();
+			out.writeObject(createMessage(i));
+			out.flush();
+		}
+		System.out.printf("  %-20s %6.1f bytes/message%n", "ObjectOutputStream", (double) bytes.count / messages);
+	}
+
+	private static DefaultJFGMessage createMessage(int i) {
+		DefaultJFGMessage message = new DefaultJFGMessage();
+		message.setMessage("move " + i);
+		return message;
+	}
+
+	private static class NullOutputStream extends OutputStream {
+
+		private long count;
+
+		@Override
+		public void write(int b) {
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+	}
+}
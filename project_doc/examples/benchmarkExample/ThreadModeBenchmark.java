@@ -0,0 +1,79 @@
+package jfgServerExample.benchmarkExample;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.jfabricationgames.jfgserver.server.JFGEchoServer;
+import net.jfabricationgames.jfgserver.server.JFGThreadMode;
+
+/**
+ * This benchmark compares the memory that idle connections need using the different thread modes of the server.
+ *
+ * Run it once for every mode (in a new JVM each time) and compare the connections per GB:
+ * 	java ThreadModeBenchmark PLATFORM 5000
+ * 	java ThreadModeBenchmark VIRTUAL 5000
+ *
+ * Virtual threads are only used on Java 21 or newer. On older runtimes both modes use platform threads.
+ */
+public class ThreadModeBenchmark {
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		JFGThreadMode mode = args.length > 0 ? JFGThreadMode.valueOf(args[0]) : JFGThreadMode.VIRTUAL;
+		int connections = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+		int port = 4711;
+
+		JFGEchoServer server = new JFGEchoServer(port);
+		server.setThreadMode(mode);
+		server.startServer();
+
+		long heapBefore = usedHeap();
+		int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+
+		//the clients are simple sockets (no JFGClients) so the client side doesn't need threads that would falsify the result
+		List<Socket> sockets = new ArrayList<Socket>(connections);
+		for (int i = 0; i < connections; i++) {
+			Socket socket = new Socket("localhost", port);
+			//send the stream header so the server can create it's ObjectInputStream
+			new ObjectOutputStream(socket.getOutputStream()).flush();
+			sockets.add(socket);
+		}
+		//wait till the server has started all connections
+		while (server.getConnections().size() < connections) {
+			Thread.sleep(100);
+		}
+		Thread.sleep(1000);
+
+		long heapAfter = usedHeap();
+		int threadsAfter = ManagementFactory.getThreadMXBean().getThreadCount();
+		//platform threads reserve their stack outside of the heap (1 MB by default), virtual threads keep their stack in the heap
+		long stackSize = 1024 * 1024;
+		long heapPerConnection = Math.max(1, (heapAfter - heapBefore) / connections);
+		long memoryPerConnection = heapPerConnection + ((long) (threadsAfter - threadsBefore) * stackSize) / connections;
+
+		System.out.println("thread mode:                     " + mode + (mode == JFGThreadMode.VIRTUAL && !JFGThreadMode.isVirtualThreadSupported() ? " (not supported; platform threads used)" : ""));
+		System.out.println("connections:                     " + connections);
+		System.out.println("new platform threads:            " + (threadsAfter - threadsBefore));
+		System.out.println("heap per connection:             " + heapPerConnection + " bytes");
+		System.out.println("connections per GB of heap:      " + (1024L * 1024 * 1024 / heapPerConnection));
+		System.out.println("connections per GB (incl stack): " + (1024L * 1024 * 1024 / memoryPerConnection));
+
+		for (Socket socket : sockets) {
+			socket.close();
+		}
+		server.stopServer();
+		System.exit(0);
+	}
+
+	private static long usedHeap() throws InterruptedException {
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			Thread.sleep(200);
+		}
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
@@ -55,7 +55,7 @@ public class DefaultLoginServerInterpreter implements JFGServerInterpreter {
 			//normal messages
 			DefaultMessage textMessage = (DefaultMessage) message;
 			//find the number of the connected user and send a broadcast of his message.
-			int user = connection.getServer().getConnections().indexOf(connection);
+			int user = connection.getConnectionId();
 			//just broadcast the messages to all logged in users.
 			textMessage.setMessage("User " + user + ": " + textMessage.getMessage());
 			server.sendBroadcast(textMessage);
@@ -1,28 +1,55 @@
 package net.jfabricationgames.jfgserver.client;
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.net.Socket;
 import java.net.SocketException;
 
+import net.jfabricationgames.jfgserver.codec.JFGCoalescingOutputStream;
+import net.jfabricationgames.jfgserver.codec.JFGEncodedMessage;
+import net.jfabricationgames.jfgserver.codec.JFGFrame;
+import net.jfabricationgames.jfgserver.codec.JFGMessageCodec;
+import net.jfabricationgames.jfgserver.codec.JFGObjectInputStream;
+import net.jfabricationgames.jfgserver.codec.JFGObjectOutputStream;
+import net.jfabricationgames.jfgserver.codec.JFGResetPolicy;
+import net.jfabricationgames.jfgserver.codec.JFGWriteBatch;
 import net.jfabricationgames.jfgserver.interpreter.JFGClientInterpreter;
 import net.jfabricationgames.jfgserver.server.JFGServer;
+import net.jfabricationgames.jfgserver.server.JFGThreadMode;
 
 /**
  * The JFGClient is used to create a connection to the server and send messages to the server or other connected clients.
+ * 
+ * If the client uses a {@link JFGMessageCodec} the messages are sent as {@link JFGFrame}s. The server needs to use the same codec.
  */
 public class JFGClient implements Runnable {
 	
 	protected ObjectInputStream clientIn;
 	protected ObjectOutputStream clientOut;
 	
+	protected JFGMessageCodec codec;
+	protected DataInputStream frameIn;
+	protected DataOutputStream frameOut;
+	
 	private Socket socket;
+	private JFGCoalescingOutputStream socketOut;
+	
+	private boolean autoFlush = false;
+	private int flushThreshold = JFGCoalescingOutputStream.DEFAULT_BUFFER_SIZE;
+	private long flushDelay = 0;
+	
+	private JFGResetPolicy resetPolicy = JFGResetPolicy.NEVER;
+	private boolean descriptorCaching = false;
 	
 	private JFGClientInterpreter clientInterpreter;
 	
 	private Thread connection;
 	protected int sleepTime;
+	private long lastMessageTime;
 	
 	protected String host;
 	protected int port;
@@ -34,6 +61,10 @@ public class JFGClient implements Runnable {
 	
 	protected static boolean exceptionOnConnectionRefuse = false;
 	
+	protected static JFGThreadMode defaultThreadMode = JFGThreadMode.PLATFORM;
+	
+	protected JFGThreadMode threadMode = defaultThreadMode;
+	
 	/**
 	 * Create a new JFGClient connected to a host on a port and add an interpreter to the client.
 	 * The client is started directly because the interpreter is already known.
@@ -69,6 +100,47 @@ public class JFGClient implements Runnable {
 		this.host = host;
 		this.port = port;
 	}
+	/**
+	 * Create a new JFGClient connected to a host on a port, that sends the messages as frames encoded by a {@link JFGMessageCodec}.
+	 * The client is started directly because the interpreter is already known.
+	 * 
+	 * @param host
+	 * 		The host to connect to.
+	 * 
+	 * @param port
+	 * 		The port to connect to.
+	 * 
+	 * @param clientInterpreter
+	 * 		The {@link JFGClientInterpreter} that interprets the messages coming from the server.
+	 * 
+	 * @param codec
+	 * 		The codec used to encode the messages (needs to be the same as the server's codec).
+	 */
+	public JFGClient(String host, int port, JFGClientInterpreter clientInterpreter, JFGMessageCodec codec) {
+		this.host = host;
+		this.port = port;
+		this.clientInterpreter = clientInterpreter;
+		this.codec = codec;
+		startClient();
+	}
+	/**
+	 * Create a new JFGClient connected to a host on a port, that sends the messages as frames encoded by a {@link JFGMessageCodec}.
+	 * The client is NOT started directly because it doesn't have an interpreter.
+	 * 
+	 * @param host
+	 * 		The host to connect to.
+	 * 
+	 * @param port
+	 * 		The port to connect to.
+	 * 
+	 * @param codec
+	 * 		The codec used to encode the messages (needs to be the same as the server's codec).
+	 */
+	public JFGClient(String host, int port, JFGMessageCodec codec) {
+		this.host = host;
+		this.port = port;
+		this.codec = codec;
+	}
 	/**
 	 * Create a new JFGCClient using the default host and port (if set).
 	 * The client is NOT started directly because it doesn't have an interpreter.
@@ -118,10 +190,20 @@ public class JFGClient implements Runnable {
 	public JFGClient(JFGClient client) {
 		this.clientIn = client.clientIn;
 		this.clientOut = client.clientOut;
+		this.codec = client.codec;
+		this.frameIn = client.frameIn;
+		this.frameOut = client.frameOut;
 		this.socket = client.socket;
+		this.socketOut = client.socketOut;
+		this.autoFlush = client.autoFlush;
+		this.flushThreshold = client.flushThreshold;
+		this.flushDelay = client.flushDelay;
+		this.resetPolicy = client.resetPolicy;
+		this.descriptorCaching = client.descriptorCaching;
 		this.clientInterpreter = client.clientInterpreter;
 		this.connection = client.connection;
 		this.sleepTime = client.sleepTime;
+		this.threadMode = client.threadMode;
 		this.host = client.host;
 		this.port = client.port;
 	}
@@ -133,14 +215,14 @@ public class JFGClient implements Runnable {
 	public void run() {
 		try {
 			while (true) {
-				Object clientRequest = clientIn.readObject();
+				Object clientRequest = readObject();
 				if (clientRequest instanceof JFGClientMessage) {
 					receiveMessage((JFGClientMessage) clientRequest);
 				}
 				else {
 					System.err.println("JFGClient: Received object is no JFGClientMessage. Couldn't interprete the message.");
 				}
-				Thread.sleep(sleepTime);
+				limitRate();
 			}
 		}
 		catch (SocketException se) {
@@ -157,6 +239,44 @@ public class JFGClient implements Runnable {
 		}
 	}
 	
+	/**
+	 * Read the next object from the server (from the object stream or the next frame if a codec is used).
+	 * 
+	 * @return
+	 * 		The object that was read.
+	 * 
+	 * @throws IOException
+	 * 		An {@link IOException} is thrown if the object couldn't be read.
+	 * 
+	 * @throws ClassNotFoundException
+	 * 		A {@link ClassNotFoundException} is thrown if the class of the received object is unknown.
+	 */
+	protected Object readObject() throws IOException, ClassNotFoundException {
+		if (codec != null) {
+			return JFGFrame.read(frameIn).decode(codec);
+		}
+		return clientIn.readObject();
+	}
+	
+	/**
+	 * Wait till the next message may be read, if the message rate is limited by the sleep time.
+	 * 
+	 * @throws InterruptedException
+	 * 		An {@link InterruptedException} is thrown if the client's thread was interrupted (also if the rate is not limited).
+	 */
+	protected void limitRate() throws InterruptedException {
+		if (Thread.interrupted()) {
+			throw new InterruptedException("JFGClient: The client thread was interrupted.");
+		}
+		if (sleepTime > 0) {
+			long delay = lastMessageTime + sleepTime - System.currentTimeMillis();
+			if (delay > 0) {
+				Thread.sleep(delay);
+			}
+			lastMessageTime = System.currentTimeMillis();
+		}
+	}
+	
 	/**
 	 * Start the client's connection thread.
 	 * 
@@ -172,7 +292,7 @@ public class JFGClient implements Runnable {
 		}
 		try {
 			createClient();
-			connection = new Thread(this);
+			connection = threadMode.newThread(this);
 			connection.start();
 		}
 		catch (IOException ioe) {
@@ -189,8 +309,22 @@ public class JFGClient implements Runnable {
 	 */
 	private void createClient() throws IOException {
 		socket = new Socket(host, port);
-		clientOut = new ObjectOutputStream(socket.getOutputStream());
-		clientIn = new ObjectInputStream(socket.getInputStream());
+		socketOut = new JFGCoalescingOutputStream(socket.getOutputStream());
+		socketOut.setAutoFlush(autoFlush);
+		socketOut.setFlushThreshold(flushThreshold);
+		socketOut.setFlushDelay(flushDelay);
+		if (codec != null) {
+			frameOut = new DataOutputStream(socketOut);
+			frameIn = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		}
+		else {
+			JFGObjectOutputStream out = new JFGObjectOutputStream(socketOut, descriptorCaching);
+			out.setResetPolicy(resetPolicy);
+			clientOut = out;
+			//the server waits for the stream header
+			socketOut.flushNow();
+			clientIn = new JFGObjectInputStream(socket.getInputStream());
+		}
 	}
 	
 	/**
@@ -200,12 +334,15 @@ public class JFGClient implements Runnable {
 	 * 		The message send to the server.
 	 */
 	public void sendMessage(JFGServerMessage message) {
+		if (codec != null) {
+			sendFrame(message);
+			return;
+		}
 		try {
 			if (resetBeforeSending) {
 				resetOutput();
 			}
-			clientOut.writeObject(message);
-			clientOut.flush();
+			writeObject(message, false);
 		}
 		catch (IOException ie) {
 			ie.printStackTrace();
@@ -218,29 +355,108 @@ public class JFGClient implements Runnable {
 	 * 		The message to send to the server.
 	 */
 	public void sendMessageUnshared(JFGServerMessage message) {
+		if (codec != null) {
+			//frames never share objects with earlier frames
+			sendFrame(message);
+			return;
+		}
 		try {
-			clientOut.writeUnshared(message);
-			clientOut.flush();
+			writeObject(message, true);
 		}
 		catch (IOException ie) {
 			JFGServer.printError(ie, JFGServer.ERROR_LEVEL_INFO);
 		}
 	}
+	/**
+	 * Send a message that was encoded before (see {@link JFGEncodedMessage#ofServerMessage(JFGServerMessage)}), so the same frame can be sent again.
+	 * 
+	 * Clients with a codec write the encoded frame. Clients without a codec serialize the message with their own object stream
+	 * (like {@link #sendMessageUnshared(JFGServerMessage)}), because the serialized bytes could only be written between two resets of the stream.
+	 * 
+	 * @param message
+	 * 		The encoded message to send to the server.
+	 */
+	public void sendEncodedMessage(JFGEncodedMessage message) {
+		try {
+			if (codec != null) {
+				JFGFrame frame = message.getFrame(codec);
+				synchronized (frameOut) {
+					frame.write(frameOut);
+					frameOut.flush();
+				}
+				return;
+			}
+			//the object stream serializes the message itself, so the stream is not reset and the class descriptors are not sent again
+			writeObject(message.getServerMessage(), true);
+		}
+		catch (IOException ioe) {
+			ioe.printStackTrace();
+		}
+	}
+	/**
+	 * Write a message to the object stream, using the reset policy if the stream is a {@link JFGObjectOutputStream}.
+	 */
+	private void writeObject(JFGServerMessage message, boolean unshared) throws IOException {
+		synchronized (clientOut) {
+			if (clientOut instanceof JFGObjectOutputStream) {
+				((JFGObjectOutputStream) clientOut).writeMessage(message, unshared);
+				return;
+			}
+			if (unshared) {
+				clientOut.writeUnshared(message);
+			}
+			else {
+				clientOut.writeObject(message);
+			}
+			clientOut.flush();
+		}
+	}
+	/**
+	 * Encode the message using the codec of the client and send it as a frame.
+	 */
+	private void sendFrame(JFGServerMessage message) {
+		try {
+			JFGFrame frame = JFGFrame.encode(codec, message);
+			synchronized (frameOut) {
+				frame.write(frameOut);
+				frameOut.flush();
+			}
+		}
+		catch (IOException ioe) {
+			ioe.printStackTrace();
+		}
+	}
 	
 	/**
 	 * Receive a message that was sent to the socket of this client.
 	 * 
+	 * In the auto flush mode the messages sent by the interpreter are written together when the interpreter returns.
+	 * 
 	 * @param message
 	 * 		The message that was sent.
 	 */
 	public void receiveMessage(JFGClientMessage message) {
-		clientInterpreter.interpreteClientMessage(message, this);
+		if (!autoFlush) {
+			clientInterpreter.interpreteClientMessage(message, this);
+			return;
+		}
+		JFGWriteBatch.begin();
+		try {
+			clientInterpreter.interpreteClientMessage(message, this);
+		}
+		finally {
+			JFGWriteBatch.end();
+		}
 	}
 	
 	/**
 	 * Reset the ouput stream to prevent sending the same reference of an object with a changed state.
+	 * Clients that use a {@link JFGMessageCodec} don't need to be reset, because every frame is independent.
 	 */
 	public void resetOutput() {
+		if (clientOut == null) {
+			return;
+		}
 		try {
 			clientOut.reset();
 		}
@@ -256,8 +472,14 @@ public class JFGClient implements Runnable {
 		if (connection != null) {
 			connection.interrupt();
 			try {
-				clientIn.close();
-				clientOut.close();
+				if (codec != null) {
+					frameIn.close();
+					frameOut.close();
+				}
+				else {
+					clientIn.close();
+					clientOut.close();
+				}
 			}
 			catch (IOException ioe) {
 				ioe.printStackTrace();
@@ -303,26 +525,138 @@ public class JFGClient implements Runnable {
 		}
 	}
 	
+	public JFGMessageCodec getMessageCodec() {
+		return codec;
+	}
+	/**
+	 * Set the codec used to encode the messages (only possible before the client is started).
+	 * 
+	 * @param codec
+	 * 		The codec (needs to be the same as the server's codec) or null to use object streams.
+	 */
+	public void setMessageCodec(JFGMessageCodec codec) {
+		if (connection != null) {
+			throw new IllegalStateException("The codec can't be changed after the client was started.");
+		}
+		this.codec = codec;
+	}
+	
+	public boolean isAutoFlush() {
+		return autoFlush;
+	}
+	/**
+	 * Enable the auto flush mode that collects the sent messages and writes them together (see {@link JFGCoalescingOutputStream}).
+	 * 
+	 * The messages are written when the interpreter has handled the received message, the flush threshold is reached or the flush delay is exceeded.
+	 * 
+	 * @param autoFlush
+	 * 		True to collect the messages (default is false).
+	 */
+	public void setAutoFlush(boolean autoFlush) {
+		this.autoFlush = autoFlush;
+		if (socketOut != null) {
+			socketOut.setAutoFlush(autoFlush);
+		}
+	}
+	
+	public int getFlushThreshold() {
+		return flushThreshold;
+	}
+	/**
+	 * Set the number of collected bytes that are written directly (in the auto flush mode or in a {@link JFGWriteBatch}).
+	 * 
+	 * @param flushThreshold
+	 * 		The threshold in bytes (default is {@link JFGCoalescingOutputStream#DEFAULT_BUFFER_SIZE}).
+	 */
+	public void setFlushThreshold(int flushThreshold) {
+		this.flushThreshold = flushThreshold;
+		if (socketOut != null) {
+			socketOut.setFlushThreshold(flushThreshold);
+		}
+	}
+	
+	public long getFlushDelay() {
+		return flushDelay;
+	}
+	/**
+	 * Set the maximum time a message is collected in the auto flush mode, if it's not sent by the interpreter.
+	 * 
+	 * @param flushDelay
+	 * 		The delay in microseconds or 0 to write messages that are not sent in a {@link JFGWriteBatch} directly (default).
+	 */
+	public void setFlushDelay(long flushDelay) {
+		this.flushDelay = flushDelay;
+		if (socketOut != null) {
+			socketOut.setFlushDelay(flushDelay);
+		}
+	}
+	
 	public int getSleepTime() {
 		return sleepTime;
 	}
 	/**
-	 * Set the time to sleep, for the thread, between two reads.
+	 * Set the minimum time between two interpreted messages to limit the message rate.
+	 * 
+	 * Other than a fixed sleep this only delays a message if the previous message was interpreted less than sleepTime milliseconds ago.
 	 * 
 	 * @param sleepTime
-	 * 		The sleep time in milliseconds.
+	 * 		The minimum time between two messages in milliseconds or 0 to interpret every message as soon as it arrives (default).
 	 */
 	public void setSleepTime(int sleepTime) {
 		this.sleepTime = sleepTime;
 	}
 	
+	public JFGResetPolicy getResetPolicy() {
+		return resetPolicy;
+	}
+	/**
+	 * Set the policy that decides when the object stream of the client is reset.
+	 * 
+	 * Without a reset the object stream keeps every sent object in memory. A reset clears the stream (the class descriptors are only kept if the descriptor caching is enabled).
+	 * Clients that use a {@link JFGMessageCodec} don't need to be reset, because every frame is independent.
+	 * 
+	 * @param resetPolicy
+	 * 		The reset policy (default is {@link JFGResetPolicy#NEVER}).
+	 */
+	public void setResetPolicy(JFGResetPolicy resetPolicy) {
+		if (resetPolicy == null) {
+			throw new IllegalArgumentException("The reset policy mustn't be null.");
+		}
+		this.resetPolicy = resetPolicy;
+		if (clientOut instanceof JFGObjectOutputStream) {
+			synchronized (clientOut) {
+				((JFGObjectOutputStream) clientOut).setResetPolicy(resetPolicy);
+			}
+		}
+	}
+	
+	public boolean isDescriptorCaching() {
+		return descriptorCaching;
+	}
+	/**
+	 * Enable the caching of the class descriptors in the object stream of the client (used when the client is started).
+	 * 
+	 * With the caching a class descriptor is sent only once, so a reset costs (almost) no bandwidth.
+	 * The server has to read the stream with a {@link JFGObjectInputStream} then (like the JFGConnection does), because the format is no standard serialization format.
+	 * 
+	 * @param descriptorCaching
+	 * 		True to cache the class descriptors (default is false).
+	 */
+	public void setDescriptorCaching(boolean descriptorCaching) {
+		this.descriptorCaching = descriptorCaching;
+	}
+	
 	/**
 	 * Indicates whether the output is reseted before every sent message.
 	 * The output is only reseted before a normal write. Not an unshared write.
 	 * 
 	 * @return
 	 * 		Returns true if the output is set to reset before sending.
+	 * 
+	 * @deprecated
+	 * 		Use a {@link JFGResetPolicy} for every client instead (see {@link #setResetPolicy(JFGResetPolicy)}).
 	 */
+	@Deprecated
 	public static boolean isResetBeforeSending() {
 		return resetBeforeSending;
 	}
@@ -331,11 +665,43 @@ public class JFGClient implements Runnable {
 	 * 
 	 * @param resetBeforeSending
 	 * 		Set the reset on or off.
+	 * 
+	 * @deprecated
+	 * 		Use a {@link JFGResetPolicy} for every client instead (see {@link #setResetPolicy(JFGResetPolicy)}).
 	 */
+	@Deprecated
 	public static void setResetBeforeSending(boolean resetBeforeSending) {
 		JFGClient.resetBeforeSending = resetBeforeSending;
 	}
 	
+	public static JFGThreadMode getDefaultThreadMode() {
+		return defaultThreadMode;
+	}
+	/**
+	 * Set the thread mode that the clients created afterwards start with (see {@link #setThreadMode(JFGThreadMode)}).
+	 * 
+	 * @param defaultThreadMode
+	 * 		The new default thread mode (default is {@link JFGThreadMode#PLATFORM}).
+	 */
+	public static void setDefaultThreadMode(JFGThreadMode defaultThreadMode) {
+		JFGClient.defaultThreadMode = defaultThreadMode;
+	}
+	
+	public JFGThreadMode getThreadMode() {
+		return threadMode;
+	}
+	/**
+	 * Set the kind of threads that are used for the read loop of this client (and the re-login thread of a secured client).
+	 * 
+	 * The mode is used when the client is started, so it has to be set before the interpreter (a client created with an interpreter uses the default thread mode).
+	 * 
+	 * @param threadMode
+	 * 		The new thread mode (default is the {@link #getDefaultThreadMode() default thread mode}).
+	 */
+	public void setThreadMode(JFGThreadMode threadMode) {
+		this.threadMode = threadMode;
+	}
+	
 	/**
 	 * Indicates whether a runtime exception is thrown when the connection is refused.
 	 * 
@@ -0,0 +1,20 @@
+package net.jfabricationgames.jfgserver.client;
+
+import net.jfabricationgames.jfgserver.server.JFGOverflowPolicy;
+
+/**
+ * A message that only needs to be sent in it's newest version (e.g. the position of a player).
+ * 
+ * If a connection uses the {@link JFGOverflowPolicy#CONFLATE} policy a message that is still waiting in the outbound queue
+ * is replaced by a newer message with the same conflation key.
+ */
+public interface JFGConflatableMessage extends JFGClientMessage {
+	
+	/**
+	 * Get the key of the message. Messages with equal keys replace each other.
+	 * 
+	 * @return
+	 * 		The conflation key or null if the message must not be conflated.
+	 */
+	public Object getConflationKey();
+}
@@ -0,0 +1,650 @@
+package net.jfabricationgames.jfgserver.codec;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A compact {@link JFGMessageCodec} that writes the messages as a small type id followed by the values of their fields.
+ *
+ * The message classes have to be registered with the same type ids on the server and on the clients (e.g. in a shared setup method).
+ * For every registered class a serializer is generated when it's registered, so encoding and decoding a message uses no reflection.
+ * The generated serializer writes all non-static and non-transient fields of the class and it's super classes. The class needs a
+ * constructor without arguments (that may be private). For other classes a {@link JFGMessageSerializer} can be registered instead.
+ *
+ * Messages of classes that are not registered (e.g. the messages used by the secured connections) are still sent, but using the java serialization.
+ * The same is done for field values that are no primitives, strings, enums, lists, byte arrays or registered classes.
+ */
+public class JFGBinaryCodec implements JFGMessageCodec {
+	
+	/**
+	 * The type id that marks a message (or field value) that was written using the java serialization.
+	 */
+	public static final int SERIALIZED_TYPE_ID = 0;
+	/**
+	 * The biggest type id that can be registered.
+	 */
+	public static final int MAX_TYPE_ID = 0xFFFF;
+	
+	private static final byte VALUE_NULL = 0;
+	private static final byte VALUE_BOOLEAN = 1;
+	private static final byte VALUE_BYTE = 2;
+	private static final byte VALUE_SHORT = 3;
+	private static final byte VALUE_CHAR = 4;
+	private static final byte VALUE_INT = 5;
+	private static final byte VALUE_LONG = 6;
+	private static final byte VALUE_FLOAT = 7;
+	private static final byte VALUE_DOUBLE = 8;
+	private static final byte VALUE_STRING = 9;
+	private static final byte VALUE_BYTES = 10;
+	private static final byte VALUE_LIST = 11;
+	private static final byte VALUE_REGISTERED = 12;
+	private static final byte VALUE_SERIALIZED = 13;
+	
+	private final Map<Class<?>, Registration> registrationsByClass = new ConcurrentHashMap<Class<?>, Registration>();
+	private volatile Registration[] registrationsById = new Registration[16];
+	
+	private final JFGSerializationCodec serializationCodec = new JFGSerializationCodec();
+	
+	/**
+	 * Register a message class and generate a serializer for it.
+	 *
+	 * @param typeId
+	 * 		The id that is sent instead of the class (between 1 and {@link #MAX_TYPE_ID}).
+	 *
+	 * @param type
+	 * 		The message class. The class needs a constructor without arguments.
+	 *
+	 * @throws IllegalArgumentException
+	 * 		An {@link IllegalArgumentException} is thrown if the type id or the class is already registered or no serializer can be generated.
+	 */
+	public void register(int typeId, Class<?> type) throws IllegalArgumentException {
+		register(typeId, type, new GeneratedSerializer(type));
+	}
+	
+	/**
+	 * Register a message class with a hand written serializer.
+	 *
+	 * @param typeId
+	 * 		The id that is sent instead of the class (between 1 and {@link #MAX_TYPE_ID}).
+	 *
+	 * @param type
+	 * 		The message class. Only messages of exactly this class (no sub classes) are written by the serializer.
+	 *
+	 * @param serializer
+	 * 		The serializer that writes and reads the messages.
+	 *
+	 * @throws IllegalArgumentException
+	 * 		An {@link IllegalArgumentException} is thrown if the type id or the class is already registered.
+	 */
+	public synchronized <T> void register(int typeId, Class<T> type, JFGMessageSerializer<? super T> serializer) throws IllegalArgumentException {
+		if (typeId <= SERIALIZED_TYPE_ID || typeId > MAX_TYPE_ID) {
+			throw new IllegalArgumentException("The type id has to be between 1 and " + MAX_TYPE_ID + " (was " + typeId + ").");
+		}
+		if (registrationsByClass.containsKey(type)) {
+			throw new IllegalArgumentException("The class " + type.getName() + " is already registered.");
+		}
+		Registration[] registrations = registrationsById;
+		if (typeId < registrations.length && registrations[typeId] != null) {
+			throw new IllegalArgumentException("The type id " + typeId + " is already used by " + registrations[typeId].type.getName() + ".");
+		}
+		if (typeId >= registrations.length) {
+			registrations = Arrays.copyOf(registrations, Math.max(registrations.length * 2, typeId + 1));
+		}
+		else {
+			registrations = registrations.clone();
+		}
+		@SuppressWarnings("unchecked")
+		Registration registration = new Registration(typeId, type, (JFGMessageSerializer<Object>) serializer);
+		registrations[typeId] = registration;
+		registrationsByClass.put(type, registration);
+		registrationsById = registrations;
+	}
+	
+	/**
+	 * Check whether a class is registered (so it's written without the java serialization).
+	 */
+	public boolean isRegistered(Class<?> type) {
+		return registrationsByClass.containsKey(type);
+	}
+	
+	/**
+	 * Get the type id of a registered class.
+	 *
+	 * @return
+	 * 		The type id or {@link #SERIALIZED_TYPE_ID} if the class is not registered.
+	 */
+	public int getTypeId(Class<?> type) {
+		Registration registration = registrationsByClass.get(type);
+		return registration == null ? SERIALIZED_TYPE_ID : registration.typeId;
+	}
+	
+	@Override
+	public byte[] encode(Object message) throws IOException {
+		JFGBinaryOutput out = new JFGBinaryOutput();
+		Registration registration = registrationsByClass.get(message.getClass());
+		if (registration == null) {
+			out.writeUnsignedInt(SERIALIZED_TYPE_ID);
+			byte[] serialized = serializationCodec.encode(message);
+			out.writeRawBytes(serialized, 0, serialized.length);
+		}
+		else {
+			out.writeUnsignedInt(registration.typeId);
+			registration.serializer.write(message, out);
+		}
+		return out.toByteArray();
+	}
+	
+	@Override
+	public Object decode(byte[] data, int offset, int length) throws IOException, ClassNotFoundException {
+		JFGBinaryInput in = new JFGBinaryInput(data, offset, length);
+		int typeId = in.readUnsignedInt();
+		if (typeId == SERIALIZED_TYPE_ID) {
+			return serializationCodec.decode(data, offset + length - in.remaining(), in.remaining());
+		}
+		return getRegistration(typeId).serializer.read(in);
+	}
+	
+	private Registration getRegistration(int typeId) throws ClassNotFoundException {
+		Registration[] registrations = registrationsById;
+		if (typeId < 0 || typeId >= registrations.length || registrations[typeId] == null) {
+			throw new ClassNotFoundException("JFGBinaryCodec: No class registered for the type id " + typeId + ".");
+		}
+		return registrations[typeId];
+	}
+	
+	/**
+	 * Write a value of a field that has no fixed type (e.g. a field of type Object, Integer or List).
+	 */
+	private void writeValue(Object value, JFGBinaryOutput out) throws IOException {
+		if (value == null) {
+			out.writeByte(VALUE_NULL);
+			return;
+		}
+		Class<?> type = value.getClass();
+		Registration registration = registrationsByClass.get(type);
+		if (registration != null) {
+			out.writeByte(VALUE_REGISTERED);
+			out.writeUnsignedInt(registration.typeId);
+			registration.serializer.write(value, out);
+		}
+		else if (type == String.class) {
+			out.writeByte(VALUE_STRING);
+			out.writeString((String) value);
+		}
+		else if (type == Integer.class) {
+			out.writeByte(VALUE_INT);
+			out.writeInt((Integer) value);
+		}
+		else if (type == Long.class) {
+			out.writeByte(VALUE_LONG);
+			out.writeLong((Long) value);
+		}
+		else if (type == Boolean.class) {
+			out.writeByte(VALUE_BOOLEAN);
+			out.writeBoolean((Boolean) value);
+		}
+		else if (type == Double.class) {
+			out.writeByte(VALUE_DOUBLE);
+			out.writeDouble((Double) value);
+		}
+		else if (type == Float.class) {
+			out.writeByte(VALUE_FLOAT);
+			out.writeFloat((Float) value);
+		}
+		else if (type == Byte.class) {
+			out.writeByte(VALUE_BYTE);
+			out.writeByte((Byte) value);
+		}
+		else if (type == Short.class) {
+			out.writeByte(VALUE_SHORT);
+			out.writeShort((Short) value);
+		}
+		else if (type == Character.class) {
+			out.writeByte(VALUE_CHAR);
+			out.writeChar((Character) value);
+		}
+		else if (type == byte[].class) {
+			out.writeByte(VALUE_BYTES);
+			out.writeBytes((byte[]) value);
+		}
+		else if (type == ArrayList.class) {
+			List<?> list = (List<?>) value;
+			out.writeByte(VALUE_LIST);
+			out.writeUnsignedInt(list.size());
+			for (int i = 0; i < list.size(); i++) {
+				writeValue(list.get(i), out);
+			}
+		}
+		else {
+			out.writeByte(VALUE_SERIALIZED);
+			out.writeBytes(serializationCodec.encode(value));
+		}
+	}
+	
+	/**
+	 * Read a value that was written by {@link #writeValue(Object, JFGBinaryOutput)}.
+	 */
+	private Object readValue(JFGBinaryInput in) throws IOException {
+		byte valueType = in.readByte();
+		switch (valueType) {
+			case VALUE_NULL:
+				return null;
+			case VALUE_BOOLEAN:
+				return in.readBoolean();
+			case VALUE_BYTE:
+				return in.readByte();
+			case VALUE_SHORT:
+				return in.readShort();
+			case VALUE_CHAR:
+				return in.readChar();
+			case VALUE_INT:
+				return in.readInt();
+			case VALUE_LONG:
+				return in.readLong();
+			case VALUE_FLOAT:
+				return in.readFloat();
+			case VALUE_DOUBLE:
+				return in.readDouble();
+			case VALUE_STRING:
+				return in.readString();
+			case VALUE_BYTES:
+				return in.readBytes();
+			case VALUE_LIST:
+				int size = in.readUnsignedInt();
+				if (size > in.remaining()) {
+					throw new StreamCorruptedException("JFGBinaryCodec: Invalid list size: " + size);
+				}
+				List<Object> list = new ArrayList<Object>(size);
+				for (int i = 0; i < size; i++) {
+					list.add(readValue(in));
+				}
+				return list;
+			case VALUE_REGISTERED:
+				try {
+					return getRegistration(in.readUnsignedInt()).serializer.read(in);
+				}
+				catch (ClassNotFoundException cnfe) {
+					throw new IOException(cnfe);
+				}
+			case VALUE_SERIALIZED:
+				byte[] serialized = in.readBytes();
+				try {
+					return serializationCodec.decode(serialized, 0, serialized.length);
+				}
+				catch (ClassNotFoundException cnfe) {
+					throw new IOException(cnfe);
+				}
+			default:
+				throw new StreamCorruptedException("JFGBinaryCodec: Unknown value type: " + valueType);
+		}
+	}
+	
+	private static class Registration {
+		
+		private final int typeId;
+		private final Class<?> type;
+		private final JFGMessageSerializer<Object> serializer;
+		
+		public Registration(int typeId, Class<?> type, JFGMessageSerializer<Object> serializer) {
+			this.typeId = typeId;
+			this.type = type;
+			this.serializer = serializer;
+		}
+	}
+	
+	/**
+	 * The serializer that is generated for a registered class.
+	 *
+	 * The fields are accessed by method handles that are created on registration (like the constructor), so no reflection is needed to write or read a message.
+	 */
+	private class GeneratedSerializer implements JFGMessageSerializer<Object> {
+		
+		private final MethodHandle constructor;
+		private final FieldSerializer[] fields;
+		
+		public GeneratedSerializer(Class<?> type) throws IllegalArgumentException {
+			if (type.isInterface() || type.isArray() || type.isEnum() || Modifier.isAbstract(type.getModifiers())) {
+				throw new IllegalArgumentException("No serializer can be generated for " + type.getName() + ". Use a JFGMessageSerializer instead.");
+			}
+			try {
+				Constructor<?> noArgumentConstructor = type.getDeclaredConstructor();
+				noArgumentConstructor.setAccessible(true);
+				constructor = MethodHandles.lookup().unreflectConstructor(noArgumentConstructor).asType(MethodType.methodType(Object.class));
+				List<FieldSerializer> fieldSerializers = new ArrayList<FieldSerializer>();
+				for (Field field : getSerializedFields(type)) {
+					fieldSerializers.add(createFieldSerializer(field));
+				}
+				fields = fieldSerializers.toArray(new FieldSerializer[fieldSerializers.size()]);
+			}
+			catch (NoSuchMethodException nsme) {
+				throw new IllegalArgumentException("The class " + type.getName() + " needs a constructor without arguments or a JFGMessageSerializer.", nsme);
+			}
+			catch (IllegalAccessException | RuntimeException e) {
+				//RuntimeExceptions are thrown by setAccessible if the class is not accessible (e.g. classes of other modules)
+				throw new IllegalArgumentException("No serializer can be generated for " + type.getName() + ". Use a JFGMessageSerializer instead.", e);
+			}
+		}
+		
+		@Override
+		public void write(Object message, JFGBinaryOutput out) throws IOException {
+			try {
+				for (FieldSerializer field : fields) {
+					field.write(message, out);
+				}
+			}
+			catch (IOException | RuntimeException | Error e) {
+				throw e;
+			}
+			catch (Throwable t) {
+				throw new IOException(t);
+			}
+		}
+		
+		@Override
+		public Object read(JFGBinaryInput in) throws IOException {
+			try {
+				Object message = constructor.invokeExact();
+				for (FieldSerializer field : fields) {
+					field.read(message, in);
+				}
+				return message;
+			}
+			catch (IOException | RuntimeException | Error e) {
+				throw e;
+			}
+			catch (Throwable t) {
+				throw new IOException(t);
+			}
+		}
+	}
+	
+	/**
+	 * Get the fields that are written for a class: all non-static and non-transient fields, starting with the fields of the super classes.
+	 *
+	 * The fields of every class are sorted by name, because the order of getDeclaredFields() is not defined.
+	 */
+	private static List<Field> getSerializedFields(Class<?> type) {
+		List<Field> serializedFields = new ArrayList<Field>();
+		for (Class<?> current = type; current != null && current != Object.class; current = current.getSuperclass()) {
+			List<Field> declaredFields = new ArrayList<Field>();
+			for (Field field : current.getDeclaredFields()) {
+				if (!Modifier.isStatic(field.getModifiers()) && !Modifier.isTransient(field.getModifiers())) {
+					declaredFields.add(field);
+				}
+			}
+			Collections.sort(declaredFields, new Comparator<Field>() {
+				
+				@Override
+				public int compare(Field f1, Field f2) {
+					return f1.getName().compareTo(f2.getName());
+				}
+			});
+			serializedFields.addAll(0, declaredFields);
+		}
+		return serializedFields;
+	}
+	
+	private FieldSerializer createFieldSerializer(Field field) throws IllegalAccessException {
+		field.setAccessible(true);
+		MethodHandles.Lookup lookup = MethodHandles.lookup();
+		MethodHandle getter = lookup.unreflectGetter(field);
+		MethodHandle setter = lookup.unreflectSetter(field);
+		Class<?> type = field.getType();
+		if (type == int.class) {
+			return new IntFieldSerializer(getter, setter);
+		}
+		else if (type == long.class) {
+			return new LongFieldSerializer(getter, setter);
+		}
+		else if (type == boolean.class) {
+			return new BooleanFieldSerializer(getter, setter);
+		}
+		else if (type == double.class) {
+			return new DoubleFieldSerializer(getter, setter);
+		}
+		else if (type == float.class) {
+			return new FloatFieldSerializer(getter, setter);
+		}
+		else if (type == byte.class) {
+			return new ByteFieldSerializer(getter, setter);
+		}
+		else if (type == short.class) {
+			return new ShortFieldSerializer(getter, setter);
+		}
+		else if (type == char.class) {
+			return new CharFieldSerializer(getter, setter);
+		}
+		else if (type == String.class) {
+			return new StringFieldSerializer(getter, setter);
+		}
+		else if (type.isEnum()) {
+			return new EnumFieldSerializer(getter, setter, type.getEnumConstants());
+		}
+		else {
+			return new ValueFieldSerializer(getter, setter);
+		}
+	}
+	
+	/**
+	 * Writes and reads one field of a message using the field's getter and setter method handles.
+	 */
+	private static abstract class FieldSerializer {
+		
+		protected final MethodHandle getter;
+		protected final MethodHandle setter;
+		
+		/**
+		 * Adapt the handles to the types used by invokeExact: (Object)fieldType and (Object, fieldType)void.
+		 */
+		public FieldSerializer(MethodHandle getter, MethodHandle setter, Class<?> fieldType) {
+			this.getter = getter.asType(MethodType.methodType(fieldType, Object.class));
+			this.setter = setter.asType(MethodType.methodType(void.class, Object.class, fieldType));
+		}
+		
+		public abstract void write(Object message, JFGBinaryOutput out) throws Throwable;
+		public abstract void read(Object message, JFGBinaryInput in) throws Throwable;
+	}
+	
+	private static class IntFieldSerializer extends FieldSerializer {
+		
+		public IntFieldSerializer(MethodHandle getter, MethodHandle setter) {
+			super(getter, setter, int.class);
+		}
+		
+		@Override
+		public void write(Object message, JFGBinaryOutput out) throws Throwable {
+			out.writeInt((int) getter.invokeExact(message));
+		}
+		@Override
+		public void read(Object message, JFGBinaryInput in) throws Throwable {
+			setter.invokeExact(message, in.readInt());
+		}
+	}
+	
+	private static class LongFieldSerializer extends FieldSerializer {
+		
+		public LongFieldSerializer(MethodHandle getter, MethodHandle setter) {
+			super(getter, setter, long.class);
+		}
+		
+		@Override
+		public void write(Object message, JFGBinaryOutput out) throws Throwable {
+			out.writeLong((long) getter.invokeExact(message));
+		}
+		@Override
+		public void read(Object message, JFGBinaryInput in) throws Throwable {
+			setter.invokeExact(message, in.readLong());
+		}
+	}
+	
+	private static class BooleanFieldSerializer extends FieldSerializer {
+		
+		public BooleanFieldSerializer(MethodHandle getter, MethodHandle setter) {
+			super(getter, setter, boolean.class);
+		}
+		
+		@Override
+		public void write(Object message, JFGBinaryOutput out) throws Throwable {
+			out.writeBoolean((boolean) getter.invokeExact(message));
+		}
+		@Override
+		public void read(Object message, JFGBinaryInput in) throws Throwable {
+			setter.invokeExact(message, in.readBoolean());
+		}
+	}
+	
+	private static class DoubleFieldSerializer extends FieldSerializer {
+		
+		public DoubleFieldSerializer(MethodHandle getter, MethodHandle setter) {
+			super(getter, setter, double.class);
+		}
+		
+		@Override
+		public void write(Object message, JFGBinaryOutput out) throws Throwable {
+			out.writeDouble((double) getter.invokeExact(message));
+		}
+		@Override
+		public void read(Object message, JFGBinaryInput in) throws Throwable {
+			setter.invokeExact(message, in.readDouble());
+		}
+	}
+	
+	private static class FloatFieldSerializer extends FieldSerializer {
+		
+		public FloatFieldSerializer(MethodHandle getter, MethodHandle setter) {
+			super(getter, setter, float.class);
+		}
+		
+		@Override
+		public void write(Object message, JFGBinaryOutput out) throws Throwable {
+			out.writeFloat((float) getter.invokeExact(message));
+		}
+		@Override
+		public void read(Object message, JFGBinaryInput in) throws Throwable {
+			setter.invokeExact(message, in.readFloat());
+		}
+	}
+	
+	private static class ByteFieldSerializer extends FieldSerializer {
+		
+		public ByteFieldSerializer(MethodHandle getter, MethodHandle setter) {
+			super(getter, setter, byte.class);
+		}
+		
+		@Override
+		public void write(Object message, JFGBinaryOutput out) throws Throwable {
+			out.writeByte((byte) getter.invokeExact(message));
+		}
+		@Override
+		public void read(Object message, JFGBinaryInput in) throws Throwable {
+			setter.invokeExact(message, in.readByte());
+		}
+	}
+	
+	private static class ShortFieldSerializer extends FieldSerializer {
+		
+		public ShortFieldSerializer(MethodHandle getter, MethodHandle setter) {
+			super(getter, setter, short.class);
+		}
+		
+		@Override
+		public void write(Object message, JFGBinaryOutput out) throws Throwable {
+			out.writeShort((short) getter.invokeExact(message));
+		}
+		@Override
+		public void read(Object message, JFGBinaryInput in) throws Throwable {
+			setter.invokeExact(message, in.readShort());
+		}
+	}
+	
+	private static class CharFieldSerializer extends FieldSerializer {
+		
+		public CharFieldSerializer(MethodHandle getter, MethodHandle setter) {
+			super(getter, setter, char.class);
+		}
+		
+		@Override
+		public void write(Object message, JFGBinaryOutput out) throws Throwable {
+			out.writeChar((char) getter.invokeExact(message));
+		}
+		@Override
+		public void read(Object message, JFGBinaryInput in) throws Throwable {
+			setter.invokeExact(message, in.readChar());
+		}
+	}
+	
+	private static class StringFieldSerializer extends FieldSerializer {
+		
+		public StringFieldSerializer(MethodHandle getter, MethodHandle setter) {
+			super(getter, setter, String.class);
+		}
+		
+		@Override
+		public void write(Object message, JFGBinaryOutput out) throws Throwable {
+			out.writeString((String) getter.invokeExact(message));
+		}
+		@Override
+		public void read(Object message, JFGBinaryInput in) throws Throwable {
+			setter.invokeExact(message, in.readString());
+		}
+	}
+	
+	/**
+	 * Writes an enum as it's ordinal (+1, so 0 is null).
+	 */
+	private static class EnumFieldSerializer extends FieldSerializer {
+		
+		private final Object[] constants;
+		
+		public EnumFieldSerializer(MethodHandle getter, MethodHandle setter, Object[] constants) {
+			super(getter, setter, Object.class);
+			this.constants = constants;
+		}
+		
+		@Override
+		public void write(Object message, JFGBinaryOutput out) throws Throwable {
+			Enum<?> value = (Enum<?>) (Object) getter.invokeExact(message);
+			out.writeUnsignedInt(value == null ? 0 : value.ordinal() + 1);
+		}
+		@Override
+		public void read(Object message, JFGBinaryInput in) throws Throwable {
+			int ordinal = in.readUnsignedInt() - 1;
+			if (ordinal >= constants.length) {
+				throw new StreamCorruptedException("JFGBinaryCodec: Invalid enum ordinal: " + ordinal);
+			}
+			setter.invokeExact(message, ordinal < 0 ? null : constants[ordinal]);
+		}
+	}
+	
+	/**
+	 * Writes a field without a fixed type (boxed primitives, lists, registered classes, ...) with a type mark before the value.
+	 */
+	private class ValueFieldSerializer extends FieldSerializer {
+		
+		public ValueFieldSerializer(MethodHandle getter, MethodHandle setter) {
+			super(getter, setter, Object.class);
+		}
+		
+		@Override
+		public void write(Object message, JFGBinaryOutput out) throws Throwable {
+			writeValue((Object) getter.invokeExact(message), out);
+		}
+		@Override
+		public void read(Object message, JFGBinaryInput in) throws Throwable {
+			setter.invokeExact(message, readValue(in));
+		}
+	}
+}
@@ -0,0 +1,111 @@
+package net.jfabricationgames.jfgserver.codec;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads the data written by a {@link JFGBinaryOutput}.
+ */
+public class JFGBinaryInput {
+	
+	private byte[] data;
+	private int position;
+	private int limit;
+	
+	public JFGBinaryInput(byte[] data, int offset, int length) {
+		this.data = data;
+		this.position = offset;
+		this.limit = offset + length;
+	}
+	
+	private void require(int bytes) throws EOFException {
+		//position + bytes could overflow for a corrupted length
+		if (bytes < 0 || bytes > limit - position) {
+			throw new EOFException("JFGBinaryInput: Unexpected end of the message.");
+		}
+	}
+	
+	public byte readByte() throws IOException {
+		require(1);
+		return data[position++];
+	}
+	public boolean readBoolean() throws IOException {
+		return readByte() != 0;
+	}
+	public short readShort() throws IOException {
+		return (short) readInt();
+	}
+	public char readChar() throws IOException {
+		return (char) readUnsignedInt();
+	}
+	public int readInt() throws IOException {
+		int zigZag = readUnsignedInt();
+		return (zigZag >>> 1) ^ -(zigZag & 1);
+	}
+	public int readUnsignedInt() throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			byte b = readByte();
+			value |= (b & 0x7F) << shift;
+			if (b >= 0) {
+				return value;
+			}
+		}
+		throw new StreamCorruptedException("JFGBinaryInput: Invalid variable length int.");
+	}
+	public long readLong() throws IOException {
+		long zigZag = 0;
+		for (int shift = 0; shift < 70; shift += 7) {
+			byte b = readByte();
+			zigZag |= (long) (b & 0x7F) << shift;
+			if (b >= 0) {
+				return (zigZag >>> 1) ^ -(zigZag & 1);
+			}
+		}
+		throw new StreamCorruptedException("JFGBinaryInput: Invalid variable length long.");
+	}
+	public float readFloat() throws IOException {
+		return Float.intBitsToFloat(readFixedInt());
+	}
+	public double readDouble() throws IOException {
+		long high = readFixedInt() & 0xFFFFFFFFL;
+		long low = readFixedInt() & 0xFFFFFFFFL;
+		return Double.longBitsToDouble((high << 32) | low);
+	}
+	private int readFixedInt() throws IOException {
+		require(4);
+		int value = ((data[position] & 0xFF) << 24) | ((data[position + 1] & 0xFF) << 16) | ((data[position + 2] & 0xFF) << 8) | (data[position + 3] & 0xFF);
+		position += 4;
+		return value;
+	}
+	public String readString() throws IOException {
+		int length = readUnsignedInt() - 1;
+		if (length < 0) {
+			return null;
+		}
+		require(length);
+		String value = new String(data, position, length, StandardCharsets.UTF_8);
+		position += length;
+		return value;
+	}
+	public byte[] readBytes() throws IOException {
+		int length = readUnsignedInt() - 1;
+		if (length < 0) {
+			return null;
+		}
+		require(length);
+		byte[] value = new byte[length];
+		System.arraycopy(data, position, value, 0, length);
+		position += length;
+		return value;
+	}
+	
+	/**
+	 * The number of bytes that are not read yet.
+	 */
+	public int remaining() {
+		return limit - position;
+	}
+}
@@ -0,0 +1,145 @@
+package net.jfabricationgames.jfgserver.codec;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A growing byte buffer that the {@link JFGBinaryCodec} and custom {@link JFGMessageSerializer}s write the messages to.
+ * 
+ * Integers and longs are written as variable length numbers (zig-zag encoded), so small values only need one byte.
+ */
+public class JFGBinaryOutput {
+	
+	private byte[] buffer;
+	private int position;
+	
+	public JFGBinaryOutput() {
+		this(64);
+	}
+	public JFGBinaryOutput(int initialSize) {
+		buffer = new byte[Math.max(16, initialSize)];
+	}
+	
+	private void ensureCapacity(int bytes) {
+		if (position + bytes > buffer.length) {
+			buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + bytes));
+		}
+	}
+	
+	public void writeByte(int value) {
+		ensureCapacity(1);
+		buffer[position++] = (byte) value;
+	}
+	public void writeBoolean(boolean value) {
+		writeByte(value ? 1 : 0);
+	}
+	public void writeShort(short value) {
+		writeInt(value);
+	}
+	public void writeChar(char value) {
+		writeUnsignedInt(value);
+	}
+	/**
+	 * Write an int as zig-zag encoded variable length number (1 to 5 bytes).
+	 */
+	public void writeInt(int value) {
+		writeUnsignedInt((value << 1) ^ (value >> 31));
+	}
+	/**
+	 * Write a non-negative int as variable length number (1 to 5 bytes). Negative values need 5 bytes.
+	 */
+	public void writeUnsignedInt(int value) {
+		ensureCapacity(5);
+		while ((value & ~0x7F) != 0) {
+			buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		buffer[position++] = (byte) value;
+	}
+	/**
+	 * Write a long as zig-zag encoded variable length number (1 to 10 bytes).
+	 */
+	public void writeLong(long value) {
+		long zigZag = (value << 1) ^ (value >> 63);
+		ensureCapacity(10);
+		while ((zigZag & ~0x7FL) != 0) {
+			buffer[position++] = (byte) ((zigZag & 0x7F) | 0x80);
+			zigZag >>>= 7;
+		}
+		buffer[position++] = (byte) zigZag;
+	}
+	public void writeFloat(float value) {
+		writeFixedInt(Float.floatToIntBits(value));
+	}
+	public void writeDouble(double value) {
+		long bits = Double.doubleToLongBits(value);
+		writeFixedInt((int) (bits >>> 32));
+		writeFixedInt((int) bits);
+	}
+	private void writeFixedInt(int value) {
+		ensureCapacity(4);
+		buffer[position++] = (byte) (value >>> 24);
+		buffer[position++] = (byte) (value >>> 16);
+		buffer[position++] = (byte) (value >>> 8);
+		buffer[position++] = (byte) value;
+	}
+	/**
+	 * Write a string (that may be null) as UTF-8.
+	 */
+	public void writeString(String value) {
+		if (value == null) {
+			writeUnsignedInt(0);
+			return;
+		}
+		int length = value.length();
+		boolean ascii = true;
+		for (int i = 0; i < length && ascii; i++) {
+			ascii = value.charAt(i) < 0x80;
+		}
+		if (ascii) {
+			writeUnsignedInt(length + 1);
+			ensureCapacity(length);
+			for (int i = 0; i < length; i++) {
+				buffer[position++] = (byte) value.charAt(i);
+			}
+		}
+		else {
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			writeUnsignedInt(bytes.length + 1);
+			writeRawBytes(bytes, 0, bytes.length);
+		}
+	}
+	/**
+	 * Write a byte array (that may be null) with it's length.
+	 */
+	public void writeBytes(byte[] value) {
+		if (value == null) {
+			writeUnsignedInt(0);
+			return;
+		}
+		writeUnsignedInt(value.length + 1);
+		writeRawBytes(value, 0, value.length);
+	}
+	/**
+	 * Write bytes without a length.
+	 */
+	public void writeRawBytes(byte[] value, int offset, int length) {
+		ensureCapacity(length);
+		System.arraycopy(value, offset, buffer, position, length);
+		position += length;
+	}
+	
+	/**
+	 * The number of bytes written.
+	 */
+	public int size() {
+		return position;
+	}
+	
+	/**
+	 * Get a copy of the written bytes.
+	 */
+	public byte[] toByteArray() {
+		return Arrays.copyOf(buffer, position);
+	}
+}
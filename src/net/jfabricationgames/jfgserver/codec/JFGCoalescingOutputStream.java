@@ -0,0 +1,243 @@
+package net.jfabricationgames.jfgserver.codec;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import net.jfabricationgames.jfgserver.server.JFGServer;
+
+/**
+ * The buffered stream below the object streams and frame streams of the connections and clients, that decides when the messages are written to the socket.
+ * 
+ * A call to {@link #flush()} marks the end of a message. By default the message is written to the socket directly (like a BufferedOutputStream would do).
+ * In the auto flush mode the messages are collected and written together, when one of these conditions is reached (whichever comes first):
+ * <ul>
+ * <li>The buffered messages reach the flush threshold (in bytes)</li>
+ * <li>The flush delay (in microseconds) after the first buffered message is exceeded</li>
+ * <li>The current {@link JFGWriteBatch} (e.g. the call of an interpreter) ends</li>
+ * </ul>
+ * This way the messages sent at (about) the same time need only one system call and one TCP segment.
+ * 
+ * The flush delay is timed by one scheduler thread that is shared by all streams. The scheduler only hands the delayed flushes on to a small pool
+ * of flush threads, so a socket that can't be written right now doesn't delay the flushes of the other streams.
+ */
+public class JFGCoalescingOutputStream extends OutputStream {
+	
+	/**
+	 * The default size of the buffer and the default flush threshold in bytes.
+	 */
+	public static final int DEFAULT_BUFFER_SIZE = 8192;
+	
+	private static ScheduledExecutorService flushScheduler;
+	private static ExecutorService flushExecutor;
+	
+	private final OutputStream out;
+	private byte[] buffer;
+	private int count;
+	
+	private boolean autoFlush;
+	private int flushThreshold = DEFAULT_BUFFER_SIZE;
+	private long flushDelay;
+	
+	private boolean flushScheduled;
+	private long writes;
+	
+	private final Runnable delayedFlush = new Runnable() {
+		
+		@Override
+		public void run() {
+			//the write may wait for the socket, so it's not executed in the scheduler thread
+			getFlushExecutor().execute(flushTask);
+		}
+	};
+	private final Runnable flushTask = new Runnable() {
+		
+		@Override
+		public void run() {
+			synchronized (JFGCoalescingOutputStream.this) {
+				flushScheduled = false;
+				try {
+					flushBuffer();
+				}
+				catch (IOException ioe) {
+					//the stream is closed; the error is reported to the sender by the next message
+					JFGServer.printError(ioe, JFGServer.ERROR_LEVEL_DEBUG);
+				}
+			}
+		}
+	};
+	
+	/**
+	 * Create a new JFGCoalescingOutputStream (without auto flush).
+	 * 
+	 * @param out
+	 * 		The stream of the socket.
+	 */
+	public JFGCoalescingOutputStream(OutputStream out) {
+		this.out = out;
+		buffer = new byte[DEFAULT_BUFFER_SIZE];
+	}
+	
+	@Override
+	public synchronized void write(int b) throws IOException {
+		if (count == buffer.length) {
+			flushBuffer();
+		}
+		buffer[count++] = (byte) b;
+	}
+	
+	@Override
+	public synchronized void write(byte[] b, int off, int len) throws IOException {
+		if (len > buffer.length - count) {
+			flushBuffer();
+			if (len >= buffer.length) {
+				//don't copy big messages into the buffer
+				out.write(b, off, len);
+				writes++;
+				return;
+			}
+		}
+		System.arraycopy(b, off, buffer, count, len);
+		count += len;
+	}
+	
+	/**
+	 * Mark the end of a message. The buffered data is written to the socket now or later, depending on the auto flush mode and the current {@link JFGWriteBatch}.
+	 */
+	@Override
+	public synchronized void flush() throws IOException {
+		if (count == 0) {
+			return;
+		}
+		if (count >= flushThreshold) {
+			flushBuffer();
+		}
+		else if (JFGWriteBatch.add(this)) {
+			//the batch flushes the stream when it ends
+		}
+		else if (!autoFlush || flushDelay <= 0) {
+			flushBuffer();
+		}
+		else if (!flushScheduled) {
+			flushScheduled = true;
+			getFlushScheduler().schedule(delayedFlush, flushDelay, TimeUnit.MICROSECONDS);
+		}
+	}
+	
+	/**
+	 * Write all buffered data to the socket now.
+	 * 
+	 * @throws IOException
+	 * 		An {@link IOException} is thrown if the data couldn't be written.
+	 */
+	public synchronized void flushNow() throws IOException {
+		flushBuffer();
+	}
+	
+	private void flushBuffer() throws IOException {
+		if (count > 0) {
+			out.write(buffer, 0, count);
+			count = 0;
+			writes++;
+		}
+		out.flush();
+	}
+	
+	@Override
+	public void close() throws IOException {
+		try {
+			flushNow();
+		}
+		finally {
+			out.close();
+		}
+	}
+	
+	private static synchronized ScheduledExecutorService getFlushScheduler() {
+		if (flushScheduler == null) {
+			flushScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				
+				@Override
+				public Thread newThread(Runnable task) {
+					Thread thread = new Thread(task, "JFGFlushScheduler");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return flushScheduler;
+	}
+	/**
+	 * Get the threads that write the delayed flushes. Every stream has at most one delayed flush at a time, so the waiting tasks are bounded by the number of streams.
+	 */
+	private static synchronized ExecutorService getFlushExecutor() {
+		if (flushExecutor == null) {
+			int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+			flushExecutor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+				
+				@Override
+				public Thread newThread(Runnable task) {
+					Thread thread = new Thread(task, "JFGFlushWriter");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return flushExecutor;
+	}
+	
+	public synchronized boolean isAutoFlush() {
+		return autoFlush;
+	}
+	/**
+	 * Enable or disable the auto flush mode. In the auto flush mode the messages are not written to the socket directly, but collected
+	 * till the flush threshold or the flush delay is reached or the current {@link JFGWriteBatch} ends.
+	 * 
+	 * @param autoFlush
+	 * 		True to collect the messages.
+	 */
+	public synchronized void setAutoFlush(boolean autoFlush) {
+		this.autoFlush = autoFlush;
+	}
+	
+	public synchronized int getFlushThreshold() {
+		return flushThreshold;
+	}
+	/**
+	 * Set the number of buffered bytes that are written to the socket directly.
+	 * 
+	 * @param flushThreshold
+	 * 		The threshold in bytes (the default is {@link #DEFAULT_BUFFER_SIZE}).
+	 */
+	public synchronized void setFlushThreshold(int flushThreshold) {
+		this.flushThreshold = flushThreshold;
+		if (flushThreshold > buffer.length) {
+			buffer = Arrays.copyOf(buffer, flushThreshold);
+		}
+	}
+	
+	public synchronized long getFlushDelay() {
+		return flushDelay;
+	}
+	/**
+	 * Set the maximum time a message is buffered in the auto flush mode.
+	 * 
+	 * @param flushDelay
+	 * 		The delay in microseconds or 0 to only collect the messages of a {@link JFGWriteBatch} (default).
+	 */
+	public synchronized void setFlushDelay(long flushDelay) {
+		this.flushDelay = flushDelay;
+	}
+	
+	/**
+	 * The number of writes to the socket (about the number of system calls that were needed).
+	 */
+	public synchronized long getWrites() {
+		return writes;
+	}
+}
@@ -0,0 +1,206 @@
+package net.jfabricationgames.jfgserver.codec;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
+
+import net.jfabricationgames.jfgserver.client.JFGClientMessage;
+import net.jfabricationgames.jfgserver.client.JFGConflatableMessage;
+import net.jfabricationgames.jfgserver.client.JFGServerMessage;
+
+/**
+ * A message that is encoded only once to be sent to many connections (e.g. a broadcast).
+ * 
+ * The message is encoded when it's sent to the first connection. All other connections that use the same {@link JFGMessageCodec} write the same
+ * (read-only) frame. A received frame can be sent the same way, without decoding the message (unless a connection needs the message itself).
+ * Connections that use object streams serialize the message with their own stream instead: the shared bytes could only be written between two
+ * resets of the stream, so every client would get all class descriptors of the message again and the reset policy of the stream would be lost.
+ * Serializing the message for every connection costs more time, but sends less bytes than the shared bytes.
+ * Therefore the message must not be changed after the JFGEncodedMessage was created.
+ * 
+ * The encoded bytes are also used to re-send a secured message exactly as it was sent the first time. The secured message is encoded directly
+ * (see {@link #getEncodedSize(JFGMessageCodec)}), so later changes of the message object are not sent.
+ */
+public class JFGEncodedMessage {
+	
+	/**
+	 * The size of the header that every new ObjectOutputStream writes (magic number and version).
+	 */
+	private static final int OBJECT_STREAM_HEADER_SIZE = 4;
+	
+	private Object message;
+	
+	private JFGMessageCodec frameCodec;
+	private JFGFrame frame;
+	private byte[] objectStreamData;
+	
+	/**
+	 * Create a new JFGEncodedMessage. The message is not encoded before it's sent.
+	 * 
+	 * @param message
+	 * 		The message that is sent.
+	 */
+	public JFGEncodedMessage(JFGClientMessage message) {
+		this.message = message;
+	}
+	/**
+	 * Create a new JFGEncodedMessage for a message that a client sends to the server. The message is not encoded before it's sent.
+	 * 
+	 * @param message
+	 * 		The message that is sent to the server.
+	 * 
+	 * @return
+	 * 		The new JFGEncodedMessage.
+	 */
+	public static JFGEncodedMessage ofServerMessage(JFGServerMessage message) {
+		JFGEncodedMessage encodedMessage = new JFGEncodedMessage((JFGClientMessage) null);
+		encodedMessage.message = message;
+		return encodedMessage;
+	}
+	/**
+	 * Create a new JFGEncodedMessage from a frame that was received (e.g. to relay it). The message is only decoded if a connection needs it.
+	 * 
+	 * @param frame
+	 * 		The frame containing a JFGClientMessage.
+	 * 
+	 * @param codec
+	 * 		The codec that encoded the frame.
+	 */
+	public JFGEncodedMessage(JFGFrame frame, JFGMessageCodec codec) {
+		this.frame = frame;
+		this.frameCodec = codec;
+	}
+	
+	/**
+	 * Get the frame of the message for connections that use a {@link JFGMessageCodec}.
+	 * 
+	 * @param codec
+	 * 		The codec used by the connection.
+	 * 
+	 * @return
+	 * 		The frame containing the message (encoded on the first call).
+	 * 
+	 * @throws IOException
+	 * 		An {@link IOException} is thrown if the message can't be encoded.
+	 */
+	public synchronized JFGFrame getFrame(JFGMessageCodec codec) throws IOException {
+		if (frameCodec == codec) {
+			return frame;
+		}
+		if (frame != null) {
+			//the message is already encoded by another codec
+			return JFGFrame.encode(codec, getPayload());
+		}
+		frame = JFGFrame.encode(codec, message);
+		frameCodec = codec;
+		return frame;
+	}
+	
+	/**
+	 * Get the message serialized into a standard object stream (including the stream header), like the {@link JFGSerializationCodec} encodes it.
+	 * 
+	 * @return
+	 * 		The serialized message (the array must not be changed).
+	 * 
+	 * @throws IOException
+	 * 		An {@link IOException} is thrown if the message can't be serialized.
+	 */
+	public byte[] getSerializedData() throws IOException {
+		return getObjectStreamData();
+	}
+	
+	/**
+	 * Get the number of bytes the message needs on the wire (the message is encoded if it's not encoded yet).
+	 * 
+	 * @param codec
+	 * 		The codec used by the connection or null if the connection uses object streams.
+	 * 
+	 * @return
+	 * 		The size of the encoded message in bytes.
+	 * 
+	 * @throws IOException
+	 * 		An {@link IOException} is thrown if the message can't be encoded.
+	 */
+	public int getEncodedSize(JFGMessageCodec codec) throws IOException {
+		if (codec != null) {
+			return getFrame(codec).getSize();
+		}
+		return getObjectStreamData().length - OBJECT_STREAM_HEADER_SIZE;
+	}
+	
+	private synchronized byte[] getObjectStreamData() throws IOException {
+		if (objectStreamData == null) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+			ObjectOutputStream out = new JFGObjectOutputStream(bytes);
+			out.writeObject(getPayload());
+			out.flush();
+			objectStreamData = bytes.toByteArray();
+		}
+		return objectStreamData;
+	}
+	
+	/**
+	 * Get the conflation key of the message (if it's a {@link JFGConflatableMessage}).
+	 * Messages that were created from a frame are not decoded to get the key.
+	 * 
+	 * @return
+	 * 		The conflation key or null.
+	 */
+	public synchronized Object getConflationKey() {
+		if (message instanceof JFGConflatableMessage) {
+			return ((JFGConflatableMessage) message).getConflationKey();
+		}
+		return null;
+	}
+	
+	/**
+	 * Get the message (decoded from the frame if the message was created from a frame).
+	 * 
+	 * @return
+	 * 		The message.
+	 * 
+	 * @throws IOException
+	 * 		An {@link IOException} is thrown if the frame can't be decoded.
+	 */
+	public synchronized JFGClientMessage getMessage() throws IOException {
+		Object payload = getPayload();
+		if (!(payload instanceof JFGClientMessage)) {
+			throw new StreamCorruptedException("JFGEncodedMessage: The frame contains no JFGClientMessage.");
+		}
+		return (JFGClientMessage) payload;
+	}
+	
+	/**
+	 * Get the message that a client sends to the server (see {@link #ofServerMessage(JFGServerMessage)}), decoded from the frame if the message
+	 * was created from a frame.
+	 * 
+	 * @return
+	 * 		The message.
+	 * 
+	 * @throws IOException
+	 * 		An {@link IOException} is thrown if the frame can't be decoded.
+	 */
+	public synchronized JFGServerMessage getServerMessage() throws IOException {
+		Object payload = getPayload();
+		if (!(payload instanceof JFGServerMessage)) {
+			throw new StreamCorruptedException("JFGEncodedMessage: The frame contains no JFGServerMessage.");
+		}
+		return (JFGServerMessage) payload;
+	}
+	
+	/**
+	 * Get the message (a client or server message), decoded from the frame if the message was created from a frame.
+	 */
+	private synchronized Object getPayload() throws IOException {
+		if (message == null) {
+			try {
+				message = frame.decode(frameCodec);
+			}
+			catch (ClassNotFoundException cnfe) {
+				throw new IOException(cnfe);
+			}
+		}
+		return message;
+	}
+}
@@ -0,0 +1,177 @@
+package net.jfabricationgames.jfgserver.codec;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+
+import net.jfabricationgames.jfgserver.client.JFGClientMessage;
+import net.jfabricationgames.jfgserver.client.JFGServerMessage;
+
+/**
+ * A JFGFrame is one encoded message on the wire.
+ * 
+ * Every frame starts with it's length (4 bytes, not including the length itself), followed by one byte of flags and the encoded message.
+ * The length prefix lets the receiver know the end of the message without decoding it.
+ * 
+ * The frame's data is never changed after the frame was created, so a frame can be written to many connections.
+ */
+public final class JFGFrame {
+	
+	/**
+	 * The message of the frame implements {@link JFGClientMessage}.
+	 */
+	public static final byte FLAG_CLIENT_MESSAGE = 0x01;
+	/**
+	 * The message of the frame implements {@link JFGServerMessage}.
+	 */
+	public static final byte FLAG_SERVER_MESSAGE = 0x02;
+	
+	/**
+	 * The maximum size of a frame. Bigger frames are treated as a corrupted stream.
+	 */
+	public static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+	
+	/**
+	 * Finds the end of a frame using it's length prefix.
+	 */
+	public static final JFGMessageScanner SCANNER = new JFGMessageScanner() {
+		
+		@Override
+		public int scan(byte[] data, int offset, int length) throws IOException {
+			if (length < 4) {
+				return -4;
+			}
+			int frameLength = ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16) | ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+			if (frameLength < 1 || frameLength > MAX_FRAME_SIZE) {
+				throw new StreamCorruptedException("JFGFrame: Invalid frame length: " + frameLength);
+			}
+			int size = frameLength + 4;
+			return size <= length ? size : -size;
+		}
+	};
+	
+	private final byte flags;
+	private final byte[] data;
+	
+	/**
+	 * Create a new frame.
+	 * 
+	 * @param flags
+	 * 		The frame's flags.
+	 * 
+	 * @param data
+	 * 		The encoded message (the array must not be changed afterwards).
+	 */
+	public JFGFrame(byte flags, byte[] data) {
+		this.flags = flags;
+		this.data = data;
+	}
+	
+	/**
+	 * Encode a message into a new frame.
+	 * 
+	 * @param codec
+	 * 		The codec that encodes the message.
+	 * 
+	 * @param message
+	 * 		The message to encode.
+	 * 
+	 * @return
+	 * 		The new frame.
+	 * 
+	 * @throws IOException
+	 * 		An {@link IOException} is thrown if the message couldn't be encoded.
+	 */
+	public static JFGFrame encode(JFGMessageCodec codec, Object message) throws IOException {
+		byte flags = 0;
+		if (message instanceof JFGClientMessage) {
+			flags |= FLAG_CLIENT_MESSAGE;
+		}
+		if (message instanceof JFGServerMessage) {
+			flags |= FLAG_SERVER_MESSAGE;
+		}
+		return new JFGFrame(flags, codec.encode(message));
+	}
+	
+	/**
+	 * Decode the message of this frame.
+	 * 
+	 * @param codec
+	 * 		The codec that encoded the message.
+	 * 
+	 * @return
+	 * 		The decoded message.
+	 * 
+	 * @throws IOException
+	 * 		An {@link IOException} is thrown if the frame contains no valid message.
+	 * 
+	 * @throws ClassNotFoundException
+	 * 		A {@link ClassNotFoundException} is thrown if the class of the message is unknown.
+	 */
+	public Object decode(JFGMessageCodec codec) throws IOException, ClassNotFoundException {
+		return codec.decode(data, 0, data.length);
+	}
+	
+	/**
+	 * Read the next frame from a stream.
+	 * 
+	 * @param in
+	 * 		The stream to read from.
+	 * 
+	 * @return
+	 * 		The frame that was read.
+	 * 
+	 * @throws IOException
+	 * 		An {@link IOException} is thrown if the frame couldn't be read.
+	 */
+	public static JFGFrame read(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 1 || length > MAX_FRAME_SIZE) {
+			throw new StreamCorruptedException("JFGFrame: Invalid frame length: " + length);
+		}
+		byte flags = in.readByte();
+		byte[] data = new byte[length - 1];
+		in.readFully(data);
+		return new JFGFrame(flags, data);
+	}
+	
+	/**
+	 * Write the frame to a stream (without flushing it).
+	 * 
+	 * @param out
+	 * 		The stream the frame is written to.
+	 * 
+	 * @throws IOException
+	 * 		An {@link IOException} is thrown if the frame couldn't be written.
+	 */
+	public void write(DataOutputStream out) throws IOException {
+		out.writeInt(data.length + 1);
+		out.writeByte(flags);
+		out.write(data);
+	}
+	
+	public byte getFlags() {
+		return flags;
+	}
+	/**
+	 * Get the encoded message (the array must not be changed).
+	 */
+	public byte[] getData() {
+		return data;
+	}
+	
+	public boolean isClientMessage() {
+		return (flags & FLAG_CLIENT_MESSAGE) != 0;
+	}
+	public boolean isServerMessage() {
+		return (flags & FLAG_SERVER_MESSAGE) != 0;
+	}
+	
+	/**
+	 * The number of bytes the frame needs on the wire (including the length prefix).
+	 */
+	public int getSize() {
+		return data.length + 5;
+	}
+}
@@ -0,0 +1,54 @@
+package net.jfabricationgames.jfgserver.codec;
+
+import java.io.IOException;
+
+import net.jfabricationgames.jfgserver.client.JFGClient;
+import net.jfabricationgames.jfgserver.server.JFGServer;
+
+/**
+ * A JFGMessageCodec turns the messages into bytes and back.
+ * 
+ * If a codec is chosen for a {@link JFGServer} and it's {@link JFGClient}s every message is sent as a length-prefixed {@link JFGFrame}
+ * instead of being written to one continuous object stream. Every frame is encoded independently of the frames before.
+ * 
+ * Implementations must be thread safe, because the same codec is used by all connections of a server.
+ */
+public interface JFGMessageCodec {
+	
+	/**
+	 * Encode a message into bytes.
+	 * 
+	 * @param message
+	 * 		The message to encode.
+	 * 
+	 * @return
+	 * 		The encoded message.
+	 * 
+	 * @throws IOException
+	 * 		An {@link IOException} is thrown if the message can't be encoded.
+	 */
+	public byte[] encode(Object message) throws IOException;
+	
+	/**
+	 * Decode a message that was encoded by {@link #encode(Object)}.
+	 * 
+	 * @param data
+	 * 		The array containing the encoded message.
+	 * 
+	 * @param offset
+	 * 		The start of the message in the array.
+	 * 
+	 * @param length
+	 * 		The length of the encoded message.
+	 * 
+	 * @return
+	 * 		The decoded message.
+	 * 
+	 * @throws IOException
+	 * 		An {@link IOException} is thrown if the data is no valid message.
+	 * 
+	 * @throws ClassNotFoundException
+	 * 		A {@link ClassNotFoundException} is thrown if the class of the message is unknown.
+	 */
+	public Object decode(byte[] data, int offset, int length) throws IOException, ClassNotFoundException;
+}
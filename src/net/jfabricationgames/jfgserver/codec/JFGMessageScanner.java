@@ -0,0 +1,34 @@
+package net.jfabricationgames.jfgserver.codec;
+
+import java.io.IOException;
+
+/**
+ * A JFGMessageScanner finds the end of the next message in the received data without decoding the message.
+ *
+ * The non-blocking engine of the server uses the scanner to read a message only when it was received completely,
+ * so a worker thread never waits for the rest of a message.
+ */
+public interface JFGMessageScanner {
+	
+	/**
+	 * Find the end of the message at the start of the data.
+	 *
+	 * If the size of the message is returned, the message is read next (the scanner may keep the state of the stream, like the class descriptors of an object stream).
+	 *
+	 * @param data
+	 * 		The array containing the received data.
+	 *
+	 * @param offset
+	 * 		The start of the message in the array.
+	 *
+	 * @param length
+	 * 		The number of received bytes.
+	 *
+	 * @return
+	 * 		The size of the message in bytes if the message is complete or the negative number of bytes that are needed at least, if the message is not complete.
+	 *
+	 * @throws IOException
+	 * 		An {@link IOException} is thrown if the data is no valid message.
+	 */
+	public int scan(byte[] data, int offset, int length) throws IOException;
+}
@@ -0,0 +1,24 @@
+package net.jfabricationgames.jfgserver.codec;
+
+import java.io.IOException;
+
+/**
+ * A hand written serializer for a message type of the {@link JFGBinaryCodec}.
+ * 
+ * Needed for classes that the generated serializers don't support (e.g. classes without a no-argument constructor) or to write a message more compact.
+ * 
+ * @param <T>
+ * 		The message type.
+ */
+public interface JFGMessageSerializer<T> {
+	
+	/**
+	 * Write the fields of a message.
+	 */
+	public void write(T message, JFGBinaryOutput out) throws IOException;
+	
+	/**
+	 * Create a message from the fields written by {@link #write(Object, JFGBinaryOutput)}.
+	 */
+	public T read(JFGBinaryInput in) throws IOException;
+}
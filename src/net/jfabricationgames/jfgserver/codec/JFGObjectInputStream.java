@@ -0,0 +1,81 @@
+package net.jfabricationgames.jfgserver.codec;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The ObjectInputStream that reads the data of a {@link JFGObjectOutputStream} (with cached class descriptors).
+ * 
+ * Data of a normal ObjectOutputStream can be read too. The stream header decides which format is read.
+ */
+public class JFGObjectInputStream extends ObjectInputStream {
+	
+	//not initialized, because it's set by the constructor of the ObjectInputStream (before the initializers of this class would run)
+	private boolean cachedDescriptors;
+	
+	private final List<ObjectStreamClass> descriptors = new ArrayList<ObjectStreamClass>();
+	
+	/**
+	 * Create a new JFGObjectInputStream.
+	 * 
+	 * @param in
+	 * 		The stream below.
+	 * 
+	 * @throws IOException
+	 * 		An {@link IOException} is thrown if the stream header can't be read or is not valid.
+	 */
+	public JFGObjectInputStream(InputStream in) throws IOException {
+		super(in);
+	}
+	
+	@Override
+	protected void readStreamHeader() throws IOException {
+		short magic = readShort();
+		short version = readShort();
+		if (magic != STREAM_MAGIC) {
+			throw new StreamCorruptedException(String.format("invalid stream header: %04X%04X", magic, version));
+		}
+		if (version == JFGObjectOutputStream.STREAM_VERSION_CACHED_DESCRIPTORS) {
+			cachedDescriptors = true;
+		}
+		else if (version != STREAM_VERSION) {
+			throw new StreamCorruptedException(String.format("invalid stream header: %04X%04X", magic, version));
+		}
+	}
+	
+	/**
+	 * Check whether the stream was written by a {@link JFGObjectOutputStream} that caches the class descriptors (known after the stream header was read).
+	 */
+	public boolean isCachedDescriptors() {
+		return cachedDescriptors;
+	}
+	
+	@Override
+	protected ObjectStreamClass readClassDescriptor() throws IOException, ClassNotFoundException {
+		if (!cachedDescriptors) {
+			return super.readClassDescriptor();
+		}
+		byte type = readByte();
+		switch (type) {
+			case JFGObjectOutputStream.DESCRIPTOR_UNCACHED:
+				return super.readClassDescriptor();
+			case JFGObjectOutputStream.DESCRIPTOR_NEW:
+				ObjectStreamClass desc = super.readClassDescriptor();
+				descriptors.add(desc);
+				return desc;
+			case JFGObjectOutputStream.DESCRIPTOR_CACHED:
+				int id = readInt();
+				if (id < 0 || id >= descriptors.size()) {
+					throw new StreamCorruptedException("JFGObjectInputStream: Unknown class descriptor id: " + id);
+				}
+				return descriptors.get(id);
+			default:
+				throw new StreamCorruptedException("JFGObjectInputStream: Invalid class descriptor type: " + type);
+		}
+	}
+}
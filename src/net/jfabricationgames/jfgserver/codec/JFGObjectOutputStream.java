@@ -0,0 +1,282 @@
+package net.jfabricationgames.jfgserver.codec;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The ObjectOutputStream of the connections and clients, that is reset by a {@link JFGResetPolicy} and can keep the class descriptors across resets.
+ * 
+ * By default the stream writes the standard serialization format, that can be read by every ObjectInputStream.
+ * A normal ObjectOutputStream sends the class descriptors (class name, serialVersionUID and fields) again after every reset.
+ * If the descriptor caching is enabled, this stream sends a class descriptor only once and afterwards only it's id, so a reset costs (almost) no bandwidth.
+ * The cached format is marked in the stream header and can only be read by a {@link JFGObjectInputStream}, so both sides have to use the JFGServer classes.
+ * 
+ * The stream also counts the written messages, bytes and objects, so the effect of the reset policy can be measured.
+ */
+public class JFGObjectOutputStream extends ObjectOutputStream {
+	
+	/**
+	 * The version in the stream header that tells the {@link JFGObjectInputStream} to read the class descriptors of this stream.
+	 */
+	static final short STREAM_VERSION_CACHED_DESCRIPTORS = 0x4A46;
+	
+	static final byte DESCRIPTOR_UNCACHED = 0;
+	static final byte DESCRIPTOR_NEW = 1;
+	static final byte DESCRIPTOR_CACHED = 2;
+	
+	private final CountingOutputStream counter;
+	private final boolean cachedFormat;
+	private final boolean cacheDescriptors;
+	private final Map<ObjectStreamClass, Integer> descriptorIds = new HashMap<ObjectStreamClass, Integer>();
+	
+	private JFGResetPolicy resetPolicy = JFGResetPolicy.NEVER;
+	
+	private int messagesSinceReset;
+	private long bytesAtReset;
+	private int handleCount;
+	
+	private long messages;
+	private long resets;
+	private long descriptors;
+	private long cachedDescriptors;
+	
+	/**
+	 * Create a new JFGObjectOutputStream that writes the standard serialization format (without cached class descriptors).
+	 * 
+	 * @param out
+	 * 		The stream below.
+	 * 
+	 * @throws IOException
+	 * 		An {@link IOException} is thrown if the stream header can't be written.
+	 */
+	public JFGObjectOutputStream(OutputStream out) throws IOException {
+		this(out, false);
+	}
+	/**
+	 * Create a new JFGObjectOutputStream.
+	 * 
+	 * @param out
+	 * 		The stream below.
+	 * 
+	 * @param cacheDescriptors
+	 * 		True to send every class descriptor only once. The data can only be read by a {@link JFGObjectInputStream} then.
+	 * 
+	 * @throws IOException
+	 * 		An {@link IOException} is thrown if the stream header can't be written.
+	 */
+	public JFGObjectOutputStream(OutputStream out, boolean cacheDescriptors) throws IOException {
+		this(new CountingOutputStream(out), cacheDescriptors, cacheDescriptors);
+	}
+	/**
+	 * Create a new JFGObjectOutputStream that writes the cached format, but every class descriptor completely
+	 * (for data that is written into a stream with cached descriptors, that doesn't know the descriptor ids of this stream).
+	 */
+	JFGObjectOutputStream(OutputStream out, boolean cachedFormat, boolean cacheDescriptors) throws IOException {
+		this(new CountingOutputStream(out), cachedFormat, cacheDescriptors && cachedFormat);
+	}
+	private JFGObjectOutputStream(CountingOutputStream counter, boolean cachedFormat, boolean cacheDescriptors) throws IOException {
+		super(counter);
+		this.counter = counter;
+		this.cachedFormat = cachedFormat;
+		this.cacheDescriptors = cacheDescriptors;
+		//the header is written here, because the super constructor writes it before the fields of this stream are set
+		DataOutputStream header = new DataOutputStream(counter);
+		header.writeShort(STREAM_MAGIC);
+		header.writeShort(cachedFormat ? STREAM_VERSION_CACHED_DESCRIPTORS : STREAM_VERSION);
+		//replaceObject is used to count the objects in the handle table
+		enableReplaceObject(true);
+	}
+	
+	/**
+	 * Write a message and flush the stream. The stream is reset before, if the reset policy says so.
+	 * 
+	 * @param message
+	 * 		The message to write.
+	 * 
+	 * @param unshared
+	 * 		True to write the message using the writeUnshared method.
+	 * 
+	 * @throws IOException
+	 * 		An {@link IOException} is thrown if the message can't be written.
+	 */
+	public void writeMessage(Object message, boolean unshared) throws IOException {
+		if (resetPolicy.isResetNeeded(this)) {
+			reset();
+		}
+		if (unshared) {
+			writeUnshared(message);
+		}
+		else {
+			writeObject(message);
+		}
+		messagesSinceReset++;
+		messages++;
+		flush();
+	}
+	
+	/**
+	 * Reset the stream. The objects that were written are forgotten, but the class descriptors are kept.
+	 */
+	@Override
+	public void reset() throws IOException {
+		super.reset();
+		messagesSinceReset = 0;
+		bytesAtReset = counter.count;
+		handleCount = 0;
+		resets++;
+	}
+	
+	@Override
+	protected void writeStreamHeader() throws IOException {
+		//the header is written by the constructor
+	}
+	
+	@Override
+	protected void writeClassDescriptor(ObjectStreamClass desc) throws IOException {
+		//every class descriptor gets a handle
+		handleCount++;
+		if (!cachedFormat) {
+			super.writeClassDescriptor(desc);
+			descriptors++;
+			return;
+		}
+		if (!cacheDescriptors) {
+			writeByte(DESCRIPTOR_UNCACHED);
+			super.writeClassDescriptor(desc);
+			descriptors++;
+			return;
+		}
+		Integer id = descriptorIds.get(desc);
+		if (id != null) {
+			writeByte(DESCRIPTOR_CACHED);
+			writeInt(id);
+			cachedDescriptors++;
+		}
+		else {
+			writeByte(DESCRIPTOR_NEW);
+			super.writeClassDescriptor(desc);
+			descriptorIds.put(desc, descriptorIds.size());
+			descriptors++;
+		}
+	}
+	
+	@Override
+	protected Object replaceObject(Object obj) throws IOException {
+		//only called for objects that are not in the handle table yet
+		handleCount++;
+		return obj;
+	}
+	
+	/**
+	 * Check whether the stream writes the cached format, that can only be read by a {@link JFGObjectInputStream}.
+	 */
+	public boolean isCachedDescriptors() {
+		return cachedFormat;
+	}
+	
+	public JFGResetPolicy getResetPolicy() {
+		return resetPolicy;
+	}
+	/**
+	 * Set the policy that decides when the stream is reset.
+	 * 
+	 * @param resetPolicy
+	 * 		The reset policy (default is {@link JFGResetPolicy#NEVER}).
+	 */
+	public void setResetPolicy(JFGResetPolicy resetPolicy) {
+		if (resetPolicy == null) {
+			throw new IllegalArgumentException("The reset policy mustn't be null.");
+		}
+		this.resetPolicy = resetPolicy;
+	}
+	
+	/**
+	 * The number of messages written since the last reset.
+	 */
+	public int getMessagesSinceReset() {
+		return messagesSinceReset;
+	}
+	/**
+	 * The number of bytes written since the last reset.
+	 */
+	public long getBytesSinceReset() {
+		return counter.count - bytesAtReset;
+	}
+	/**
+	 * The (approximate) number of objects and class descriptors in the handle table, that are kept in memory till the next reset.
+	 */
+	public int getHandleCount() {
+		return handleCount;
+	}
+	
+	/**
+	 * The number of messages written by {@link #writeMessage(Object, boolean)}.
+	 */
+	public long getMessages() {
+		return messages;
+	}
+	/**
+	 * The number of bytes written to the stream below.
+	 */
+	public long getBytesWritten() {
+		return counter.count;
+	}
+	/**
+	 * The number of resets.
+	 */
+	public long getResets() {
+		return resets;
+	}
+	/**
+	 * The number of class descriptors that were written completely.
+	 */
+	public long getDescriptors() {
+		return descriptors;
+	}
+	/**
+	 * The number of class descriptors that were written as the id of a descriptor that was sent before.
+	 */
+	public long getCachedDescriptors() {
+		return cachedDescriptors;
+	}
+	
+	/**
+	 * Counts the bytes that are written to the stream below.
+	 */
+	private static class CountingOutputStream extends OutputStream {
+		
+		private final OutputStream out;
+		private long count;
+		
+		public CountingOutputStream(OutputStream out) {
+			this.out = out;
+		}
+		
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+		
+		@Override
+		public void flush() throws IOException {
+			out.flush();
+		}
+		
+		@Override
+		public void close() throws IOException {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,471 @@
+package net.jfabricationgames.jfgserver.codec;
+
+import java.io.IOException;
+import java.io.ObjectStreamConstants;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A {@link JFGMessageScanner} for the data of an object stream, that finds the end of the next object without deserializing it.
+ *
+ * The scanner follows the grammar of the serialization stream (see the Java Object Serialization Specification). It keeps the class descriptors
+ * that were received before, because later objects only reference them. Therefore the scanner has to see every object of the stream (after the stream header).
+ *
+ * Like the specification demands, classes with a writeObject method have to write their fields first (using defaultWriteObject or writeFields).
+ * Externalizable objects that were written using the old stream protocol (version 1) can't be scanned.
+ */
+public class JFGObjectStreamScanner implements JFGMessageScanner {
+	
+	private static final IncompleteException INCOMPLETE = new IncompleteException();
+	
+	private final boolean cachedDescriptors;
+	
+	//the handles of the stream (the class descriptors or null for all other objects)
+	private List<ClassDescriptor> handles = new ArrayList<ClassDescriptor>();
+	//the class descriptors that were sent with an id by a JFGObjectOutputStream
+	private final List<ClassDescriptor> descriptors = new ArrayList<ClassDescriptor>();
+	
+	//the state of the current scan
+	private byte[] data;
+	private int start;
+	private int position;
+	private int end;
+	private long requiredSize;
+	private List<ClassDescriptor> handlesAtStart;
+	
+	/**
+	 * Create a new JFGObjectStreamScanner.
+	 *
+	 * @param cachedDescriptors
+	 * 		True if the stream was written by a {@link JFGObjectOutputStream} that caches the class descriptors (see {@link JFGObjectInputStream#isCachedDescriptors()}).
+	 */
+	public JFGObjectStreamScanner(boolean cachedDescriptors) {
+		this.cachedDescriptors = cachedDescriptors;
+	}
+	
+	@Override
+	public int scan(byte[] data, int offset, int length) throws IOException {
+		this.data = data;
+		start = offset;
+		position = offset;
+		end = offset + length;
+		handlesAtStart = handles;
+		int handleCount = handles.size();
+		int descriptorCount = descriptors.size();
+		try {
+			scanContent();
+			return position - offset;
+		}
+		catch (IncompleteException ie) {
+			//forget the handles of the incomplete object; it's scanned again when more data was received
+			handles = handlesAtStart;
+			handles.subList(handleCount, handles.size()).clear();
+			descriptors.subList(descriptorCount, descriptors.size()).clear();
+			return (int) -Math.min(requiredSize, Integer.MAX_VALUE);
+		}
+		finally {
+			this.data = null;
+			handlesAtStart = null;
+		}
+	}
+	
+	/**
+	 * Scan the next object (or reference, string, array, ...) including the resets before it.
+	 */
+	private void scanContent() throws IOException {
+		int typeCode;
+		while ((typeCode = peekByte()) == ObjectStreamConstants.TC_RESET) {
+			position++;
+			reset();
+		}
+		position++;
+		switch (typeCode) {
+			case ObjectStreamConstants.TC_NULL:
+			case ObjectStreamConstants.TC_ENDBLOCKDATA:
+				break;
+			case ObjectStreamConstants.TC_REFERENCE:
+				readHandle();
+				break;
+			case ObjectStreamConstants.TC_CLASS:
+				scanClassDescriptor();
+				handles.add(null);
+				break;
+			case ObjectStreamConstants.TC_CLASSDESC:
+			case ObjectStreamConstants.TC_PROXYCLASSDESC:
+				position--;
+				scanClassDescriptor();
+				break;
+			case ObjectStreamConstants.TC_STRING:
+				skip(readUnsignedShort());
+				handles.add(null);
+				break;
+			case ObjectStreamConstants.TC_LONGSTRING:
+				skip(readLong());
+				handles.add(null);
+				break;
+			case ObjectStreamConstants.TC_ARRAY:
+				scanArray();
+				break;
+			case ObjectStreamConstants.TC_ENUM:
+				scanClassDescriptor();
+				handles.add(null);
+				scanEnumName();
+				break;
+			case ObjectStreamConstants.TC_OBJECT:
+				scanObject();
+				break;
+			case ObjectStreamConstants.TC_EXCEPTION:
+				reset();
+				scanContent();
+				reset();
+				break;
+			case ObjectStreamConstants.TC_BLOCKDATA:
+				skip(readByte() & 0xFF);
+				break;
+			case ObjectStreamConstants.TC_BLOCKDATALONG:
+				skip(readLength());
+				break;
+			default:
+				throw new StreamCorruptedException(String.format("JFGObjectStreamScanner: Invalid type code: %02X", typeCode));
+		}
+	}
+	
+	/**
+	 * Scan a class descriptor (a new descriptor, a reference to a descriptor or null).
+	 */
+	private ClassDescriptor scanClassDescriptor() throws IOException {
+		int typeCode = readByte();
+		switch (typeCode) {
+			case ObjectStreamConstants.TC_NULL:
+				return null;
+			case ObjectStreamConstants.TC_REFERENCE:
+				ClassDescriptor referenced = handles.get(readHandle());
+				if (referenced == null) {
+					throw new StreamCorruptedException("JFGObjectStreamScanner: The reference is no class descriptor.");
+				}
+				return referenced;
+			case ObjectStreamConstants.TC_PROXYCLASSDESC:
+				ClassDescriptor proxy = new ClassDescriptor();
+				proxy.flags = ObjectStreamConstants.SC_SERIALIZABLE;
+				handles.add(proxy);
+				int interfaces = readInt();
+				for (int i = 0; i < interfaces; i++) {
+					skip(readUnsignedShort());
+				}
+				scanAnnotations();
+				proxy.superDescriptor = scanClassDescriptor();
+				return proxy;
+			case ObjectStreamConstants.TC_CLASSDESC:
+				ClassDescriptor descriptor = new ClassDescriptor();
+				handles.add(descriptor);
+				scanDescriptorFields(descriptor);
+				scanAnnotations();
+				descriptor.superDescriptor = scanClassDescriptor();
+				return descriptor;
+			default:
+				throw new StreamCorruptedException(String.format("JFGObjectStreamScanner: Invalid type code of a class descriptor: %02X", typeCode));
+		}
+	}
+	
+	/**
+	 * Scan the name, flags and fields of a class descriptor (or the id of a descriptor that was cached by a {@link JFGObjectOutputStream}).
+	 */
+	private void scanDescriptorFields(ClassDescriptor descriptor) throws IOException {
+		int type = JFGObjectOutputStream.DESCRIPTOR_UNCACHED;
+		if (cachedDescriptors) {
+			type = readByte();
+			if (type == JFGObjectOutputStream.DESCRIPTOR_CACHED) {
+				int id = readInt();
+				if (id < 0 || id >= descriptors.size()) {
+					throw new StreamCorruptedException("JFGObjectStreamScanner: Unknown class descriptor id: " + id);
+				}
+				descriptor.copyFields(descriptors.get(id));
+				return;
+			}
+			if (type != JFGObjectOutputStream.DESCRIPTOR_UNCACHED && type != JFGObjectOutputStream.DESCRIPTOR_NEW) {
+				throw new StreamCorruptedException("JFGObjectStreamScanner: Invalid class descriptor type: " + type);
+			}
+		}
+		int nameLength = readUnsignedShort();
+		need(nameLength);
+		if (nameLength >= 2 && data[position] == '[') {
+			descriptor.componentType = (char) data[position + 1];
+		}
+		position += nameLength;
+		//serialVersionUID
+		skip(8);
+		descriptor.flags = readByte();
+		int fields = readShort();
+		if (fields < 0) {
+			throw new StreamCorruptedException("JFGObjectStreamScanner: Invalid number of fields: " + fields);
+		}
+		for (int i = 0; i < fields; i++) {
+			char typeCode = (char) readByte();
+			skip(readUnsignedShort());
+			if (typeCode == 'L' || typeCode == '[') {
+				scanTypeString();
+				descriptor.objectFields++;
+			}
+			else {
+				descriptor.primitiveDataSize += getPrimitiveSize(typeCode);
+			}
+		}
+		if (type == JFGObjectOutputStream.DESCRIPTOR_NEW) {
+			descriptors.add(descriptor);
+		}
+	}
+	
+	/**
+	 * Scan the class name of an object field (a string or a reference to a string).
+	 */
+	private void scanTypeString() throws IOException {
+		int typeCode = readByte();
+		switch (typeCode) {
+			case ObjectStreamConstants.TC_NULL:
+				break;
+			case ObjectStreamConstants.TC_REFERENCE:
+				readHandle();
+				break;
+			case ObjectStreamConstants.TC_STRING:
+				skip(readUnsignedShort());
+				handles.add(null);
+				break;
+			case ObjectStreamConstants.TC_LONGSTRING:
+				skip(readLong());
+				handles.add(null);
+				break;
+			default:
+				throw new StreamCorruptedException(String.format("JFGObjectStreamScanner: Invalid type code of a type string: %02X", typeCode));
+		}
+	}
+	
+	/**
+	 * Scan the name of an enum constant.
+	 */
+	private void scanEnumName() throws IOException {
+		int typeCode = readByte();
+		if (typeCode == ObjectStreamConstants.TC_STRING) {
+			skip(readUnsignedShort());
+		}
+		else if (typeCode == ObjectStreamConstants.TC_LONGSTRING) {
+			skip(readLong());
+		}
+		else {
+			throw new StreamCorruptedException(String.format("JFGObjectStreamScanner: Invalid type code of an enum name: %02X", typeCode));
+		}
+		handles.add(null);
+	}
+	
+	/**
+	 * Scan the data that a class writes in addition to it's fields (block data and objects, till the end of the block data).
+	 */
+	private void scanAnnotations() throws IOException {
+		while (true) {
+			int typeCode = peekByte();
+			if (typeCode == ObjectStreamConstants.TC_BLOCKDATA) {
+				position++;
+				skip(readByte() & 0xFF);
+			}
+			else if (typeCode == ObjectStreamConstants.TC_BLOCKDATALONG) {
+				position++;
+				skip(readLength());
+			}
+			else if (typeCode == ObjectStreamConstants.TC_ENDBLOCKDATA) {
+				position++;
+				return;
+			}
+			else {
+				scanContent();
+			}
+		}
+	}
+	
+	private void scanArray() throws IOException {
+		ClassDescriptor descriptor = scanClassDescriptor();
+		if (descriptor == null || descriptor.componentType == 0) {
+			throw new StreamCorruptedException("JFGObjectStreamScanner: The class descriptor of an array is no array class.");
+		}
+		handles.add(null);
+		int length = readLength();
+		if (descriptor.componentType == 'L' || descriptor.componentType == '[') {
+			for (int i = 0; i < length; i++) {
+				scanContent();
+			}
+		}
+		else {
+			skip((long) length * getPrimitiveSize(descriptor.componentType));
+		}
+	}
+	
+	private void scanObject() throws IOException {
+		ClassDescriptor descriptor = scanClassDescriptor();
+		if (descriptor == null) {
+			throw new StreamCorruptedException("JFGObjectStreamScanner: An object has no class descriptor.");
+		}
+		handles.add(null);
+		if ((descriptor.flags & ObjectStreamConstants.SC_EXTERNALIZABLE) != 0) {
+			if ((descriptor.flags & ObjectStreamConstants.SC_BLOCK_DATA) == 0) {
+				throw new StreamCorruptedException("JFGObjectStreamScanner: Externalizable data of the stream protocol version 1 can't be scanned.");
+			}
+			scanAnnotations();
+		}
+		else {
+			scanClassData(descriptor);
+		}
+	}
+	
+	/**
+	 * Scan the fields of an object (starting with the fields of the super classes).
+	 */
+	private void scanClassData(ClassDescriptor descriptor) throws IOException {
+		if (descriptor.superDescriptor != null) {
+			scanClassData(descriptor.superDescriptor);
+		}
+		if ((descriptor.flags & ObjectStreamConstants.SC_SERIALIZABLE) != 0) {
+			skip(descriptor.primitiveDataSize);
+			for (int i = 0; i < descriptor.objectFields; i++) {
+				scanContent();
+			}
+			if ((descriptor.flags & ObjectStreamConstants.SC_WRITE_METHOD) != 0) {
+				scanAnnotations();
+			}
+		}
+	}
+	
+	/**
+	 * Forget all handles, like the ObjectInputStream does on a reset.
+	 */
+	private void reset() {
+		if (handles == handlesAtStart) {
+			//the handles are restored if the object is not complete
+			handles = new ArrayList<ClassDescriptor>();
+		}
+		else {
+			handles.clear();
+		}
+	}
+	
+	private int readHandle() throws IOException {
+		int handle = readInt() - ObjectStreamConstants.baseWireHandle;
+		if (handle < 0 || handle >= handles.size()) {
+			throw new StreamCorruptedException("JFGObjectStreamScanner: Invalid handle: " + handle);
+		}
+		return handle;
+	}
+	
+	private int readLength() throws IOException {
+		int length = readInt();
+		if (length < 0) {
+			throw new StreamCorruptedException("JFGObjectStreamScanner: Invalid length: " + length);
+		}
+		return length;
+	}
+	
+	private static int getPrimitiveSize(char typeCode) throws StreamCorruptedException {
+		switch (typeCode) {
+			case 'B':
+			case 'Z':
+				return 1;
+			case 'C':
+			case 'S':
+				return 2;
+			case 'I':
+			case 'F':
+				return 4;
+			case 'J':
+			case 'D':
+				return 8;
+			default:
+				throw new StreamCorruptedException("JFGObjectStreamScanner: Invalid field type code: " + typeCode);
+		}
+	}
+	
+	/**
+	 * Check that the next bytes were received. Otherwise the scan is stopped.
+	 */
+	private void need(long bytes) throws IncompleteException {
+		if (bytes > end - position) {
+			requiredSize = position - start + bytes;
+			throw INCOMPLETE;
+		}
+	}
+	
+	private void skip(long bytes) throws IncompleteException {
+		need(bytes);
+		position += (int) bytes;
+	}
+	
+	private int peekByte() throws IncompleteException {
+		need(1);
+		return data[position];
+	}
+	
+	private int readByte() throws IncompleteException {
+		need(1);
+		return data[position++];
+	}
+	
+	private int readShort() throws IncompleteException {
+		need(2);
+		int value = (short) (((data[position] & 0xFF) << 8) | (data[position + 1] & 0xFF));
+		position += 2;
+		return value;
+	}
+	
+	private int readUnsignedShort() throws IncompleteException {
+		return readShort() & 0xFFFF;
+	}
+	
+	private int readInt() throws IncompleteException {
+		need(4);
+		int value = ((data[position] & 0xFF) << 24) | ((data[position + 1] & 0xFF) << 16) | ((data[position + 2] & 0xFF) << 8) | (data[position + 3] & 0xFF);
+		position += 4;
+		return value;
+	}
+	
+	private long readLong() throws IOException {
+		long high = readInt() & 0xFFFFFFFFL;
+		long low = readInt() & 0xFFFFFFFFL;
+		long value = (high << 32) | low;
+		if (value < 0) {
+			throw new StreamCorruptedException("JFGObjectStreamScanner: Invalid length: " + value);
+		}
+		return value;
+	}
+	
+	/**
+	 * The layout of a class in the stream: the size of the primitive fields, the number of object fields and the super class.
+	 */
+	private static class ClassDescriptor {
+		
+		private int flags;
+		private char componentType;
+		private int primitiveDataSize;
+		private int objectFields;
+		private ClassDescriptor superDescriptor;
+		
+		/**
+		 * Copy the fields of a cached descriptor (the super class is sent again with every descriptor).
+		 */
+		private void copyFields(ClassDescriptor descriptor) {
+			flags = descriptor.flags;
+			componentType = descriptor.componentType;
+			primitiveDataSize = descriptor.primitiveDataSize;
+			objectFields = descriptor.objectFields;
+		}
+	}
+	
+	/**
+	 * Stops a scan when the object is not complete (without a stack trace, because it's thrown often).
+	 */
+	private static class IncompleteException extends IOException {
+		
+		private static final long serialVersionUID = -2213618125364818374L;
+		
+		@Override
+		public synchronized Throwable fillInStackTrace() {
+			return this;
+		}
+	}
+}
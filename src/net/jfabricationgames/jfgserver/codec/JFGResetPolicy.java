@@ -0,0 +1,96 @@
+package net.jfabricationgames.jfgserver.codec;
+
+/**
+ * The JFGResetPolicy decides when a {@link JFGObjectOutputStream} is reset.
+ * 
+ * An ObjectOutputStream keeps a reference to every object it has written (the handle table), so an object that is sent again is only sent as a reference.
+ * Without a reset the handle table (and the handle table of the receiving stream) grows with every message and the sent objects are never collected.
+ * A reset clears the handle tables on both sides. The class descriptors of a {@link JFGObjectOutputStream} are kept, so they are not sent again after a reset.
+ * 
+ * The stream is reset before a message is written if one of the limits is reached (a limit of 0 is not checked):
+ * <pre>
+ * //reset after every 100 messages or if more than 10000 objects are referenced
+ * new JFGResetPolicy(100, 0, 10000);
+ * </pre>
+ */
+public class JFGResetPolicy {
+	
+	/**
+	 * The stream is never reset (the handle table grows with every sent object).
+	 */
+	public static final JFGResetPolicy NEVER = new JFGResetPolicy(0, 0, 0);
+	/**
+	 * The stream is reset before every message, so a changed object is always sent with it's current state.
+	 */
+	public static final JFGResetPolicy EVERY_MESSAGE = new JFGResetPolicy(1, 0, 0);
+	
+	private final int messageLimit;
+	private final long byteLimit;
+	private final int handleLimit;
+	
+	/**
+	 * Create a new JFGResetPolicy.
+	 * 
+	 * @param messageLimit
+	 * 		The number of messages after which the stream is reset or 0.
+	 * 
+	 * @param byteLimit
+	 * 		The number of written bytes after which the stream is reset or 0.
+	 * 
+	 * @param handleLimit
+	 * 		The number of referenced objects (the size of the handle table) after which the stream is reset or 0.
+	 */
+	public JFGResetPolicy(int messageLimit, long byteLimit, int handleLimit) {
+		if (messageLimit < 0 || byteLimit < 0 || handleLimit < 0) {
+			throw new IllegalArgumentException("The limits of a reset policy can't be negative.");
+		}
+		this.messageLimit = messageLimit;
+		this.byteLimit = byteLimit;
+		this.handleLimit = handleLimit;
+	}
+	
+	/**
+	 * Create a policy that resets the stream after a number of messages.
+	 */
+	public static JFGResetPolicy everyMessages(int messages) {
+		return new JFGResetPolicy(messages, 0, 0);
+	}
+	/**
+	 * Create a policy that resets the stream after a number of written bytes.
+	 */
+	public static JFGResetPolicy everyBytes(long bytes) {
+		return new JFGResetPolicy(0, bytes, 0);
+	}
+	/**
+	 * Create a policy that resets the stream when the handle table exceeds a size.
+	 */
+	public static JFGResetPolicy handleLimit(int handles) {
+		return new JFGResetPolicy(0, 0, handles);
+	}
+	
+	/**
+	 * Check whether the stream needs to be reset before the next message is written.
+	 * 
+	 * @param out
+	 * 		The stream that is checked.
+	 * 
+	 * @return
+	 * 		True if one of the limits is reached.
+	 */
+	public boolean isResetNeeded(JFGObjectOutputStream out) {
+		return (messageLimit > 0 && out.getMessagesSinceReset() >= messageLimit) || (byteLimit > 0 && out.getBytesSinceReset() >= byteLimit)
+				|| (handleLimit > 0 && out.getHandleCount() >= handleLimit);
+	}
+	
+	public int getMessageLimit() {
+		return messageLimit;
+	}
+	
+	public long getByteLimit() {
+		return byteLimit;
+	}
+	
+	public int getHandleLimit() {
+		return handleLimit;
+	}
+}
@@ -0,0 +1,30 @@
+package net.jfabricationgames.jfgserver.codec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+/**
+ * The default {@link JFGMessageCodec} that uses the java serialization (just like the unframed object streams).
+ * 
+ * Every message is serialized with a new ObjectOutputStream, so the frames don't depend on each other.
+ */
+public class JFGSerializationCodec implements JFGMessageCodec {
+	
+	@Override
+	public byte[] encode(Object message) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(message);
+		out.flush();
+		return bytes.toByteArray();
+	}
+	
+	@Override
+	public Object decode(byte[] data, int offset, int length) throws IOException, ClassNotFoundException {
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data, offset, length));
+		return in.readObject();
+	}
+}
@@ -0,0 +1,95 @@
+package net.jfabricationgames.jfgserver.codec;
+
+import java.io.IOException;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import net.jfabricationgames.jfgserver.server.JFGServer;
+
+/**
+ * A JFGWriteBatch collects all messages that are sent by the current thread (to any connection or client) till the batch ends.
+ * When the batch ends every stream that was written is flushed once, so the messages of the batch need only one write per connection.
+ * 
+ * Batches can be nested. The messages are written when the outermost batch ends:
+ * <pre>
+ * JFGWriteBatch.begin();
+ * try {
+ * 	connection.sendMessage(message1);
+ * 	connection.sendMessage(message2);
+ * }
+ * finally {
+ * 	JFGWriteBatch.end();
+ * }
+ * </pre>
+ * In the auto flush mode every call of an interpreter is executed in a batch.
+ */
+public final class JFGWriteBatch {
+	
+	private static final ThreadLocal<JFGWriteBatch> currentBatch = new ThreadLocal<JFGWriteBatch>();
+	
+	private final Set<JFGCoalescingOutputStream> streams = new LinkedHashSet<JFGCoalescingOutputStream>();
+	private int depth;
+	
+	private JFGWriteBatch() {
+		
+	}
+	
+	/**
+	 * Start a batch in the current thread (or a nested batch if a batch is already started).
+	 */
+	public static void begin() {
+		JFGWriteBatch batch = currentBatch.get();
+		if (batch == null) {
+			batch = new JFGWriteBatch();
+			currentBatch.set(batch);
+		}
+		batch.depth++;
+	}
+	
+	/**
+	 * End the current batch. If it's the outermost batch all streams that were written in the batch are flushed.
+	 * 
+	 * @throws IllegalStateException
+	 * 		An {@link IllegalStateException} is thrown if no batch was started in the current thread.
+	 */
+	public static void end() throws IllegalStateException {
+		JFGWriteBatch batch = currentBatch.get();
+		if (batch == null) {
+			throw new IllegalStateException("No JFGWriteBatch was started in this thread.");
+		}
+		batch.depth--;
+		if (batch.depth == 0) {
+			currentBatch.remove();
+			for (JFGCoalescingOutputStream stream : batch.streams) {
+				try {
+					stream.flushNow();
+				}
+				catch (IOException ioe) {
+					JFGServer.printError(ioe, JFGServer.ERROR_LEVEL_INFO);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Check whether the current thread is in a batch.
+	 */
+	public static boolean isActive() {
+		return currentBatch.get() != null;
+	}
+	
+	/**
+	 * Add a stream to the current batch.
+	 * 
+	 * @return
+	 * 		False if the current thread is in no batch.
+	 */
+	static boolean add(JFGCoalescingOutputStream stream) {
+		JFGWriteBatch batch = currentBatch.get();
+		if (batch == null) {
+			return false;
+		}
+		batch.streams.add(stream);
+		return true;
+	}
+}
@@ -0,0 +1,28 @@
+package net.jfabricationgames.jfgserver.interpreter;
+
+import net.jfabricationgames.jfgserver.codec.JFGFrame;
+import net.jfabricationgames.jfgserver.codec.JFGMessageCodec;
+import net.jfabricationgames.jfgserver.server.JFGConnection;
+
+/**
+ * A JFGRelayInterpreter gets the received frames without decoding them, if the server uses a {@link JFGMessageCodec}.
+ * 
+ * Interpreters that only pass on the messages (like echo or broadcast interpreters) can route the frames using their flags and send the same bytes again.
+ * A message that is needed can still be decoded using {@link JFGFrame#decode(JFGMessageCodec)} with the connection's codec.
+ * 
+ * If the server uses no codec (or the connection needs the decoded messages itself, like secured connections) the messages are passed to
+ * {@link JFGServerInterpreter#interpreteServerMessage(net.jfabricationgames.jfgserver.client.JFGServerMessage, JFGConnection) interpreteServerMessage} as usual.
+ */
+public interface JFGRelayInterpreter extends JFGServerInterpreter {
+	
+	/**
+	 * Interpret a frame that was sent from the client (without decoding the message).
+	 * 
+	 * @param frame
+	 * 		The frame the client sent. Only frames containing a JFGServerMessage are passed on.
+	 * 
+	 * @param connection
+	 * 		The connection that received the frame.
+	 */
+	public void interpreteFrame(JFGFrame frame, JFGConnection connection);
+}
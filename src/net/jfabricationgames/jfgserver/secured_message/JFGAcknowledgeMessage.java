@@ -3,20 +3,71 @@ package net.jfabricationgames.jfgserver.secured_message;
 import net.jfabricationgames.jfgserver.client.JFGClientMessage;
 import net.jfabricationgames.jfgserver.client.JFGServerMessage;
 
+/**
+ * An acknowledgement for received secured messages.
+ *
+ * A single acknowledgement references the message id of one message.
+ * A cumulative acknowledgement references the send counts of the messages instead: All messages up to the cumulative send count were received
+ * and the selective acknowledgements name the ranges of messages that were received after a gap (e.g. because a message was lost).
+ * The receive window tells the sender how many messages after the cumulative send count the receiver can buffer.
+ */
 public class JFGAcknowledgeMessage implements JFGClientMessage, JFGServerMessage {
-	
+
 	private static final long serialVersionUID = 8900952077551743235L;
-	
+
 	private int acknoledgingMessageId;
-	
+
+	private boolean cumulative;
+	private int cumulativeSendCount;
+	private int[] selectiveAcknowledgements;
+	private int receiveWindow;
+
 	public JFGAcknowledgeMessage(int acknoledgingMessageId) {
 		this.acknoledgingMessageId = acknoledgingMessageId;
 	}
-	
+	/**
+	 * Create a cumulative acknowledgement.
+	 *
+	 * @param cumulativeSendCount
+	 * 		The send count of the last message that was received in order (all messages up to this count were received).
+	 *
+	 * @param selectiveAcknowledgements
+	 * 		The ranges of send counts that were received after a gap, as pairs of the first and the last send count of a range (both inclusive).
+	 * 		An empty array or null if there is no gap.
+	 * 
+	 * @param receiveWindow
+	 * 		The number of messages after the cumulative send count, that the receiver can buffer (or 0 if the window is unknown).
+	 */
+	public JFGAcknowledgeMessage(int cumulativeSendCount, int[] selectiveAcknowledgements, int receiveWindow) {
+		this.cumulative = true;
+		this.cumulativeSendCount = cumulativeSendCount;
+		this.selectiveAcknowledgements = selectiveAcknowledgements;
+		this.receiveWindow = receiveWindow;
+	}
+
 	public int getAcknoledgingMessageId() {
 		return acknoledgingMessageId;
 	}
 	public void setAcknoledgingMessageId(int acknoledgingMessageId) {
 		this.acknoledgingMessageId = acknoledgingMessageId;
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Check whether this is a cumulative acknowledgement (referencing send counts) or a single acknowledgement (referencing a message id).
+	 */
+	public boolean isCumulative() {
+		return cumulative;
+	}
+
+	public int getCumulativeSendCount() {
+		return cumulativeSendCount;
+	}
+
+	public int[] getSelectiveAcknowledgements() {
+		return selectiveAcknowledgements;
+	}
+	
+	public int getReceiveWindow() {
+		return receiveWindow;
+	}
+}
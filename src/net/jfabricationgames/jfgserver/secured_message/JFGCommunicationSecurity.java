@@ -1,46 +1,132 @@
 package net.jfabricationgames.jfgserver.secured_message;
 
+import java.io.IOException;
 import java.io.Serializable;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.ConcurrentModificationException;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import net.jfabricationgames.jfgserver.client.JFGClientMessage;
 import net.jfabricationgames.jfgserver.client.JFGServerMessage;
+import net.jfabricationgames.jfgserver.codec.JFGEncodedMessage;
+import net.jfabricationgames.jfgserver.codec.JFGMessageCodec;
+import net.jfabricationgames.jfgserver.secured_message.JFGHashedWheelTimer.Timeout;
 import net.jfabricationgames.jfgserver.server.JFGServer;
 
 public class JFGCommunicationSecurity {
 	
-	private Thread ackTimerThread;
+	private JFGHashedWheelTimer timer;
 	
 	private JFGSecureMessageClient client;
 	private JFGSecureMessageConnection connection;
 	
-	private Map<Integer, Serializable> securedMessages;
-	private Map<Integer, Integer> messageTimers;
-	private Map<Integer, Integer> messageCount;
+	private JFGIntMap<SecuredMessage> securedMessages;
+	private int acknowledgedSendCount;
+	private int lastSendCount;
+	private int sendWindowLimit = Integer.MAX_VALUE;
 	
-	private Map<Integer, Serializable> receivedMessages;
-	private Map<Integer, Integer> receivedMessageTimer;
+	private int sendWindowMessages = defaultSendWindowMessages;
+	private long sendWindowBytes = defaultSendWindowBytes;
+	private JFGSendWindowPolicy sendWindowPolicy = defaultSendWindowPolicy;
+	private long sendWindowTimeout = defaultSendWindowTimeout;
+	private long inFlightBytes;
+	
+	//the messages of the receiving thread that wait for the send window (see waitForSendWindow)
+	private final Queue<PendingMessage> pendingMessages = new ArrayDeque<PendingMessage>();
+	private volatile Thread receivingThread;
+	
+	private static int defaultSendWindowMessages = 0;
+	private static long defaultSendWindowBytes = 0;
+	private static JFGSendWindowPolicy defaultSendWindowPolicy = JFGSendWindowPolicy.BLOCK;
+	private static long defaultSendWindowTimeout = 10000;
+	
+	private JFGSecureMessageOrder acknowledgeOrder;
+	private int unacknowledgedMessages;
+	private Timeout acknowledgeTimeout;
+	
+	private long smoothedRoundTripTime = -1;
+	private long roundTripTimeVariation;
+	private long retransmissionTimeout = INITIAL_RETRANSMISSION_TIMEOUT;
+	private long lastBackoffTime;
+	private long retransmissions;
+	
+	//the sends of the timer tasks (re-sends and delayed ACKs), that are written by the writer of this instance
+	private final Queue<Runnable> writes = new ConcurrentLinkedQueue<Runnable>();
+	private final AtomicBoolean writerScheduled = new AtomicBoolean();
+	private final Runnable writer = new Runnable() {
+		
+		@Override
+		public void run() {
+			writeQueued();
+		}
+	};
+	
+	private static ExecutorService writerExecutor;
 	
 	/**
 	 * The time in seconds till a secured message is resent if no ACK arrived.
+	 * 
+	 * @deprecated
+	 * 		The time till a message is resent is calculated from the measured round trip time now (see {@link #getRetransmissionTimeout()}).
 	 */
+	@Deprecated
 	public static final int RESENT_MESSAGE = 5;
 	/**
 	 * The number of resent messages before the time (RESENT_MESSAGE) is increased by every send to avoid to many unnecessary messages.
+	 * 
+	 * @deprecated
+	 * 		The time till a message is resent is doubled by every re-send now.
 	 */
+	@Deprecated
 	public static final int RESENT_MESSAGE_INCREASE = 5;
+	/**
+	 * The time in milliseconds till a secured message is resent, before the round trip time was measured.
+	 */
+	public static final int INITIAL_RETRANSMISSION_TIMEOUT = 1000;
+	/**
+	 * The minimum time in milliseconds that is added to the smoothed round trip time for the variation of the round trip time,
+	 * when the retransmission timeout is calculated (needs to be bigger than the 'ACKNOWLEDGE_DELAY').
+	 */
+	public static final int MIN_RETRANSMISSION_TIMEOUT = 200;
+	/**
+	 * The maximum time in milliseconds till a secured message is resent.
+	 */
+	public static final int MAX_RETRANSMISSION_TIMEOUT = 60000;
 	/**
 	 * The number of resent messages before the message is given up.
 	 */
 	public static final int RESENT_MESSAGE_MAX = 20;
 	/**
 	 * The time in seconds a received message is stored to prevent interpreting resent messages a second time.
+	 * 
+	 * @deprecated
+	 * 		Received messages are not stored anymore. Resent messages are recognized by their send count (see {@link JFGSecureMessageOrder#isReceived(Serializable)}).
 	 */
+	@Deprecated
 	public static final int STORE_RECEIVED_MESSAGES = 60;
+	/**
+	 * The time in milliseconds a cumulative ACK is delayed, so it acknowledges all messages received in this time.
+	 */
+	public static final int ACKNOWLEDGE_DELAY = 20;
+	/**
+	 * The number of received messages after which a cumulative ACK is sent without waiting for the delay.
+	 */
+	public static final int ACKNOWLEDGE_MESSAGES = 16;
+	/**
+	 * The maximum number of ranges of messages received after a gap, that are acknowledged selectively in a cumulative ACK.
+	 */
+	public static final int SELECTIVE_ACKNOWLEDGE_RANGES = 4;
+	/**
+	 * The maximum number of messages that wait for the send window, because they were sent by the thread that receives the ACKs.
+	 */
+	public static final int PENDING_MESSAGES_MAX = 1000;
 	
 	public JFGCommunicationSecurity(JFGSecureMessageClient client) {
 		this.client = client;
@@ -52,18 +138,87 @@ public class JFGCommunicationSecurity {
 	}
 	
 	private void init() {
-		securedMessages = new HashMap<Integer, Serializable>();
-		messageTimers = new HashMap<Integer, Integer>();
-		messageCount = new HashMap<Integer, Integer>();
-		receivedMessages = new HashMap<Integer, Serializable>();
-		receivedMessageTimer = new HashMap<Integer, Integer>();
-		ackTimerThread = createAckTimerThread();
-		ackTimerThread.start();
+		securedMessages = new JFGIntMap<SecuredMessage>();
+		timer = JFGHashedWheelTimer.getSharedTimer();
+		lastBackoffTime = System.nanoTime();
+	}
+	
+	/**
+	 * Add the next send count to a message and secure it, if the send window has room for the message.
+	 * 
+	 * If the number of secured messages that were not acknowledged yet (or their size in bytes) reached the limit of the send window
+	 * (see {@link #setSendWindow(int, long, JFGSendWindowPolicy)}), the {@link JFGSendWindowPolicy} decides whether the sending thread waits or the message is rejected.
+	 * The send count is added after the window has room, so a rejected message doesn't leave a gap in the send counts.
+	 * 
+	 * The thread that receives the ACKs (see {@link #setReceivingThread(Thread)}) can't wait for the window. It's messages are queued
+	 * and sent by the writer of this instance, when a received ACK makes room in the window.
+	 * 
+	 * The message is encoded directly (with it's send count). The encoded message is sent and re-sent, so a re-send contains exactly
+	 * the same bytes, even if the message object was changed in the meantime.
+	 * 
+	 * @param message
+	 * 		The message that is secured.
+	 * 
+	 * @param messageOrder
+	 * 		The message order that adds the send count.
+	 * 
+	 * @return
+	 * 		The encoded message that is to be sent or null if the message is not secured (e.g. an ACK), so the message itself is to be sent.
+	 * 		Null is also returned for a secured message that was queued, because the send window is full (it's sent by this instance then).
+	 * 
+	 * @throws JFGSecureCommunicationException
+	 * 		A JFGSecureCommunicationException is thrown when the message can't be secured or encoded or the send window stays full.
+	 */
+	public JFGEncodedMessage secureMessage(Serializable message, JFGSecureMessageOrder messageOrder) {
+		if (!isSecured(message)) {
+			messageOrder.addSendCount(message);
+			secureMessage(message);
+			return null;
+		}
+		synchronized (this) {
+			if (Thread.currentThread() == receivingThread && sendWindowPolicy == JFGSendWindowPolicy.BLOCK && (!isSendWindowOpen() || !pendingMessages.isEmpty())) {
+				//waiting would block the ACKs that open the window
+				if (pendingMessages.size() >= PENDING_MESSAGES_MAX) {
+					throw new JFGSecureCommunicationException("The message was rejected because the send window is full and " + PENDING_MESSAGES_MAX + 
+							" messages are waiting for it already.");
+				}
+				pendingMessages.add(new PendingMessage(message, messageOrder));
+				return null;
+			}
+			waitForSendWindow();
+			messageOrder.addSendCount(message);
+			if (message instanceof JFGSecuredEnvelope) {
+				piggybackAcknowledge((JFGSecuredEnvelope) message);
+			}
+			return secureMessage(message, encode(message));
+		}
+	}
+	
+	/**
+	 * Add the acknowledgement of the received messages to an envelope that is sent (called while holding the lock of this object).
+	 * 
+	 * If no message is buffered after a gap, the envelope acknowledges everything a delayed cumulative ACK would acknowledge, so the delayed ACK is not sent.
+	 */
+	private void piggybackAcknowledge(JFGSecuredEnvelope envelope) {
+		if (acknowledgeOrder == null) {
+			//nothing received yet
+			return;
+		}
+		envelope.setAcknowledgement(acknowledgeOrder.getLastReceived(), acknowledgeOrder.getWindowSize());
+		if (unacknowledgedMessages > 0 && acknowledgeOrder.getMessagesInBuffer() == 0) {
+			unacknowledgedMessages = 0;
+			if (acknowledgeTimeout != null) {
+				acknowledgeTimeout.cancel();
+				acknowledgeTimeout = null;
+			}
+		}
 	}
 	
 	/**
 	 * Secure the message by checking if the receiver sends an ACK-Message back.
-	 * If no ACK arrives after 'RESENT_MESSAGE' seconds the message is re-send.
+	 * If no ACK arrives in the retransmission timeout (see {@link #getRetransmissionTimeout()}) the message is re-send.
+	 * 
+	 * The message doesn't use the send window (see {@link #secureMessage(Serializable, JFGSecureMessageOrder)}).
 	 * 
 	 * @param message
 	 * 		The message that is secured. The message needs to implement SecurableMessage to be secured.
@@ -72,59 +227,329 @@ public class JFGCommunicationSecurity {
 	 * 		A JFGSecureCommunicationException is thrown when the message that is to be secured doesn't implement SecurableMessage.
 	 */
 	public void secureMessage(Serializable message) {
-		if (!(message instanceof JFGReloginMessage && ((JFGReloginMessage) message).getType() == JFGReloginMessage.ReloginMessageType.SERVER_RELOGIN_REQUEST) && message instanceof JFGSecurableMessage) {
-			JFGSecurableMessage msg = (JFGSecurableMessage) message;
+		if (isSecured(message)) {
+			JFGEncodedMessage encodedMessage = encode(message);
 			synchronized (this) {
-				securedMessages.put(msg.getMessageId(), message);
-				messageTimers.put(msg.getMessageId(), 0);
-				messageCount.put(msg.getMessageId(), 0);				
+				secureMessage(message, encodedMessage);
 			}
 		}
-		else if (!(message instanceof JFGAcknowledgeMessage)) {
+		else if (!(message instanceof JFGAcknowledgeMessage) && !(message instanceof JFGReloginMessage)) {
 			throw new JFGSecureCommunicationException("The message sent can't be secured because it doesn't implement JFGSecurableMessage.");
 		}
 	}
+	
+	/**
+	 * Check whether a message is secured (the re-login requests of the server are not secured, because the connection is closed after them).
+	 */
+	static boolean isSecured(Serializable message) {
+		return message instanceof JFGSecurableMessage && !(message instanceof JFGReloginMessage && 
+				((JFGReloginMessage) message).getType() == JFGReloginMessage.ReloginMessageType.SERVER_RELOGIN_REQUEST);
+	}
+	
+	/**
+	 * Secure a message that uses a send count (called while holding the lock of this object).
+	 */
+	private JFGEncodedMessage secureMessage(Serializable message, JFGEncodedMessage encodedMessage) {
+		JFGSecurableMessage msg = (JFGSecurableMessage) message;
+		//encode the message now, so later changes of the message object are not sent
+		int size = getEncodedSize(encodedMessage);
+		SecuredMessage securedMessage = new SecuredMessage(encodedMessage, msg.getMessageId(), msg.getSendCount(), size, System.nanoTime());
+		if (message instanceof JFGSecuredEnvelope) {
+			securedMessage.envelope = (JFGSecuredEnvelope) message;
+		}
+		securedMessage.relogin = message instanceof JFGReloginMessage;
+		SecuredMessage previous = securedMessages.put(msg.getSendCount(), securedMessage);
+		if (previous != null) {
+			previous.timeout.cancel();
+			inFlightBytes -= previous.size;
+		}
+		inFlightBytes += size;
+		if (msg.getSendCount() <= acknowledgedSendCount) {
+			//the send count was started again (e.g. by a new message order); the window of the old send counts is not used
+			acknowledgedSendCount = msg.getSendCount() - 1;
+			sendWindowLimit = Integer.MAX_VALUE;
+		}
+		lastSendCount = msg.getSendCount();
+		scheduleResend(securedMessage);
+		return encodedMessage;
+	}
+	
+	/**
+	 * Wait till the send window has room for a message or reject the message (called while holding the lock of this object).
+	 */
+	private void waitForSendWindow() {
+		if (isSendWindowOpen() && pendingMessages.isEmpty()) {
+			return;
+		}
+		if (sendWindowPolicy == JFGSendWindowPolicy.REJECT) {
+			throw new JFGSecureCommunicationException("The message was rejected because the send window is full (" + securedMessages.size() + " messages; " + 
+					inFlightBytes + " bytes; receive window up to send count " + sendWindowLimit + ").");
+		}
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(sendWindowTimeout);
+		//the queued messages of the receiving thread are sent first
+		while (!isSendWindowOpen() || !pendingMessages.isEmpty()) {
+			long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+			if (remaining <= 0) {
+				throw new JFGSecureCommunicationException("The send window is still full after " + sendWindowTimeout + " milliseconds (" + securedMessages.size() + 
+						" messages; " + inFlightBytes + " bytes; receive window up to send count " + sendWindowLimit + ").");
+			}
+			try {
+				wait(remaining);
+			}
+			catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				throw new JFGSecureCommunicationException("Interrupted while waiting for the send window.", ie);
+			}
+		}
+	}
+	
+	/**
+	 * Check whether the send window has room for a message (the size of the message is not known before it's encoded with it's send count,
+	 * so the bytes of the last message may exceed the window).
+	 * 
+	 * The next send count also has to fit into the receive window that the receiver advertised in it's last ACK (see {@link #getSendWindowLimit()}),
+	 * because the receiver drops the messages that don't fit into it's reorder window.
+	 */
+	private boolean isSendWindowOpen() {
+		return lastSendCount < sendWindowLimit && (sendWindowMessages <= 0 || securedMessages.size() < sendWindowMessages) && 
+				(sendWindowBytes <= 0 || inFlightBytes < sendWindowBytes);
+	}
+	
+	/**
+	 * Create the encoded message for a message that is sent by the client or connection (the message is encoded when it's secured).
+	 */
+	private JFGEncodedMessage encode(Serializable message) {
+		try {
+			if (client != null) {
+				return JFGEncodedMessage.ofServerMessage((JFGServerMessage) message);
+			}
+			return new JFGEncodedMessage((JFGClientMessage) message);
+		}
+		catch (ClassCastException cce) {
+			throw new JFGSecureCommunicationException("Couldn't encode a message.", cce);
+		}
+	}
+	
+	/**
+	 * Get the number of bytes a message needs on the wire, using the codec of the client or connection (the message is encoded if it's not encoded yet).
+	 */
+	private int getEncodedSize(JFGEncodedMessage encodedMessage) {
+		try {
+			return encodedMessage.getEncodedSize(getMessageCodec());
+		}
+		catch (IOException ioe) {
+			throw new JFGSecureCommunicationException("Couldn't encode a message.", ioe);
+		}
+	}
+	
+	private JFGMessageCodec getMessageCodec() {
+		return client != null ? client.getMessageCodec() : connection.getMessageCodec();
+	}
+	
 	/**
 	 * Receive an ACK-Message from the receiver of a message sent.
 	 * 
+	 * A cumulative ACK acknowledges all messages up to it's send count and the messages in it's selective ranges.
+	 * 
+	 * The ACK is used to measure the round trip time, using the newest acknowledged message that was not resent
+	 * (the ACK of a resent message could belong to any of it's transmissions).
+	 * 
 	 * @param ackMessage
-	 * 		The acknowledge message containing the acknowledgement id.
+	 * 		The acknowledge message containing the acknowledgement id or the acknowledged send counts.
 	 */
 	public void receiveAcknoledgeMessage(JFGAcknowledgeMessage ackMessage) {
-		int ackId = ackMessage.getAcknoledgingMessageId();
-		//synchronize using this object to be sure to not get a concurrent modification in the timer thread
+		long receiveTime = System.nanoTime();
+		List<SecuredMessage> pendingSends;
+		//synchronize using this object to be sure to not get a concurrent modification in the timer tasks
 		synchronized (this) {
-			messageTimers.remove(ackId);
-			securedMessages.remove(ackId);
-			messageCount.remove(ackId);
+			long newestSendTime = -1;
+			if (ackMessage.isCumulative()) {
+				int cumulativeSendCount = ackMessage.getCumulativeSendCount();
+				if (cumulativeSendCount > acknowledgedSendCount) {
+					newestSendTime = acknowledgeSendCounts(acknowledgedSendCount + 1, cumulativeSendCount, newestSendTime);
+					acknowledgedSendCount = cumulativeSendCount;
+				}
+				if (ackMessage.getReceiveWindow() > 0 && cumulativeSendCount >= acknowledgedSendCount) {
+					//the window of an older ACK (e.g. piggybacked by a re-sent envelope) is not used
+					int previousLimit = sendWindowLimit;
+					sendWindowLimit = (int) Math.min(Integer.MAX_VALUE, (long) cumulativeSendCount + ackMessage.getReceiveWindow());
+					if (sendWindowLimit > previousLimit) {
+						resendDeferredMessages(previousLimit + 1, sendWindowLimit);
+					}
+				}
+				int[] ranges = ackMessage.getSelectiveAcknowledgements();
+				if (ranges != null) {
+					for (int i = 0; i + 1 < ranges.length; i += 2) {
+						newestSendTime = acknowledgeSendCounts(Math.max(ranges[i], acknowledgedSendCount + 1), ranges[i + 1], newestSendTime);
+					}
+				}
+			}
+			else {
+				//single ACKs are only used for the re-login messages, so the message can be searched
+				int messageId = ackMessage.getAcknoledgingMessageId();
+				for (int sendCount : securedMessages.keys()) {
+					if (securedMessages.get(sendCount).messageId == messageId) {
+						newestSendTime = acknowledge(sendCount);
+					}
+				}
+			}
+			if (newestSendTime != -1) {
+				updateRoundTripTime(TimeUnit.NANOSECONDS.toMicros(receiveTime - newestSendTime));
+			}
+			pendingSends = securePendingMessages();
+			//wake up the senders that wait for the send window
+			notifyAll();
+		}
+		sendPendingMessages(pendingSends);
+	}
+	
+	/**
+	 * Secure the queued messages that fit into the send window now, in the order they were sent (called while holding the lock of this object).
+	 * 
+	 * @return
+	 * 		The secured messages that are to be sent.
+	 */
+	private List<SecuredMessage> securePendingMessages() {
+		List<SecuredMessage> pendingSends = new ArrayList<SecuredMessage>();
+		while (!pendingMessages.isEmpty() && isSendWindowOpen()) {
+			PendingMessage pendingMessage = pendingMessages.poll();
+			try {
+				pendingMessage.messageOrder.addSendCount(pendingMessage.message);
+				if (pendingMessage.message instanceof JFGSecuredEnvelope) {
+					piggybackAcknowledge((JFGSecuredEnvelope) pendingMessage.message);
+				}
+				secureMessage(pendingMessage.message, encode(pendingMessage.message));
+				pendingSends.add(securedMessages.get(((JFGSecurableMessage) pendingMessage.message).getSendCount()));
+			}
+			catch (JFGSecureCommunicationException sce) {
+				JFGServer.printError(sce, JFGServer.ERROR_LEVEL_ERROR);
+			}
+		}
+		return pendingSends;
+	}
+	/**
+	 * Let the writer of this instance send the queued messages that were secured (without holding the lock of this object).
+	 */
+	private void sendPendingMessages(List<SecuredMessage> pendingSends) {
+		for (final SecuredMessage pendingSend : pendingSends) {
+			write(new Runnable() {
+				
+				@Override
+				public void run() {
+					resendMessage(pendingSend);
+				}
+			});
+		}
+	}
+	
+	/**
+	 * Receive the acknowledgement that is piggybacked by a received envelope (like a cumulative ACK without selective ranges).
+	 * 
+	 * @param envelope
+	 * 		The received envelope.
+	 */
+	public void receivePiggybackedAcknowledge(JFGSecuredEnvelope envelope) {
+		if (envelope.isAcknowledging()) {
+			receiveAcknoledgeMessage(new JFGAcknowledgeMessage(envelope.getAcknowledgedSendCount(), null, envelope.getReceiveWindow()));
+		}
+	}
+	
+	/**
+	 * Acknowledge all messages in a range of the send counts (called while holding the lock of this object).
+	 * 
+	 * @return
+	 * 		The newest send time of a message that was not resent (including the given send time) or -1 if there is no such message.
+	 */
+	private long acknowledgeSendCounts(int first, int last, long newestSendTime) {
+		if ((long) last - first >= securedMessages.size()) {
+			//the range is bigger than the number of secured messages
+			for (int sendCount : securedMessages.keys()) {
+				if (sendCount >= first && sendCount <= last) {
+					newestSendTime = newest(acknowledge(sendCount), newestSendTime);
+				}
+			}
+		}
+		else {
+			for (int sendCount = first; sendCount <= last; sendCount++) {
+				newestSendTime = newest(acknowledge(sendCount), newestSendTime);
+			}
+		}
+		return newestSendTime;
+	}
+	
+	private static long newest(long sendTime, long newestSendTime) {
+		if (sendTime != -1 && (newestSendTime == -1 || sendTime - newestSendTime > 0)) {
+			return sendTime;
 		}
+		return newestSendTime;
+	}
+	
+	/**
+	 * Stop securing an acknowledged message (called while holding the lock of this object).
+	 * 
+	 * @return
+	 * 		The send time of the message or -1 if the message was resent or is not secured (and can't be used to measure the round trip time).
+	 */
+	private long acknowledge(int sendCount) {
+		SecuredMessage securedMessage = securedMessages.remove(sendCount);
+		if (securedMessage == null) {
+			return -1;
+		}
+		securedMessage.timeout.cancel();
+		inFlightBytes -= securedMessage.size;
+		if (securedMessage.resendCount > 0) {
+			return -1;
+		}
+		return securedMessage.sendTime;
+	}
+	
+	/**
+	 * Update the smoothed round trip time and it's variation by a new measurement and calculate the retransmission timeout (as described in RFC 6298):
+	 * <pre>
+	 * RTTVAR = 3/4 * RTTVAR + 1/4 * |SRTT - R|
+	 * SRTT = 7/8 * SRTT + 1/8 * R
+	 * RTO = SRTT + max(MIN_RETRANSMISSION_TIMEOUT, 4 * RTTVAR)
+	 * </pre>
+	 * The minimum is applied to the variation (instead of the whole timeout), because the round trip time of a busy connection grows with
+	 * the messages that wait to be interpreted, while it's variation stays small. A minimum of the whole timeout would lead to unnecessary re-sends then.
+	 * 
+	 * @param roundTripTime
+	 * 		The measured round trip time in microseconds.
+	 */
+	private void updateRoundTripTime(long roundTripTime) {
+		if (smoothedRoundTripTime == -1) {
+			//the first measurement
+			smoothedRoundTripTime = roundTripTime;
+			roundTripTimeVariation = roundTripTime / 2;
+		}
+		else {
+			roundTripTimeVariation = (3 * roundTripTimeVariation + Math.abs(smoothedRoundTripTime - roundTripTime)) / 4;
+			smoothedRoundTripTime = (7 * smoothedRoundTripTime + roundTripTime) / 8;
+		}
+		long variation = Math.max(TimeUnit.MILLISECONDS.toMicros(MIN_RETRANSMISSION_TIMEOUT), 4 * roundTripTimeVariation);
+		retransmissionTimeout = Math.min(MAX_RETRANSMISSION_TIMEOUT, TimeUnit.MICROSECONDS.toMillis(smoothedRoundTripTime + variation + 999));
 	}
 	
 	/**
 	 * Check if a message that was received was already received a previous time (resent because the ACK was lost).
-	 * The messages received are stored for 'STORE_RECEIVED_MESSAGES' seconds.
 	 * 
 	 * @param message
 	 * 		The received message.
 	 * 
 	 * @return
 	 * 		Returns true if the message is already known.
+	 * 
+	 * @deprecated
+	 * 		Resent messages are recognized by their send count in the message order that received them (see {@link JFGSecureMessageOrder#isReceived(Serializable)}).
+	 * 		This method only knows the message order that received the last message.
 	 */
+	@Deprecated
 	public boolean isResentMessage(Serializable message) {
-		if (message instanceof JFGSecurableMessage) {
-			JFGSecurableMessage msg = (JFGSecurableMessage) message;
-			Serializable received = receivedMessages.get(msg.getMessageId()); 
-			if (received == null) {
-				return false;
-			}
-			else {
-				return message.equals(received);
-			}
-		}
-		else {
-			//the message was unsecured
-			return false;
+		JFGSecureMessageOrder messageOrder;
+		synchronized (this) {
+			messageOrder = acknowledgeOrder;
 		}
+		return messageOrder != null && messageOrder.isReceived(message);
 	}
 	
 	/**
@@ -136,114 +561,479 @@ public class JFGCommunicationSecurity {
 	public void sendAcknowledge(Serializable message) {
 		if (message instanceof JFGSecurableMessage) {
 			JFGSecurableMessage msg = (JFGSecurableMessage) message;
-			JFGAcknowledgeMessage ackMessage = new JFGAcknowledgeMessage(msg.getMessageId());
-			if (client != null) {
-				client.sendMessage(ackMessage);
+			sendAcknowledgeMessage(new JFGAcknowledgeMessage(msg.getMessageId()));
+		}
+	}
+	
+	/**
+	 * Acknowledge a received message using a cumulative ACK, that acknowledges all messages received in order and the ranges received after a gap.
+	 * 
+	 * The ACK is delayed by 'ACKNOWLEDGE_DELAY' milliseconds (or till 'ACKNOWLEDGE_MESSAGES' messages were received), so one ACK is sent for
+	 * many messages. If the message opened or closed a gap, didn't fit into the reorder window or was resent, the ACK should be sent directly,
+	 * so the sender gets to know about the gap or the window.
+	 * 
+	 * @param messageOrder
+	 * 		The message order that received the message.
+	 * 
+	 * @param immediately
+	 * 		Send the ACK without delay.
+	 */
+	public void acknowledgeReceived(JFGSecureMessageOrder messageOrder, boolean immediately) {
+		synchronized (this) {
+			acknowledgeOrder = messageOrder;
+			unacknowledgedMessages++;
+			if (!immediately && unacknowledgedMessages < ACKNOWLEDGE_MESSAGES) {
+				if (acknowledgeTimeout == null) {
+					acknowledgeTimeout = timer.newTimeout(new Runnable() {
+						
+						@Override
+						public void run() {
+							write(new Runnable() {
+								
+								@Override
+								public void run() {
+									sendCumulativeAcknowledge();
+								}
+							});
+						}
+					}, ACKNOWLEDGE_DELAY);
+				}
+				return;
 			}
-			else {
-				connection.sendMessage(ackMessage);
+		}
+		sendCumulativeAcknowledge();
+	}
+	
+	/**
+	 * Send a cumulative ACK for all messages that were received since the last ACK (if any).
+	 */
+	private void sendCumulativeAcknowledge() {
+		JFGSecureMessageOrder messageOrder;
+		synchronized (this) {
+			if (unacknowledgedMessages == 0) {
+				//already acknowledged
+				return;
 			}
+			unacknowledgedMessages = 0;
+			if (acknowledgeTimeout != null) {
+				acknowledgeTimeout.cancel();
+				acknowledgeTimeout = null;
+			}
+			messageOrder = acknowledgeOrder;
+		}
+		sendAcknowledgeMessage(new JFGAcknowledgeMessage(messageOrder.getLastReceived(), messageOrder.getReceivedRanges(SELECTIVE_ACKNOWLEDGE_RANGES),
+				messageOrder.getWindowSize()));
+	}
+	
+	private void sendAcknowledgeMessage(JFGAcknowledgeMessage ackMessage) {
+		if (client != null) {
+			client.sendMessage(ackMessage);
+		}
+		else {
+			connection.sendMessage(ackMessage);
 		}
 	}
 	
 	/**
-	 * Send a message that didn't reach the destination a second time.
+	 * Let the writer of this instance send a message for a timer task, so the threads of the shared timer never wait for a slow client or connection.
 	 * 
-	 * @param messageId
-	 * 		The id of the message that was lost.
+	 * The sends are written in the order they were added, by one thread at a time. A connection with an outbound queue only adds the message to it's queue,
+	 * so the send is executed directly.
 	 */
-	private void resendMessage(int messageId) {
-		if (client != null) {
-			try {
-				synchronized (client) {
-					client.resetOutput();
-					client.resendMessage((JFGServerMessage) securedMessages.get(messageId));
+	private void write(Runnable send) {
+		if (connection != null && connection.getOutboundQueue() != null) {
+			send.run();
+			return;
+		}
+		writes.add(send);
+		if (writerScheduled.compareAndSet(false, true)) {
+			getWriterExecutor().execute(writer);
+		}
+	}
+	/**
+	 * Write the queued sends (executed by the writer executor).
+	 */
+	private void writeQueued() {
+		do {
+			Runnable send;
+			while ((send = writes.poll()) != null) {
+				try {
+					send.run();
+				}
+				catch (RuntimeException re) {
+					JFGServer.printError(re, JFGServer.ERROR_LEVEL_DEBUG);
 				}
 			}
-			catch (ClassCastException cce) {
-				throw new JFGSecureCommunicationException("Couldn't resent a message.", cce);
+			writerScheduled.set(false);
+			//a send that was added after the queue was empty, but before the flag was cleared, is written here
+		} while (!writes.isEmpty() && writerScheduled.compareAndSet(false, true));
+	}
+	/**
+	 * Get the threads that write the sends of the timer tasks. Every instance has at most one writer task at a time, so the waiting tasks are bounded by the number of instances.
+	 */
+	private static synchronized ExecutorService getWriterExecutor() {
+		if (writerExecutor == null) {
+			int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+			writerExecutor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+				
+				@Override
+				public Thread newThread(Runnable task) {
+					Thread thread = new Thread(task, "JFGCommunicationSecurity-writer");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return writerExecutor;
+	}
+	
+	/**
+	 * Send a message that didn't reach the destination a second time.
+	 * 
+	 * The bytes that were encoded when the message was secured are sent again, so the message is not encoded again.
+	 * A client or connection with a codec re-sends the frame. An object stream would have to be reset around the serialized bytes,
+	 * so they are re-sent in a {@link JFGSecuredEnvelope} with the message's send count instead, that is written like any other message.
+	 * Only the re-login messages are re-sent as they are, because the receiver handles them before the message order.
+	 * 
+	 * @param securedMessage
+	 * 		The secured message that was lost.
+	 */
+	private void resendMessage(SecuredMessage securedMessage) {
+		if (getMessageCodec() != null || securedMessage.relogin) {
+			if (client != null) {
+				client.resendMessage(securedMessage.encodedMessage);
+			}
+			else {
+				connection.resendMessage(securedMessage.encodedMessage);
 			}
+			return;
+		}
+		JFGSecuredEnvelope envelope;
+		if (securedMessage.envelope != null) {
+			//the payload of an envelope is never changed, so it's sent again without a second envelope
+			envelope = securedMessage.envelope.copyForResend();
 		}
 		else {
 			try {
-				synchronized (connection) {
-					connection.resetOutput();
-					connection.resendMessage((JFGClientMessage) securedMessages.get(messageId));
-				}
+				envelope = new JFGSecuredEnvelope(securedMessage.encodedMessage.getSerializedData(), securedMessage.messageId, securedMessage.sendCount);
 			}
-			catch (ClassCastException cce) {
-				throw new JFGSecureCommunicationException("Couldn't resent a message.", cce);
+			catch (IOException ioe) {
+				JFGServer.printError(ioe, JFGServer.ERROR_LEVEL_ERROR);
+				return;
 			}
 		}
+		if (client != null) {
+			client.resendEnvelope(envelope);
+		}
+		else {
+			connection.resendEnvelope(envelope);
+		}
+	}
+	
+	/**
+	 * Schedule the next re-send of a secured message (called while holding the lock of this object).
+	 * 
+	 * The message is re-sent after the retransmission timeout, that is doubled by every further re-send of the message (exponential backoff).
+	 * The first re-send already uses the doubled timeout, because the timeout is backed off when the first message expires.
+	 */
+	private void scheduleResend(SecuredMessage securedMessage) {
+		long delay = retransmissionTimeout;
+		for (int i = 1; i < securedMessage.resendCount && delay < MAX_RETRANSMISSION_TIMEOUT; i++) {
+			delay *= 2;
+		}
+		delay = Math.min(delay, MAX_RETRANSMISSION_TIMEOUT);
+		securedMessage.timeout = timer.newTimeout(securedMessage, delay);
 	}
 	
-	private Thread createAckTimerThread() {
-		Thread ackTimerThread = new Thread(new Runnable() {
+	/**
+	 * Re-send a message that was not acknowledged in time (called by the timer) and schedule the next re-send.
+	 * The message is sent by the writer of this instance (see {@link #write(Runnable)}).
+	 */
+	private void resendExpiredMessage(final SecuredMessage securedMessage) {
+		List<SecuredMessage> pendingSends = null;
+		boolean deferred;
+		synchronized (this) {
+			if (securedMessages.get(securedMessage.sendCount) != securedMessage) {
+				//acknowledged while the timer expired
+				return;
+			}
+			//a message outside of the advertised window was dropped by the receiver; it's resent when the window has moved on
+			securedMessage.deferred = securedMessage.sendCount > sendWindowLimit;
+			securedMessage.resendCount++;
+			if (!securedMessage.deferred) {
+				retransmissions++;
+			}
+			if (!securedMessage.deferred && securedMessage.resendCount == 1 && securedMessage.sendTime - lastBackoffTime >= 0) {
+				//back off the retransmission timeout, but only once for all messages that were sent before the last backoff
+				retransmissionTimeout = Math.min(MAX_RETRANSMISSION_TIMEOUT, retransmissionTimeout * 2);
+				lastBackoffTime = System.nanoTime();
+			}
+			if (securedMessage.resendCount > RESENT_MESSAGE_MAX) {
+				//the message was sent to often -> remove it
+				securedMessages.remove(securedMessage.sendCount);
+				inFlightBytes -= securedMessage.size;
+				pendingSends = securePendingMessages();
+				notifyAll();
+				JFGServer.printError("JFGCommunicationSecurity: Message lost (ackId: " + securedMessage.messageId + 
+						"); The message was sen't " + RESENT_MESSAGE_MAX + " times without receiving an ACK", JFGServer.ERROR_LEVEL_DEBUG);
+			}
+			else {
+				scheduleResend(securedMessage);
+			}
+			deferred = securedMessage.deferred;
+		}
+		if (pendingSends != null) {
+			sendPendingMessages(pendingSends);
+		}
+		if (deferred) {
+			return;
+		}
+		//re-send the message without holding the lock, because the sending client or connection may be locked while sending a new message
+		write(new Runnable() {
+			
 			@Override
 			public void run() {
-				try {
-					List<Integer> removeMessage = new ArrayList<Integer>();
-					while (true) {
-						try {
-							synchronized (JFGCommunicationSecurity.this) {
-								removeMessage.clear();
-								for (int messageId : messageTimers.keySet()) {
-									int timer = messageTimers.get(messageId);
-									int resentThreshold = RESENT_MESSAGE;
-									if (messageCount.get(messageId) > RESENT_MESSAGE_INCREASE) {
-										resentThreshold += (messageCount.get(messageId) - RESENT_MESSAGE_INCREASE) * RESENT_MESSAGE;//additive increase
-									}
-									if (timer < resentThreshold) {
-										messageTimers.put(messageId, timer+1);
-									}
-									else {
-										//re-send the message and reset the timer 
-										messageTimers.put(messageId, 0);
-										messageCount.put(messageId, messageCount.get(messageId)+1);
-										resendMessage(messageId);
-										if (messageCount.get(messageId) > RESENT_MESSAGE_MAX) {
-											//the message was sent to often -> remove it
-											removeMessage.add(messageId);
-										}
-									}
-								}
-								if (!removeMessage.isEmpty()) {
-									for (int remove : removeMessage) {
-										messageTimers.remove(remove);
-										securedMessages.remove(remove);
-										messageCount.remove(remove);
-										JFGServer.printError("JFGCommunicationSecurity: Message lost (ackId: " + remove + 
-												"); The message was sen't " + RESENT_MESSAGE_MAX + " times without receiving an ACK", JFGServer.ERROR_LEVEL_DEBUG);
-									}									
-								}
-								Integer removedMessage = null;
-								for (int messageId : receivedMessageTimer.keySet()) {
-									int timer = messageTimers.get(messageId);
-									if (timer >= STORE_RECEIVED_MESSAGES) {
-										removedMessage = messageId;
-									}
-									else {
-										messageTimers.put(messageId, timer+1);
-									}
-								}
-								if (removedMessage != null) {
-									receivedMessageTimer.remove(removedMessage);
-									receivedMessages.remove(removedMessage);
-								}
-							}							
-						}
-						catch (ConcurrentModificationException cme) {
-							//just go on in the next iteration
-							//cme.printStackTrace();
-						}
-						Thread.sleep(1000);
-					}
-				}
-				catch (InterruptedException ie) {
-					ie.printStackTrace();
-				}
+				resendMessage(securedMessage);
 			}
 		});
-		return ackTimerThread;
+	}
+	
+	/**
+	 * Re-send the deferred messages of a range of send counts directly, because the receiver's window has moved on (called while holding the lock of this object).
+	 */
+	private void resendDeferredMessages(int first, int last) {
+		first = Math.max(first, acknowledgedSendCount + 1);
+		if ((long) last - first >= securedMessages.size()) {
+			for (int sendCount : securedMessages.keys()) {
+				if (sendCount >= first && sendCount <= last) {
+					resendDeferredMessage(securedMessages.get(sendCount));
+				}
+			}
+		}
+		else {
+			for (int sendCount = first; sendCount <= last; sendCount++) {
+				resendDeferredMessage(securedMessages.get(sendCount));
+			}
+		}
+	}
+	
+	private void resendDeferredMessage(SecuredMessage securedMessage) {
+		if (securedMessage != null && securedMessage.deferred && securedMessage.timeout.cancel()) {
+			securedMessage.deferred = false;
+			securedMessage.timeout = timer.newTimeout(securedMessage, 0);
+		}
+	}
+	
+	/**
+	 * Get the smoothed round trip time, that is measured using the ACKs of the secured messages.
+	 * 
+	 * @return
+	 * 		The smoothed round trip time in microseconds or -1 if it was not yet measured.
+	 */
+	public synchronized long getRoundTripTime() {
+		return smoothedRoundTripTime;
+	}
+	
+	/**
+	 * Get the variation of the measured round trip times.
+	 * 
+	 * @return
+	 * 		The round trip time variation in microseconds.
+	 */
+	public synchronized long getRoundTripTimeVariation() {
+		return roundTripTimeVariation;
+	}
+	
+	/**
+	 * Get the time till a secured message is resent if no ACK arrives (before the exponential backoff of the message).
+	 * 
+	 * @return
+	 * 		The retransmission timeout in milliseconds.
+	 */
+	public synchronized long getRetransmissionTimeout() {
+		return retransmissionTimeout;
+	}
+	
+	/**
+	 * Get the highest send count the receiver can buffer, as advertised in the last acknowledgement.
+	 * 
+	 * @return
+	 * 		The highest send count the receiver can buffer or Integer.MAX_VALUE if the receiver didn't advertise a window yet.
+	 */
+	public synchronized int getSendWindowLimit() {
+		return sendWindowLimit;
+	}
+	
+	/**
+	 * Set the send window, that limits the secured messages that were not acknowledged yet.
+	 * 
+	 * The window protects the heap from a receiver that stops reading (and acknowledging) but keeps the connection open.
+	 * The number of messages should not be bigger than the receiver's reorder window (see {@link JFGSecureMessageOrder#DEFAULT_WINDOW_SIZE}),
+	 * because the receiver drops the messages that don't fit into it's window.
+	 * The bytes are counted using the encoded messages, so a sender is blocked after the message that exceeded the byte limit.
+	 * Independent of these limits the window is also full if the next message doesn't fit into the receive window that the receiver advertised.
+	 * 
+	 * @param messages
+	 * 		The maximum number of messages that were not acknowledged yet or 0 for no limit.
+	 * 
+	 * @param bytes
+	 * 		The maximum number of bytes of the messages that were not acknowledged yet or 0 for no limit.
+	 * 
+	 * @param policy
+	 * 		The policy that is used if the window is full.
+	 */
+	public synchronized void setSendWindow(int messages, long bytes, JFGSendWindowPolicy policy) {
+		if (messages < 0 || bytes < 0) {
+			throw new IllegalArgumentException("The limits of a send window can't be negative.");
+		}
+		sendWindowMessages = messages;
+		sendWindowBytes = bytes;
+		sendWindowPolicy = policy;
+		notifyAll();
+	}
+	
+	public synchronized int getSendWindowMessages() {
+		return sendWindowMessages;
+	}
+	public synchronized long getSendWindowBytes() {
+		return sendWindowBytes;
+	}
+	public synchronized JFGSendWindowPolicy getSendWindowPolicy() {
+		return sendWindowPolicy;
+	}
+	
+	public synchronized long getSendWindowTimeout() {
+		return sendWindowTimeout;
+	}
+	/**
+	 * Set the time a sender waits for the send window using the {@link JFGSendWindowPolicy#BLOCK} policy.
+	 * 
+	 * @param sendWindowTimeout
+	 * 		The time in milliseconds.
+	 */
+	public synchronized void setSendWindowTimeout(long sendWindowTimeout) {
+		this.sendWindowTimeout = sendWindowTimeout;
+	}
+	
+	/**
+	 * Get the number of bytes of the secured messages that were not acknowledged yet.
+	 */
+	public synchronized long getInFlightBytes() {
+		return inFlightBytes;
+	}
+	/**
+	 * Get the number of secured messages that were not acknowledged yet.
+	 */
+	public synchronized int getInFlightMessages() {
+		return securedMessages.size();
+	}
+	
+	/**
+	 * Set the send window that is used by all communication securities that are created after it was set (see {@link #setSendWindow(int, long, JFGSendWindowPolicy)}).
+	 * 
+	 * @param messages
+	 * 		The maximum number of messages that were not acknowledged yet or 0 for no limit (default).
+	 * 
+	 * @param bytes
+	 * 		The maximum number of bytes of the messages that were not acknowledged yet or 0 for no limit (default).
+	 * 
+	 * @param policy
+	 * 		The policy that is used if the window is full (default is {@link JFGSendWindowPolicy#BLOCK}).
+	 */
+	public static void setDefaultSendWindow(int messages, long bytes, JFGSendWindowPolicy policy) {
+		if (messages < 0 || bytes < 0) {
+			throw new IllegalArgumentException("The limits of a send window can't be negative.");
+		}
+		defaultSendWindowMessages = messages;
+		defaultSendWindowBytes = bytes;
+		defaultSendWindowPolicy = policy;
+	}
+	
+	public static long getDefaultSendWindowTimeout() {
+		return defaultSendWindowTimeout;
+	}
+	/**
+	 * Set the send window timeout that is used by all communication securities that are created after it was set (see {@link #setSendWindowTimeout(long)}).
+	 * 
+	 * @param sendWindowTimeout
+	 * 		The time in milliseconds (default is 10000).
+	 */
+	public static void setDefaultSendWindowTimeout(long sendWindowTimeout) {
+		defaultSendWindowTimeout = sendWindowTimeout;
+	}
+	
+	/**
+	 * Set the thread that passes the received messages on to the interpreter. The messages this thread sends never wait for the send window,
+	 * because the thread would also receive the ACKs that open the window (see {@link #secureMessage(Serializable, JFGSecureMessageOrder)}).
+	 * 
+	 * @param receivingThread
+	 * 		The thread that receives the messages or null after the message was interpreted.
+	 */
+	public void setReceivingThread(Thread receivingThread) {
+		this.receivingThread = receivingThread;
+	}
+	
+	/**
+	 * Get the number of messages that wait for the send window, because they were sent by the receiving thread.
+	 */
+	public synchronized int getPendingMessages() {
+		return pendingMessages.size();
+	}
+	
+	/**
+	 * Get the number of messages that were resent because no ACK arrived in time.
+	 * 
+	 * @return
+	 * 		The number of re-sends.
+	 */
+	public synchronized long getRetransmissions() {
+		return retransmissions;
+	}
+	
+	/**
+	 * A message that waits for the send window. The send count is added when the message is secured.
+	 */
+	private static class PendingMessage {
+		
+		private final Serializable message;
+		private final JFGSecureMessageOrder messageOrder;
+		
+		public PendingMessage(Serializable message, JFGSecureMessageOrder messageOrder) {
+			this.message = message;
+			this.messageOrder = messageOrder;
+		}
+	}
+	
+	/**
+	 * The state of a secured message that was not yet acknowledged. The message is re-sent when it's timeout expires.
+	 */
+	private class SecuredMessage implements Runnable {
+		
+		private final JFGEncodedMessage encodedMessage;
+		private final int messageId;
+		private final int sendCount;
+		private final int size;
+		private final long sendTime;
+		
+		//the message if it's an envelope (the envelope's payload is never changed)
+		private JFGSecuredEnvelope envelope;
+		private boolean relogin;
+		
+		private int resendCount;
+		private boolean deferred;
+		private Timeout timeout;
+		
+		public SecuredMessage(JFGEncodedMessage encodedMessage, int messageId, int sendCount, int size, long sendTime) {
+			this.encodedMessage = encodedMessage;
+			this.messageId = messageId;
+			this.sendCount = sendCount;
+			this.size = size;
+			this.sendTime = sendTime;
+		}
+		
+		@Override
+		public void run() {
+			resendExpiredMessage(this);
+		}
 	}
 }
\ No newline at end of file
@@ -0,0 +1,417 @@
+package net.jfabricationgames.jfgserver.secured_message;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+import net.jfabricationgames.jfgserver.server.JFGServer;
+
+/**
+ * A timer that manages a lot of timeouts using a hashed timing wheel.
+ *
+ * The wheel is an array of buckets. Every tick the timer thread moves on by one bucket and only looks at the timeouts in this bucket,
+ * so the work of the timer grows with the number of timeouts that are due and not with the number of timeouts that are waiting.
+ * Timeouts that are longer than one turn of the wheel are counted down by the number of remaining turns.
+ *
+ * Adding and cancelling a timeout doesn't lock. While no timeout is waiting the timer thread sleeps till the next timeout is added.
+ *
+ * All secured clients and connections of a JVM share one timer (see {@link #getSharedTimer()}) instead of using a timer thread for every instance.
+ */
+public class JFGHashedWheelTimer {
+	
+	/**
+	 * The default duration of a tick in milliseconds.
+	 */
+	public static final int DEFAULT_TICK_DURATION = 1;
+	/**
+	 * The default number of buckets in the wheel.
+	 */
+	public static final int DEFAULT_TICKS_PER_WHEEL = 512;
+	
+	private static JFGHashedWheelTimer sharedTimer;
+	
+	private final long tickDuration;
+	private final Bucket[] wheel;
+	private final int mask;
+	
+	private final Queue<Timeout> newTimeouts = new ConcurrentLinkedQueue<Timeout>();
+	private final Queue<Timeout> cancelledTimeouts = new ConcurrentLinkedQueue<Timeout>();
+	private final AtomicInteger pendingTimeouts = new AtomicInteger();
+	
+	private final Executor executor;
+	private final Thread worker;
+	private final Object idleLock = new Object();
+	
+	private final long startTime;
+	private long tick;
+	private volatile boolean stopped;
+	
+	/**
+	 * Create a new JFGHashedWheelTimer with the default tick duration and wheel size, that executes the expired tasks in the timer thread.
+	 */
+	public JFGHashedWheelTimer() {
+		this(DEFAULT_TICK_DURATION, DEFAULT_TICKS_PER_WHEEL, null);
+	}
+	/**
+	 * Create a new JFGHashedWheelTimer and start the timer thread.
+	 *
+	 * @param tickDuration
+	 * 		The duration of a tick in milliseconds (the resolution of the timer).
+	 *
+	 * @param ticksPerWheel
+	 * 		The number of buckets in the wheel (rounded up to the next power of two).
+	 *
+	 * @param executor
+	 * 		The executor that runs the tasks of the expired timeouts or null to run them in the timer thread.
+	 * 		Tasks that could block (like writing to a socket) should not be executed in the timer thread, because they would delay all other timeouts.
+	 */
+	public JFGHashedWheelTimer(int tickDuration, int ticksPerWheel, Executor executor) {
+		if (tickDuration <= 0 || ticksPerWheel <= 0) {
+			throw new IllegalArgumentException("The tick duration and the number of ticks per wheel need to be positive.");
+		}
+		int wheelSize = Integer.highestOneBit(Math.min(ticksPerWheel, 1 << 30));
+		if (wheelSize < ticksPerWheel) {
+			wheelSize <<= 1;
+		}
+		this.tickDuration = TimeUnit.MILLISECONDS.toNanos(tickDuration);
+		this.executor = executor;
+		wheel = new Bucket[wheelSize];
+		for (int i = 0; i < wheelSize; i++) {
+			wheel[i] = new Bucket();
+		}
+		mask = wheelSize - 1;
+		startTime = System.nanoTime();
+		worker = new Thread(new Worker(), "JFGHashedWheelTimer");
+		worker.setDaemon(true);
+		worker.start();
+	}
+	
+	/**
+	 * Get the timer that is shared by all secured clients and connections of the JVM.
+	 *
+	 * The shared timer uses the default tick duration and wheel size. The expired tasks are executed by a pool of daemon threads (one per processor),
+	 * so a task that blocks while writing to a slow connection doesn't delay the other timeouts.
+	 *
+	 * @return
+	 * 		The shared timer.
+	 */
+	public static synchronized JFGHashedWheelTimer getSharedTimer() {
+		if (sharedTimer == null) {
+			ExecutorService executor = Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()), new ThreadFactory() {
+				
+				private final AtomicInteger threads = new AtomicInteger();
+				
+				@Override
+				public Thread newThread(Runnable task) {
+					Thread thread = new Thread(task, "JFGHashedWheelTimer-task-" + threads.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			sharedTimer = new JFGHashedWheelTimer(DEFAULT_TICK_DURATION, DEFAULT_TICKS_PER_WHEEL, executor);
+		}
+		return sharedTimer;
+	}
+	
+	/**
+	 * Execute a task once after a delay.
+	 *
+	 * @param task
+	 * 		The task that is executed.
+	 *
+	 * @param delay
+	 * 		The delay in milliseconds.
+	 *
+	 * @return
+	 * 		The timeout, that can be used to cancel the task.
+	 *
+	 * @throws IllegalStateException
+	 * 		An {@link IllegalStateException} is thrown if the timer was already stopped.
+	 */
+	public Timeout newTimeout(Runnable task, long delay) throws IllegalStateException {
+		if (task == null) {
+			throw new IllegalArgumentException("The task mussn't be null.");
+		}
+		if (stopped) {
+			throw new IllegalStateException("The timer was already stopped.");
+		}
+		long deadline = System.nanoTime() - startTime + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delay));
+		Timeout timeout = new Timeout(this, task, deadline);
+		newTimeouts.add(timeout);
+		if (pendingTimeouts.incrementAndGet() == 1) {
+			//wake up the idle timer thread
+			synchronized (idleLock) {
+				idleLock.notifyAll();
+			}
+		}
+		return timeout;
+	}
+	
+	/**
+	 * Stop the timer thread. The waiting timeouts are not executed anymore.
+	 */
+	public void stop() {
+		stopped = true;
+		worker.interrupt();
+		synchronized (idleLock) {
+			idleLock.notifyAll();
+		}
+	}
+	
+	/**
+	 * Get the number of timeouts that are waiting (including cancelled timeouts that were not yet removed from the wheel).
+	 *
+	 * @return
+	 * 		The number of waiting timeouts.
+	 */
+	public int getPendingTimeouts() {
+		return pendingTimeouts.get();
+	}
+	
+	/**
+	 * Run the task of an expired timeout.
+	 */
+	private void execute(Runnable task) {
+		if (executor != null) {
+			try {
+				executor.execute(task);
+				return;
+			}
+			catch (RejectedExecutionException ree) {
+				JFGServer.printError(ree, JFGServer.ERROR_LEVEL_DEBUG);
+			}
+		}
+		try {
+			task.run();
+		}
+		catch (Throwable t) {
+			//a failing task mussn't stop the timer
+			JFGServer.printError("JFGHashedWheelTimer: A timer task failed: " + t, JFGServer.ERROR_LEVEL_ERROR);
+		}
+	}
+	
+	/**
+	 * The timer thread that moves the wheel on every tick.
+	 */
+	private class Worker implements Runnable {
+		
+		@Override
+		public void run() {
+			while (!stopped) {
+				if (!waitWhileIdle()) {
+					break;
+				}
+				long deadline = waitForNextTick();
+				if (deadline < 0) {
+					break;
+				}
+				removeCancelledTimeouts();
+				transferNewTimeouts();
+				wheel[(int) (tick & mask)].expireTimeouts(deadline);
+				tick++;
+			}
+		}
+		
+		/**
+		 * Sleep while there is no timeout. The wheel is moved on to the current time afterwards, because all buckets are empty.
+		 *
+		 * @return
+		 * 		False if the timer was stopped.
+		 */
+		private boolean waitWhileIdle() {
+			if (pendingTimeouts.get() > 0) {
+				return true;
+			}
+			synchronized (idleLock) {
+				try {
+					while (pendingTimeouts.get() == 0 && !stopped) {
+						idleLock.wait();
+					}
+				}
+				catch (InterruptedException ie) {
+					return false;
+				}
+			}
+			tick = (System.nanoTime() - startTime) / tickDuration;
+			return !stopped;
+		}
+		
+		/**
+		 * Sleep till the end of the current tick.
+		 *
+		 * @return
+		 * 		The time since the start of the timer (in nanoseconds) or -1 if the timer was stopped.
+		 */
+		private long waitForNextTick() {
+			long deadline = tickDuration * (tick + 1);
+			while (true) {
+				long currentTime = System.nanoTime() - startTime;
+				long sleepTime = TimeUnit.NANOSECONDS.toMillis(deadline - currentTime + 999999);
+				if (sleepTime <= 0) {
+					return currentTime;
+				}
+				try {
+					Thread.sleep(sleepTime);
+				}
+				catch (InterruptedException ie) {
+					if (stopped) {
+						return -1;
+					}
+				}
+			}
+		}
+		
+		private void transferNewTimeouts() {
+			Timeout timeout;
+			while ((timeout = newTimeouts.poll()) != null) {
+				if (timeout.state != Timeout.STATE_WAITING) {
+					//cancelled before it was added to the wheel
+					pendingTimeouts.decrementAndGet();
+					continue;
+				}
+				long calculatedTick = timeout.deadline / tickDuration;
+				timeout.remainingRounds = (calculatedTick - tick) / wheel.length;
+				//timeouts that are already due are added to the current bucket
+				long timeoutTick = Math.max(calculatedTick, tick);
+				wheel[(int) (timeoutTick & mask)].add(timeout);
+			}
+		}
+		
+		private void removeCancelledTimeouts() {
+			Timeout timeout;
+			while ((timeout = cancelledTimeouts.poll()) != null) {
+				if (timeout.bucket != null) {
+					timeout.bucket.remove(timeout);
+					pendingTimeouts.decrementAndGet();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * A bucket of the wheel (a doubly linked list of timeouts that is only used by the timer thread).
+	 */
+	private class Bucket {
+		
+		private Timeout head;
+		private Timeout tail;
+		
+		private void add(Timeout timeout) {
+			timeout.bucket = this;
+			if (head == null) {
+				head = tail = timeout;
+			}
+			else {
+				tail.next = timeout;
+				timeout.previous = tail;
+				tail = timeout;
+			}
+		}
+		
+		private void remove(Timeout timeout) {
+			if (timeout.previous != null) {
+				timeout.previous.next = timeout.next;
+			}
+			else {
+				head = timeout.next;
+			}
+			if (timeout.next != null) {
+				timeout.next.previous = timeout.previous;
+			}
+			else {
+				tail = timeout.previous;
+			}
+			timeout.previous = null;
+			timeout.next = null;
+			timeout.bucket = null;
+		}
+		
+		/**
+		 * Expire all timeouts of this bucket that have no remaining rounds.
+		 */
+		private void expireTimeouts(long deadline) {
+			Timeout timeout = head;
+			while (timeout != null) {
+				Timeout next = timeout.next;
+				if (timeout.state != Timeout.STATE_WAITING) {
+					remove(timeout);
+					pendingTimeouts.decrementAndGet();
+				}
+				else if (timeout.remainingRounds <= 0 && timeout.deadline <= deadline) {
+					remove(timeout);
+					pendingTimeouts.decrementAndGet();
+					timeout.expire();
+				}
+				else if (timeout.remainingRounds > 0) {
+					timeout.remainingRounds--;
+				}
+				timeout = next;
+			}
+		}
+	}
+	
+	/**
+	 * A task that is executed by the timer after a delay, unless it's cancelled before.
+	 */
+	public static class Timeout {
+		
+		private static final int STATE_WAITING = 0;
+		private static final int STATE_CANCELLED = 1;
+		private static final int STATE_EXPIRED = 2;
+		
+		private static final AtomicIntegerFieldUpdater<Timeout> stateUpdater = AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+		
+		private final JFGHashedWheelTimer timer;
+		private final Runnable task;
+		private final long deadline;
+		
+		private volatile int state = STATE_WAITING;
+		
+		//only used by the timer thread
+		private long remainingRounds;
+		private Bucket bucket;
+		private Timeout next;
+		private Timeout previous;
+		
+		private Timeout(JFGHashedWheelTimer timer, Runnable task, long deadline) {
+			this.timer = timer;
+			this.task = task;
+			this.deadline = deadline;
+		}
+		
+		/**
+		 * Cancel the timeout, so the task is not executed.
+		 *
+		 * @return
+		 * 		True if the timeout was cancelled. False if it was already expired or cancelled before.
+		 */
+		public boolean cancel() {
+			if (!stateUpdater.compareAndSet(this, STATE_WAITING, STATE_CANCELLED)) {
+				return false;
+			}
+			timer.cancelledTimeouts.add(this);
+			return true;
+		}
+		
+		public boolean isCancelled() {
+			return state == STATE_CANCELLED;
+		}
+		
+		public boolean isExpired() {
+			return state == STATE_EXPIRED;
+		}
+		
+		private void expire() {
+			if (stateUpdater.compareAndSet(this, STATE_WAITING, STATE_EXPIRED)) {
+				timer.execute(task);
+			}
+		}
+	}
+}
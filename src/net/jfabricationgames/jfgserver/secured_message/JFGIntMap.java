@@ -0,0 +1,204 @@
+package net.jfabricationgames.jfgserver.secured_message;
+
+import java.util.Arrays;
+
+/**
+ * A map from int keys to objects, that is used for the state of the secured messages.
+ *
+ * The map uses open addressing (linear probing) in two arrays, so a put, get or remove doesn't box the key and doesn't create an entry object.
+ * Removed entries are not marked as deleted but the following entries are shifted back, so the map doesn't fill up with deleted entries.
+ *
+ * The map doesn't accept null values (an empty slot is marked by a null value). The map is not synchronized.
+ *
+ * @param <V>
+ * 		The type of the values.
+ */
+public class JFGIntMap<V> {
+	
+	private static final int DEFAULT_CAPACITY = 16;
+	
+	private int[] keys;
+	private Object[] values;
+	private int mask;
+	private int size;
+	
+	/**
+	 * Create a new JFGIntMap with a default capacity.
+	 */
+	public JFGIntMap() {
+		this(DEFAULT_CAPACITY);
+	}
+	/**
+	 * Create a new JFGIntMap.
+	 *
+	 * @param expectedSize
+	 * 		The number of entries the map can hold before it grows.
+	 */
+	public JFGIntMap(int expectedSize) {
+		int capacity = Integer.highestOneBit(Math.max(2, expectedSize) * 2 - 1) << 1;
+		keys = new int[capacity];
+		values = new Object[capacity];
+		mask = capacity - 1;
+	}
+	
+	/**
+	 * Get the value of a key.
+	 *
+	 * @param key
+	 * 		The key.
+	 *
+	 * @return
+	 * 		The value or null if the map doesn't contain the key.
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(int key) {
+		int index = indexOf(key);
+		return index < 0 ? null : (V) values[index];
+	}
+	
+	public boolean containsKey(int key) {
+		return indexOf(key) >= 0;
+	}
+	
+	/**
+	 * Add a value to the map.
+	 *
+	 * @param key
+	 * 		The key.
+	 *
+	 * @param value
+	 * 		The value (mussn't be null).
+	 *
+	 * @return
+	 * 		The previous value of the key or null if the map didn't contain the key.
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(int key, V value) {
+		if (value == null) {
+			throw new IllegalArgumentException("The value mussn't be null.");
+		}
+		int index = hash(key) & mask;
+		while (values[index] != null) {
+			if (keys[index] == key) {
+				V previous = (V) values[index];
+				values[index] = value;
+				return previous;
+			}
+			index = (index + 1) & mask;
+		}
+		keys[index] = key;
+		values[index] = value;
+		size++;
+		if (size > (mask + 1) * 3 / 4) {
+			resize((mask + 1) * 2);
+		}
+		return null;
+	}
+	
+	/**
+	 * Remove a key from the map.
+	 *
+	 * @param key
+	 * 		The key.
+	 *
+	 * @return
+	 * 		The value of the key or null if the map didn't contain the key.
+	 */
+	@SuppressWarnings("unchecked")
+	public V remove(int key) {
+		int index = indexOf(key);
+		if (index < 0) {
+			return null;
+		}
+		V value = (V) values[index];
+		removeAt(index);
+		return value;
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	public boolean isEmpty() {
+		return size == 0;
+	}
+	
+	public void clear() {
+		Arrays.fill(values, null);
+		size = 0;
+	}
+	
+	/**
+	 * Get all keys of the map (in no particular order).
+	 *
+	 * @return
+	 * 		A new array containing the keys.
+	 */
+	public int[] keys() {
+		int[] keys = new int[size];
+		int index = 0;
+		for (int i = 0; i < values.length; i++) {
+			if (values[i] != null) {
+				keys[index++] = this.keys[i];
+			}
+		}
+		return keys;
+	}
+	
+	private int indexOf(int key) {
+		int index = hash(key) & mask;
+		while (values[index] != null) {
+			if (keys[index] == key) {
+				return index;
+			}
+			index = (index + 1) & mask;
+		}
+		return -1;
+	}
+	
+	/**
+	 * Remove the entry at an index and shift back the following entries, that would not be found anymore otherwise.
+	 */
+	private void removeAt(int index) {
+		values[index] = null;
+		size--;
+		int next = (index + 1) & mask;
+		while (values[next] != null) {
+			int home = hash(keys[next]) & mask;
+			//move the entry to the free slot if the free slot is between it's home slot and it's current slot
+			if (((next - home) & mask) >= ((next - index) & mask)) {
+				keys[index] = keys[next];
+				values[index] = values[next];
+				values[next] = null;
+				index = next;
+			}
+			next = (next + 1) & mask;
+		}
+	}
+	
+	private void resize(int capacity) {
+		int[] oldKeys = keys;
+		Object[] oldValues = values;
+		keys = new int[capacity];
+		values = new Object[capacity];
+		mask = capacity - 1;
+		for (int i = 0; i < oldValues.length; i++) {
+			if (oldValues[i] != null) {
+				int index = hash(oldKeys[i]) & mask;
+				while (values[index] != null) {
+					index = (index + 1) & mask;
+				}
+				keys[index] = oldKeys[i];
+				values[index] = oldValues[i];
+			}
+		}
+	}
+	
+	/**
+	 * Spread the bits of the key, because the send counts and ids are often consecutive.
+	 */
+	private static int hash(int key) {
+		int hash = key * 0x9E3779B9;
+		return hash ^ (hash >>> 16);
+	}
+}
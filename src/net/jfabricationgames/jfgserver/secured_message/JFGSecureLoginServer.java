@@ -69,7 +69,7 @@ public class JFGSecureLoginServer extends JFGLoginServer {
 		JFGConnection existing = reloginPasswordConnections.get(password);
 		if (existing != null) {
 			removeWaiting(connection);
-			existing.restart(connection.getSocket(), connection.getInputStream(), connection.getOutputStream());
+			existing.restart(connection);
 			connection.stopConnection();
 		}
 	}
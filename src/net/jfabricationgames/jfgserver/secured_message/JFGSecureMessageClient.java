@@ -3,10 +3,13 @@ package net.jfabricationgames.jfgserver.secured_message;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.StreamCorruptedException;
+import java.net.SocketException;
 
 import net.jfabricationgames.jfgserver.client.JFGClient;
 import net.jfabricationgames.jfgserver.client.JFGClientMessage;
 import net.jfabricationgames.jfgserver.client.JFGServerMessage;
+import net.jfabricationgames.jfgserver.codec.JFGEncodedMessage;
+import net.jfabricationgames.jfgserver.codec.JFGMessageCodec;
 import net.jfabricationgames.jfgserver.interpreter.JFGClientInterpreter;
 
 public class JFGSecureMessageClient extends JFGClient {
@@ -34,6 +37,27 @@ public class JFGSecureMessageClient extends JFGClient {
 		communicationSecurity = new JFGCommunicationSecurity(this);
 		messageOrder = new JFGSecureMessageOrder();
 	}
+	/**
+	 * Create a new JFGSecureMessageClient connected to a host on a port, that sends the messages as frames encoded by a {@link JFGMessageCodec}.
+	 * The client is started directly because the interpreter is already known.
+	 * 
+	 * @param host
+	 * 		The host to connect to.
+	 * 
+	 * @param port
+	 * 		The port to connect to.
+	 * 
+	 * @param clientInterpreter
+	 * 		The {@link JFGClientInterpreter} that interprets the messages coming from the server.
+	 * 
+	 * @param codec
+	 * 		The codec used to encode the messages (needs to be the same as the server's codec).
+	 */
+	public JFGSecureMessageClient(String host, int port, JFGClientInterpreter clientInterpreter, JFGMessageCodec codec) {
+		super(host, port, clientInterpreter, codec);
+		communicationSecurity = new JFGCommunicationSecurity(this);
+		messageOrder = new JFGSecureMessageOrder();
+	}
 	/**
 	 * Create a new JFGSecureMessageClient connected to a host on a port.
 	 * The client is NOT started directly because it doesn't have an interpreter.
@@ -92,28 +116,64 @@ public class JFGSecureMessageClient extends JFGClient {
 		messageOrder = new JFGSecureMessageOrder();
 	}
 	
+	/**
+	 * Get the communication security of this client, that resends the lost messages and measures the round trip time.
+	 * 
+	 * @return
+	 * 		The {@link JFGCommunicationSecurity} of this client.
+	 */
+	public JFGCommunicationSecurity getCommunicationSecurity() {
+		return communicationSecurity;
+	}
+	
 	/**
 	 * Send a secured message to the server and check it's arrival.
 	 * The CommunicationSecurity checks that the message arrives.
+	 * If the send window of the CommunicationSecurity is full the message waits or is rejected (see {@link JFGCommunicationSecurity#setSendWindow(int, long, JFGSendWindowPolicy)}).
+	 * 
+	 * Messages that don't implement {@link JFGSecurableMessage} are sent in a {@link JFGSecuredEnvelope}.
 	 * 
 	 * @param message
 	 * 		The message send to the server.
 	 */
 	@Override
 	public void sendMessage(JFGServerMessage message) {
-		messageOrder.addSendCount(message);
-		communicationSecurity.secureMessage(message);
+		if (isEnvelopeNeeded(message)) {
+			sendEncodedMessage(JFGEncodedMessage.ofServerMessage(message));
+			return;
+		}
+		JFGEncodedMessage encodedMessage = communicationSecurity.secureMessage(message, messageOrder);
+		if (encodedMessage == null && JFGCommunicationSecurity.isSecured(message)) {
+			//queued till the send window has room (the communication security sends it)
+			return;
+		}
+		synchronized (this) {
+			if (encodedMessage != null && codec != null) {
+				//a frame doesn't depend on the earlier frames, so the same bytes are sent that are re-sent if the message is lost
+				super.sendEncodedMessage(encodedMessage);
+			}
+			else {
+				//an object stream shares the class descriptors with the earlier messages, so the first send is faster than the self-contained encoded bytes
+				super.sendMessage(message);
+			}
+		}
+	}
+	/**
+	 * Re-send a message from the communication security (the frame that was encoded when the message was sent the first time).
+	 * No new message order or security needed. 
+	 */
+	protected void resendMessage(JFGEncodedMessage message) {
 		synchronized (this) {
-			super.sendMessage(message);
+			super.sendEncodedMessage(message);
 		}
 	}
 	/**
-	 * Re-send a message from the communication security.
+	 * Re-send a message of the object stream from the communication security (in an envelope, that is written without resetting the stream).
 	 * No new message order or security needed. 
 	 */
-	protected void resendMessage(JFGServerMessage message) {
+	protected void resendEnvelope(JFGSecuredEnvelope envelope) {
 		synchronized (this) {
-			super.sendMessage(message);
+			super.sendMessage(envelope);
 		}
 	}
 	/**
@@ -125,10 +185,23 @@ public class JFGSecureMessageClient extends JFGClient {
 	 */
 	@Override
 	public void sendMessageUnshared(JFGServerMessage message) {
-		messageOrder.addSendCount(message);
-		communicationSecurity.secureMessage(message);
+		if (isEnvelopeNeeded(message)) {
+			sendEncodedMessage(JFGEncodedMessage.ofServerMessage(message));
+			return;
+		}
+		JFGEncodedMessage encodedMessage = communicationSecurity.secureMessage(message, messageOrder);
+		if (encodedMessage == null && JFGCommunicationSecurity.isSecured(message)) {
+			//queued till the send window has room (the communication security sends it)
+			return;
+		}
 		synchronized (this) {
-			super.sendMessageUnshared(message);			
+			if (encodedMessage != null && codec != null) {
+				//a frame doesn't depend on the earlier frames, so the same bytes are sent that are re-sent if the message is lost
+				super.sendEncodedMessage(encodedMessage);
+			}
+			else {
+				super.sendMessageUnshared(message);
+			}
 		}
 	}
 	
@@ -140,7 +213,7 @@ public class JFGSecureMessageClient extends JFGClient {
 		try {
 			while (true) {
 				try {
-					Object clientRequest = clientIn.readObject();
+					Object clientRequest = readObject();
 					if (clientRequest instanceof JFGClientMessage) {
 						receiveMessage((JFGClientMessage) clientRequest);
 					}
@@ -159,13 +232,14 @@ public class JFGSecureMessageClient extends JFGClient {
 						System.err.println("StreamCorruptedException received; Couldn't relogin because there is no password.");
 					}
 				}
-				catch (EOFException eofe) {
-					//eofe.printStackTrace();
+				catch (EOFException | SocketException e) {
+					//the connection was closed; nothing more can be read from this stream
+					break;
 				}
 				catch (IOException ioe) {
 					ioe.printStackTrace();
 				}
-				Thread.sleep(sleepTime);
+				limitRate();
 			}
 		}
 		catch (InterruptedException ie) {
@@ -202,18 +276,76 @@ public class JFGSecureMessageClient extends JFGClient {
 			communicationSecurity.sendAcknowledge(message);
 		}
 		else {
-			if (!communicationSecurity.isResentMessage(message)) {
+			if (message instanceof JFGSecuredEnvelope) {
+				communicationSecurity.receivePiggybackedAcknowledge((JFGSecuredEnvelope) message);
+			}
+			//acknowledge directly if the message was resent, opened or closed a gap or didn't fit into the reorder window
+			boolean acknowledgeImmediately = true;
+			if (!messageOrder.isReceived(message)) {
 				if (messageOrder.isInOrder(message)) {//checks and buffers if false
-					super.receiveMessage(message);
+					receiveOrderedMessage(message);
+					acknowledgeImmediately = false;
 					JFGSecurableMessage bufferedMessage;
 					while ((bufferedMessage = messageOrder.getNextBufferedMessage()) != null) {
 						//receive all buffered messages
-						super.receiveMessage((JFGClientMessage) bufferedMessage);
+						receiveOrderedMessage(bufferedMessage);
+						acknowledgeImmediately = true;
 					}
 				}
+				else {
+					acknowledgeImmediately = messageOrder.isAcknowledgeNeeded();
+				}
+			}
+			communicationSecurity.acknowledgeReceived(messageOrder, acknowledgeImmediately);
+		}
+	}
+	
+	/**
+	 * Pass a message that was received in order on to the interpreter (the message of an envelope is decoded first).
+	 */
+	private void receiveOrderedMessage(Object message) {
+		if (message instanceof JFGSecuredEnvelope) {
+			try {
+				message = ((JFGSecuredEnvelope) message).getMessage(codec);
+			}
+			catch (IOException | ClassNotFoundException e) {
+				e.printStackTrace();
+				return;
+			}
+			if (!(message instanceof JFGClientMessage)) {
+				System.err.println("JFGSecureMessageClient: The envelope contains no JFGClientMessage.");
+				return;
 			}
-			communicationSecurity.sendAcknowledge(message);
 		}
+		//the interpreter's answers mussn't wait for the send window in the thread that receives the ACKs
+		communicationSecurity.setReceivingThread(Thread.currentThread());
+		try {
+			super.receiveMessage((JFGClientMessage) message);
+		}
+		finally {
+			communicationSecurity.setReceivingThread(null);
+		}
+	}
+	
+	/**
+	 * Send an encoded message in a {@link JFGSecuredEnvelope}, that carries the send count and acknowledgement of this client.
+	 * The message is encoded only once, even if it's re-sent.
+	 */
+	@Override
+	public void sendEncodedMessage(JFGEncodedMessage message) {
+		try {
+			sendMessage(JFGSecuredEnvelope.of(message, codec));
+		}
+		catch (IOException ioe) {
+			ioe.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Check whether a message needs to be sent in an envelope, because it can't carry it's send count.
+	 */
+	private static boolean isEnvelopeNeeded(JFGServerMessage message) {
+		return !(message instanceof JFGSecurableMessage) && !(message instanceof JFGAcknowledgeMessage);
 	}
 	
 	/**
@@ -222,7 +354,7 @@ public class JFGSecureMessageClient extends JFGClient {
 	private void relogin() {
 		//close the connection and start a new one in a new thread
 		//close it in a synchronized block to ensure that there is no more data send while restarting
-		Thread restartThread = new Thread(new Runnable() {
+		Thread restartThread = getThreadMode().newThread(new Runnable() {
 			@Override
 			public void run() {
 				synchronized (JFGSecureMessageClient.this) {
@@ -10,6 +10,7 @@ import java.net.SocketException;
 
 import net.jfabricationgames.jfgserver.client.JFGClientMessage;
 import net.jfabricationgames.jfgserver.client.JFGServerMessage;
+import net.jfabricationgames.jfgserver.codec.JFGEncodedMessage;
 import net.jfabricationgames.jfgserver.interpreter.JFGServerInterpreter;
 import net.jfabricationgames.jfgserver.server.JFGConnection;
 import net.jfabricationgames.jfgserver.server.JFGServer;
@@ -96,6 +97,11 @@ public class JFGSecureMessageConnection extends JFGConnection {
 		super.restart(socket, in, out);
 		messageOrder.increaseMessageNumber(2);//increase the count for two re-login-messages
 	}
+	@Override
+	public void restart(JFGConnection connection) {
+		super.restart(connection);
+		messageOrder.increaseMessageNumber(2);//increase the count for two re-login-messages
+	}
 	
 	/**
 	 * The run method from {@link Runnable} to make the connection listen to the clients inputs in a different thread.
@@ -107,13 +113,7 @@ public class JFGSecureMessageConnection extends JFGConnection {
 		try {
 			while (true) {
 				try {
-					Object clientRequest = serverIn.readObject();
-					if (clientRequest instanceof JFGServerMessage) {
-						receiveMessage((JFGServerMessage) clientRequest);
-					}
-					else {
-						JFGServer.printError("JFGConnection: Received object is no JFGServerMessage. Couldn't interprete the message.", JFGServer.ERROR_LEVEL_DEBUG);
-					}
+					readMessage();
 				}
 				catch (StreamCorruptedException sce) {
 					sce.printStackTrace();
@@ -121,12 +121,14 @@ public class JFGSecureMessageConnection extends JFGConnection {
 				}
 				catch (SocketException | EOFException e) {
 					//occurs when the connection is closed by the client and the server tries to read/write from/to the connection.
+					//nothing more can be read from this stream; the connection is kept for a re-login of the client
 					JFGServer.printError(e, JFGServer.ERROR_LEVEL_INFO);
+					break;
 				}
 				catch (IOException ioe) {
 					JFGServer.printError(ioe, JFGServer.ERROR_LEVEL_ERROR);
 				}				
-				Thread.sleep(sleepTime);
+				limitRate();
 			}
 		}
 		catch (InterruptedException ie) {
@@ -137,6 +139,39 @@ public class JFGSecureMessageConnection extends JFGConnection {
 		}
 	}
 	
+	/**
+	 * Read all available messages in the non-blocking engine.
+	 * 
+	 * Overrides the method from JFGConnection to not end the connection when the stream is corrupted (the client is asked to re-login instead).
+	 */
+	@Override
+	protected void readAvailableMessages() {
+		try {
+			readBufferedMessages();
+		}
+		catch (StreamCorruptedException sce) {
+			sce.printStackTrace();
+			relogin();
+		}
+		catch (SocketException | EOFException e) {
+			//occurs when the connection is closed by the client; the connection is kept for a re-login of the client
+			JFGServer.printError(e, JFGServer.ERROR_LEVEL_INFO);
+			endConnection(false);
+		}
+		catch (IOException ioe) {
+			JFGServer.printError(ioe, JFGServer.ERROR_LEVEL_ERROR);
+			endConnection(false);
+		}
+		catch (ClassNotFoundException cnfe) {
+			JFGServer.printError(cnfe, JFGServer.ERROR_LEVEL_DEBUG);
+		}
+		catch (RuntimeException re) {
+			//like a closed stream; the connection is kept for a re-login of the client
+			JFGServer.printError(re, JFGServer.ERROR_LEVEL_ERROR);
+			endConnection(false);
+		}
+	}
+	
 	/**
 	 * Create a new instance of the JFGSecureMessageConnection from the factory.
 	 * 
@@ -146,29 +181,93 @@ public class JFGSecureMessageConnection extends JFGConnection {
 	public JFGConnection getInstance(JFGServer server, Socket socket) throws IOException {
 		return new JFGSecureMessageConnection(server, socket);
 	}
-
+	
+	/**
+	 * Get the communication security of this connection, that resends the lost messages and measures the round trip time.
+	 * 
+	 * @return
+	 * 		The {@link JFGCommunicationSecurity} of this connection.
+	 */
+	public JFGCommunicationSecurity getCommunicationSecurity() {
+		return communicationSecurity;
+	}
+	
 	/**
 	 * Send a secured message to the server and check it's arrival.
 	 * The CommunicationSecurity checks that the message arrives.
+	 * If the send window of the CommunicationSecurity is full the message waits or is rejected (see {@link JFGCommunicationSecurity#setSendWindow(int, long, JFGSendWindowPolicy)}).
+	 * 
+	 * Messages that don't implement {@link JFGSecurableMessage} are sent in a {@link JFGSecuredEnvelope}.
 	 * 
 	 * @param message
 	 * 		The message send to the server.
 	 */
 	@Override
 	public void sendMessage(JFGClientMessage message) {
-		messageOrder.addSendCount(message);
-		communicationSecurity.secureMessage(message);
+		if (isEnvelopeNeeded(message)) {
+			sendEncodedMessage(new JFGEncodedMessage(message));
+			return;
+		}
+		JFGEncodedMessage encodedMessage = communicationSecurity.secureMessage(message, messageOrder);
+		if (encodedMessage == null && JFGCommunicationSecurity.isSecured(message)) {
+			//queued till the send window has room (the communication security sends it)
+			return;
+		}
+		synchronized (this) {
+			if (encodedMessage != null && codec != null) {
+				//a frame doesn't depend on the earlier frames, so the same bytes are sent that are re-sent if the message is lost
+				super.sendEncodedMessage(encodedMessage);
+			}
+			else {
+				//an object stream shares the class descriptors with the earlier messages, so the first send is faster than the self-contained encoded bytes
+				super.sendMessage(message);
+			}
+		}
+	}
+	/**
+	 * Send an encoded message in a {@link JFGSecuredEnvelope}, that carries the send count and acknowledgement of this connection.
+	 * 
+	 * The message is encoded only once for all connections (e.g. for a broadcast). Only the envelope is encoded for every connection.
+	 */
+	@Override
+	public void sendEncodedMessage(JFGEncodedMessage message) {
+		try {
+			sendMessage(JFGSecuredEnvelope.of(message, codec));
+		}
+		catch (IOException ioe) {
+			JFGServer.printError(ioe, JFGServer.ERROR_LEVEL_INFO);
+		}
+	}
+	
+	/**
+	 * Check whether a message needs to be sent in an envelope, because it can't carry it's send count.
+	 */
+	private static boolean isEnvelopeNeeded(JFGClientMessage message) {
+		return !(message instanceof JFGSecurableMessage) && !(message instanceof JFGAcknowledgeMessage);
+	}
+	/**
+	 * The frames are never relayed, because the received messages have to be acknowledged and ordered.
+	 */
+	@Override
+	protected boolean isRelayEnabled() {
+		return false;
+	}
+	/**
+	 * Re-send a message from the communication security (the frame that was encoded when the message was sent the first time).
+	 * No new message order or security needed. 
+	 */
+	protected void resendMessage(JFGEncodedMessage message) {
 		synchronized (this) {
-			super.sendMessage(message);			
+			super.sendEncodedMessage(message);
 		}
 	}
 	/**
-	 * Re-send a message from the communication security.
+	 * Re-send a message of the object stream from the communication security (in an envelope, that is written without resetting the stream).
 	 * No new message order or security needed. 
 	 */
-	protected void resendMessage(JFGClientMessage message) {
+	protected void resendEnvelope(JFGSecuredEnvelope envelope) {
 		synchronized (this) {
-			super.sendMessage(message);			
+			super.sendMessage(envelope);
 		}
 	}
 	/**
@@ -180,10 +279,23 @@ public class JFGSecureMessageConnection extends JFGConnection {
 	 */
 	@Override
 	public void sendMessageUnshared(JFGClientMessage message) {
-		messageOrder.addSendCount(message);
-		communicationSecurity.secureMessage(message);
+		if (isEnvelopeNeeded(message)) {
+			sendEncodedMessage(new JFGEncodedMessage(message));
+			return;
+		}
+		JFGEncodedMessage encodedMessage = communicationSecurity.secureMessage(message, messageOrder);
+		if (encodedMessage == null && JFGCommunicationSecurity.isSecured(message)) {
+			//queued till the send window has room (the communication security sends it)
+			return;
+		}
 		synchronized (this) {
-			super.sendMessageUnshared(message);			
+			if (encodedMessage != null && codec != null) {
+				//a frame doesn't depend on the earlier frames, so the same bytes are sent that are re-sent if the message is lost
+				super.sendEncodedMessage(encodedMessage);
+			}
+			else {
+				super.sendMessageUnshared(message);
+			}
 		}
 	}
 	
@@ -201,25 +313,61 @@ public class JFGSecureMessageConnection extends JFGConnection {
 		if (message instanceof JFGAcknowledgeMessage) {
 			communicationSecurity.receiveAcknoledgeMessage((JFGAcknowledgeMessage) message);
 		}
+		else if (message instanceof JFGReloginMessage) {
+			super.receiveMessage(message);//message order count is increased when the relogin password is received
+			communicationSecurity.sendAcknowledge(message);
+		}
 		else {
-			if (message instanceof JFGReloginMessage) {
-				super.receiveMessage(message);//message order count is increased when the relogin password is received
+			if (message instanceof JFGSecuredEnvelope) {
+				communicationSecurity.receivePiggybackedAcknowledge((JFGSecuredEnvelope) message);
 			}
-			else if (!communicationSecurity.isResentMessage(message)) {
+			//acknowledge directly if the message was resent, opened or closed a gap or didn't fit into the reorder window
+			boolean acknowledgeImmediately = true;
+			if (!messageOrder.isReceived(message)) {
 				if (messageOrder.isInOrder(message)) {//checks and buffers if false
-					super.receiveMessage(message);
+					receiveOrderedMessage(message);
+					acknowledgeImmediately = false;
 					JFGSecurableMessage bufferedMessage;
 					while ((bufferedMessage = messageOrder.getNextBufferedMessage()) != null) {
 						//receive all buffered messages
-						super.receiveMessage((JFGServerMessage) bufferedMessage);
+						receiveOrderedMessage(bufferedMessage);
+						acknowledgeImmediately = true;
 					}
 				}
 				else {
-					System.err.println("Message not in order (expected: " + messageOrder.getExpectedMessageNumber() + "; received: " + 
-							((JFGSecurableMessage) message).getSendCount() + "; buffered: " + messageOrder.getMessagesInBuffer() + ");");
+					acknowledgeImmediately = messageOrder.isAcknowledgeNeeded();
+					JFGServer.printError("JFGSecureMessageConnection: Message not in order (expected: " + messageOrder.getExpectedMessageNumber() + "; received: " + 
+							((JFGSecurableMessage) message).getSendCount() + "; buffered: " + messageOrder.getMessagesInBuffer() + ");", JFGServer.ERROR_LEVEL_DEBUG);
 				}
 			}
-			communicationSecurity.sendAcknowledge(message);
+			communicationSecurity.acknowledgeReceived(messageOrder, acknowledgeImmediately);
+		}
+	}
+	
+	/**
+	 * Pass a message that was received in order on to the interpreter (the message of an envelope is decoded first).
+	 */
+	private void receiveOrderedMessage(Object message) {
+		if (message instanceof JFGSecuredEnvelope) {
+			try {
+				message = ((JFGSecuredEnvelope) message).getMessage(codec);
+			}
+			catch (IOException | ClassNotFoundException e) {
+				JFGServer.printError(e, JFGServer.ERROR_LEVEL_ERROR);
+				return;
+			}
+			if (!(message instanceof JFGServerMessage)) {
+				JFGServer.printError("JFGSecureMessageConnection: The envelope contains no JFGServerMessage.", JFGServer.ERROR_LEVEL_DEBUG);
+				return;
+			}
+		}
+		//the interpreter's answers mussn't wait for the send window in the thread that receives the ACKs
+		communicationSecurity.setReceivingThread(Thread.currentThread());
+		try {
+			super.receiveMessage((JFGServerMessage) message);
+		}
+		finally {
+			communicationSecurity.setReceivingThread(null);
 		}
 	}
 	
@@ -1,42 +1,95 @@
 package net.jfabricationgames.jfgserver.secured_message;
 
 import java.io.Serializable;
-import java.util.HashMap;
-import java.util.Map;
 
 /**
  * This class is used to make sure that the messages received are in the right order and didn't overtake an earlier message.
+ * 
+ * Messages that overtook an earlier message are buffered in a reorder window, that is a ring buffer indexed by the send count.
+ * The window is allocated once and holds the messages that follow the last message received in order (up to the window size).
+ * Messages that don't fit into the window are dropped (and resent by the sender later). The size of the window is advertised to the sender
+ * in the acknowledgements, so the sender doesn't send more messages than the window can hold.
+ * 
+ * Resent messages are recognized by their send count: All messages up to the last message received in order were received and the messages
+ * after it are marked in a bitmap of the window (one bit per send count), so no received messages need to be stored to recognize them.
+ * 
+ * The receive state is also used to create the cumulative acknowledgements (see {@link JFGAcknowledgeMessage}), that can be created by the timer thread.
+ * So all methods are synchronized.
  */
 public class JFGSecureMessageOrder {
 	
-	private Map<Integer, JFGSecurableMessage> messageBuffer;
+	/**
+	 * The default number of messages in the reorder window.
+	 */
+	public static final int DEFAULT_WINDOW_SIZE = 256;
+	
+	private JFGSecurableMessage[] window;
+	private long[] receivedBits;
+	private int bufferedMessages;
+	private int highestBuffered;
 	
 	private int lastReceived;
 	
 	private int sendCount;
 	
+	private int lastBuffered;
+	private boolean acknowledgeNeeded;
+	
 	public JFGSecureMessageOrder() {
-		messageBuffer = new HashMap<Integer, JFGSecurableMessage>();
+		this(DEFAULT_WINDOW_SIZE);
+	}
+	/**
+	 * Create a new JFGSecureMessageOrder with a reorder window of a fixed size.
+	 * 
+	 * @param windowSize
+	 * 		The number of messages the reorder window can hold.
+	 */
+	public JFGSecureMessageOrder(int windowSize) {
+		if (windowSize <= 0) {
+			throw new IllegalArgumentException("The window needs to hold at least one message.");
+		}
+		window = new JFGSecurableMessage[windowSize];
+		receivedBits = new long[(windowSize + 63) / 64];
 		lastReceived = 0;
 		sendCount = 0;
 	}
 	
 	/**
 	 * Check whether the received message was in the right order.
+	 * 
+	 * Messages that are not in order are buffered if they fit into the reorder window.
 	 */
-	public boolean isInOrder(Serializable message) {
+	public synchronized boolean isInOrder(Serializable message) {
 		if (message instanceof JFGSecurableMessage) {
 			JFGSecurableMessage securableMessage = ((JFGSecurableMessage) message);
-			if (securableMessage.getSendCount() == lastReceived+1) {
+			int count = securableMessage.getSendCount();
+			if (count == lastReceived+1) {
+				if (isBuffered(count)) {
+					//the message was buffered before (e.g. a resent re-login message)
+					removeBuffered(count);
+				}
 				lastReceived++;
 				return true;
 			}
-			else if (securableMessage.getSendCount() <= lastReceived) {
+			else if (count <= lastReceived) {
 				//also accept messages that don't use the send count if their count is lower that the current expected.
 				return true;
 			}
+			else if (count - lastReceived > window.length) {
+				//the message doesn't fit into the window; the sender is told about the window by a direct ACK
+				acknowledgeNeeded = true;
+				return false;
+			}
 			else {
-				messageBuffer.put(securableMessage.getSendCount(), securableMessage);
+				int index = count % window.length;
+				if (!isBuffered(count)) {
+					receivedBits[index >>> 6] |= 1L << index;
+					bufferedMessages++;
+				}
+				window[index] = securableMessage;
+				highestBuffered = Math.max(highestBuffered, count);
+				acknowledgeNeeded = count != lastBuffered + 1;
+				lastBuffered = count;
 				return false;
 			}
 		}
@@ -45,15 +98,57 @@ public class JFGSecureMessageOrder {
 		}
 	}
 	
+	/**
+	 * Check whether the last message that was not in order needs to be acknowledged directly,
+	 * because it opened a new gap (it doesn't follow the message that was buffered before) or didn't fit into the reorder window.
+	 */
+	public synchronized boolean isAcknowledgeNeeded() {
+		return acknowledgeNeeded;
+	}
+	
+	/**
+	 * Check whether a message was already received (so it's a message that was resent because the ACK didn't arrive in time).
+	 * 
+	 * Messages that don't use the send count (a send count of 0) are never known.
+	 */
+	public synchronized boolean isReceived(Serializable message) {
+		if (message instanceof JFGSecurableMessage) {
+			int sendCount = ((JFGSecurableMessage) message).getSendCount();
+			return sendCount > 0 && (sendCount <= lastReceived || isBuffered(sendCount));
+		}
+		return false;
+	}
+	
+	/**
+	 * Check whether the message with a send count is buffered in the window (the bit of the send count is set).
+	 */
+	private boolean isBuffered(int count) {
+		if (count <= lastReceived || count - lastReceived > window.length) {
+			return false;
+		}
+		int index = count % window.length;
+		return (receivedBits[index >>> 6] & (1L << index)) != 0;
+	}
+	
+	/**
+	 * Remove a buffered message from the window and return it.
+	 */
+	private JFGSecurableMessage removeBuffered(int count) {
+		int index = count % window.length;
+		JFGSecurableMessage message = window[index];
+		window[index] = null;
+		receivedBits[index >>> 6] &= ~(1L << index);
+		bufferedMessages--;
+		return message;
+	}
+	
 	/**
 	 * Get the next buffered message or null if there is no such message.
 	 */
-	public JFGSecurableMessage getNextBufferedMessage() {
-		JFGSecurableMessage message = messageBuffer.get(lastReceived+1);
-		if (message != null) {
+	public synchronized JFGSecurableMessage getNextBufferedMessage() {
+		if (isBuffered(lastReceived+1)) {
 			lastReceived++;
-			messageBuffer.remove(lastReceived);
-			return message;
+			return removeBuffered(lastReceived);
 		}
 		else {
 			return null;
@@ -63,7 +158,7 @@ public class JFGSecureMessageOrder {
 	/**
 	 * Add the next send count to a message.
 	 */
-	public void addSendCount(Serializable message) {
+	public synchronized void addSendCount(Serializable message) {
 		if (message instanceof JFGSecurableMessage) {
 			sendCount++;
 			((JFGSecurableMessage) message).setSendCount(sendCount);
@@ -76,19 +171,100 @@ public class JFGSecureMessageOrder {
 	/**
 	 * Get the message number that is expected for the next message.
 	 */
-	public int getExpectedMessageNumber() {
+	public synchronized int getExpectedMessageNumber() {
 		return lastReceived+1;
 	}
 	/**
 	 * Increase the last received message number (without receiving a message).
+	 * 
+	 * Buffered messages that are skipped this way are removed from the window.
 	 */
-	protected void increaseMessageNumber(int increase) {
+	protected synchronized void increaseMessageNumber(int increase) {
+		int skipped = Math.min(increase, window.length);
+		for (int i = 1; i <= skipped; i++) {
+			if (isBuffered(lastReceived + i)) {
+				removeBuffered(lastReceived + i);
+			}
+		}
 		lastReceived += increase;
 	}
 	/**
 	 * Get the number of buffered messages.
 	 */
-	public int getMessagesInBuffer() {
-		return messageBuffer.size();
+	public synchronized int getMessagesInBuffer() {
+		return bufferedMessages;
+	}
+	
+	/**
+	 * Get the number of messages the reorder window can hold.
+	 * 
+	 * The sender may send messages up to the last received send count plus the window size.
+	 */
+	public int getWindowSize() {
+		return window.length;
+	}
+	
+	/**
+	 * Get the send count of the last message that was received in order (all messages up to this count were received).
+	 */
+	public synchronized int getLastReceived() {
+		return lastReceived;
+	}
+	/**
+	 * Get the ranges of the buffered messages, that were received after a gap.
+	 * 
+	 * The range of the message that was buffered last is always the first range, so every range is reported at least once,
+	 * even if there are more ranges than fit into one acknowledgement. The other ranges follow in ascending order.
+	 * 
+	 * @param maxRanges
+	 * 		The maximum number of ranges.
+	 * 
+	 * @return
+	 * 		The ranges as pairs of the first and the last send count of a range (both inclusive) or an empty array if no message is buffered.
+	 */
+	public synchronized int[] getReceivedRanges(int maxRanges) {
+		if (bufferedMessages == 0 || maxRanges <= 0) {
+			return new int[0];
+		}
+		int[] ranges = new int[maxRanges * 2];
+		int rangeCount = 0;
+		//the range of the last buffered message first
+		if (isBuffered(lastBuffered)) {
+			int first = lastBuffered;
+			int last = lastBuffered;
+			while (isBuffered(first - 1)) {
+				first--;
+			}
+			while (isBuffered(last + 1)) {
+				last++;
+			}
+			ranges[0] = first;
+			ranges[1] = last;
+			rangeCount = 1;
+		}
+		//the other ranges in ascending order (the window is searched from the first message after the gap)
+		int count = lastReceived + 2;
+		while (count <= highestBuffered && rangeCount < maxRanges) {
+			if (!isBuffered(count)) {
+				count++;
+				continue;
+			}
+			int first = count;
+			while (isBuffered(count + 1)) {
+				count++;
+			}
+			if (rangeCount == 0 || first != ranges[0]) {
+				ranges[rangeCount * 2] = first;
+				ranges[rangeCount * 2 + 1] = count;
+				rangeCount++;
+			}
+			count++;
+		}
+		if (rangeCount == maxRanges) {
+			return ranges;
+		}
+		int[] usedRanges = new int[rangeCount * 2];
+		System.arraycopy(ranges, 0, usedRanges, 0, usedRanges.length);
+		return usedRanges;
 	}
 }
\ No newline at end of file
@@ -0,0 +1,180 @@
+package net.jfabricationgames.jfgserver.secured_message;
+
+import java.io.IOException;
+
+import net.jfabricationgames.jfgserver.client.JFGClientMessage;
+import net.jfabricationgames.jfgserver.client.JFGServerMessage;
+import net.jfabricationgames.jfgserver.codec.JFGBinaryCodec;
+import net.jfabricationgames.jfgserver.codec.JFGEncodedMessage;
+import net.jfabricationgames.jfgserver.codec.JFGMessageCodec;
+import net.jfabricationgames.jfgserver.codec.JFGSerializationCodec;
+
+/**
+ * The transport envelope of a secured message, that carries the reliability information (message id, send count and a piggybacked acknowledgement)
+ * separate from the message itself.
+ * 
+ * The message is encoded into the envelope's payload, so it doesn't need to implement {@link JFGSecurableMessage} and is never changed by the secured connection.
+ * The same encoded message can be sent to many connections (e.g. a broadcast), because only the envelope is created for every connection.
+ * 
+ * The payload is encoded using the codec of the connection or the java serialization if the connection uses object streams (see {@link #getPayloadCodec(JFGMessageCodec)}).
+ * The envelope can be registered in a {@link JFGBinaryCodec}, so it's fields are not sent using the java serialization.
+ */
+public class JFGSecuredEnvelope implements JFGClientMessage, JFGServerMessage, JFGSecurableMessage {
+	
+	private static final long serialVersionUID = -3514096582046722410L;
+	
+	/**
+	 * The codec of the payloads that are sent by connections without a codec (shared, so a broadcast encodes the payload only once).
+	 */
+	private static final JFGMessageCodec SERIALIZATION_CODEC = new JFGSerializationCodec();
+	
+	private int messageId;
+	private int sendCount;
+	
+	private int acknowledgedSendCount;
+	private int receiveWindow;
+	
+	private byte[] payload;
+	
+	/**
+	 * Constructor for the {@link JFGBinaryCodec}.
+	 */
+	private JFGSecuredEnvelope() {
+		
+	}
+	/**
+	 * Create a new JFGSecuredEnvelope.
+	 * 
+	 * @param payload
+	 * 		The encoded message (the array must not be changed afterwards).
+	 */
+	public JFGSecuredEnvelope(byte[] payload) {
+		this.payload = payload;
+		messageId = (int) (Math.random() * Integer.MAX_VALUE);
+	}
+	/**
+	 * Create an envelope that re-sends a secured message with it's message id and send count.
+	 * 
+	 * @param payload
+	 * 		The message, serialized like the java serialization codec does (the array must not be changed afterwards).
+	 * 
+	 * @param messageId
+	 * 		The id of the secured message.
+	 * 
+	 * @param sendCount
+	 * 		The send count of the secured message.
+	 */
+	JFGSecuredEnvelope(byte[] payload, int messageId, int sendCount) {
+		this.payload = payload;
+		this.messageId = messageId;
+		this.sendCount = sendCount;
+	}
+	
+	/**
+	 * Create an envelope for an encoded message.
+	 * 
+	 * @param message
+	 * 		The encoded message.
+	 * 
+	 * @param codec
+	 * 		The codec of the connection that sends the envelope or null if the connection uses object streams.
+	 * 
+	 * @return
+	 * 		The new envelope.
+	 * 
+	 * @throws IOException
+	 * 		An {@link IOException} is thrown if the message can't be encoded.
+	 */
+	public static JFGSecuredEnvelope of(JFGEncodedMessage message, JFGMessageCodec codec) throws IOException {
+		return new JFGSecuredEnvelope(message.getFrame(getPayloadCodec(codec)).getData());
+	}
+	
+	/**
+	 * Get the codec that encodes the payloads of a connection.
+	 * 
+	 * @param codec
+	 * 		The codec of the connection or null if the connection uses object streams.
+	 * 
+	 * @return
+	 * 		The codec of the connection or the java serialization codec.
+	 */
+	public static JFGMessageCodec getPayloadCodec(JFGMessageCodec codec) {
+		return codec != null ? codec : SERIALIZATION_CODEC;
+	}
+	
+	/**
+	 * Decode the message of the envelope.
+	 * 
+	 * @param codec
+	 * 		The codec of the connection that received the envelope or null if the connection uses object streams.
+	 * 
+	 * @return
+	 * 		The decoded message.
+	 * 
+	 * @throws IOException
+	 * 		An {@link IOException} is thrown if the payload contains no valid message.
+	 * 
+	 * @throws ClassNotFoundException
+	 * 		A {@link ClassNotFoundException} is thrown if the class of the message is unknown.
+	 */
+	public Object getMessage(JFGMessageCodec codec) throws IOException, ClassNotFoundException {
+		return getPayloadCodec(codec).decode(payload, 0, payload.length);
+	}
+	
+	@Override
+	public int getMessageId() {
+		return messageId;
+	}
+	
+	@Override
+	public int getSendCount() {
+		return sendCount;
+	}
+	@Override
+	public void setSendCount(int count) {
+		sendCount = count;
+	}
+	
+	/**
+	 * Set the acknowledgement that is piggybacked by the envelope (all messages up to the send count were received).
+	 * 
+	 * @param acknowledgedSendCount
+	 * 		The send count of the last message the sender of the envelope received in order.
+	 * 
+	 * @param receiveWindow
+	 * 		The number of messages after the send count the sender of the envelope can buffer.
+	 */
+	public void setAcknowledgement(int acknowledgedSendCount, int receiveWindow) {
+		this.acknowledgedSendCount = acknowledgedSendCount;
+		this.receiveWindow = receiveWindow;
+	}
+	
+	/**
+	 * Check whether the envelope carries an acknowledgement.
+	 */
+	public boolean isAcknowledging() {
+		return receiveWindow > 0;
+	}
+	
+	public int getAcknowledgedSendCount() {
+		return acknowledgedSendCount;
+	}
+	
+	public int getReceiveWindow() {
+		return receiveWindow;
+	}
+	
+	/**
+	 * Create a copy of this envelope to re-send it (without the piggybacked acknowledgement, that is outdated when the copy is sent).
+	 */
+	JFGSecuredEnvelope copyForResend() {
+		return new JFGSecuredEnvelope(payload, messageId, sendCount);
+	}
+	
+	/**
+	 * Get the number of bytes of the encoded message.
+	 */
+	public int getPayloadSize() {
+		return payload.length;
+	}
+}
@@ -0,0 +1,19 @@
+package net.jfabricationgames.jfgserver.secured_message;
+
+/**
+ * The policy that is used if the send window of a {@link JFGCommunicationSecurity} is full, because too many secured messages were not acknowledged yet.
+ */
+public enum JFGSendWindowPolicy {
+	
+	/**
+	 * Wait till the window has room for the message (the receiver acknowledged earlier messages).
+	 * If the window is still full after the send window timeout a {@link JFGSecureCommunicationException} is thrown.
+	 * The ACKs are received by the thread that reads the connection, so this thread (e.g. an interpreter that answers a message) doesn't wait.
+	 * It's messages are queued instead and sent when an ACK makes room in the window.
+	 */
+	BLOCK,
+	/**
+	 * Don't send the message and throw a {@link JFGSecureCommunicationException} directly.
+	 */
+	REJECT;
+}
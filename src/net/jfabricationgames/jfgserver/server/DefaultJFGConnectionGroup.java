@@ -1,15 +1,17 @@
 package net.jfabricationgames.jfgserver.server;
 
+import java.util.Collections;
 import java.util.List;
 
 import net.jfabricationgames.jfgserver.client.JFGClientMessage;
+import net.jfabricationgames.jfgserver.codec.JFGEncodedMessage;
 
 /**
  * A simple implementation of a {@link JFGConnectionGroup} used as default in the {@link JFGGroupServer}.
  */
 public class DefaultJFGConnectionGroup implements JFGConnectionGroup {
 	
-	private List<JFGConnection> connections;
+	private volatile List<JFGConnection> connections;
 	
 	/**
 	 * Create a new DefaultJFGConnectionGroup to use as a factory.
@@ -30,6 +32,20 @@ public class DefaultJFGConnectionGroup implements JFGConnectionGroup {
 		return group;
 	}
 	
+	/**
+	 * Dissolve the group. The group contains no connections afterwards, so no more messages are sent to the former members.
+	 */
+	public void dissolve() {
+		connections = Collections.emptyList();
+	}
+	/**
+	 * Reuse a dissolved group (from the group pool of the {@link JFGGroupServer}) for new connections.
+	 */
+	void reuse(List<JFGConnection> connections) {
+		this.connections = connections;
+		groupStarted();
+	}
+	
 	@Override
 	public void groupStarted() {
 		DefaultJFGMessage message = new DefaultJFGMessage();
@@ -39,16 +55,27 @@ public class DefaultJFGConnectionGroup implements JFGConnectionGroup {
 	
 	@Override
 	public <T extends JFGClientMessage> void sendGroupBroadcast(T message) {
+		//encode the message only once for all connections
+		sendGroupBroadcast(new JFGEncodedMessage(message));
+	}
+	/**
+	 * Send an encoded broadcast message to all connections in this group.
+	 * 
+	 * @param message
+	 * 		The encoded message sent to all connections.
+	 */
+	public void sendGroupBroadcast(JFGEncodedMessage message) {
 		for (JFGConnection con : connections) {
-			con.sendMessage(message);
+			con.sendEncodedMessage(message);
 		}
 	}
 	
 	@Override
 	public <T extends JFGClientMessage> void sendMessage(T message, JFGConnection fromConnection) {
+		JFGEncodedMessage encodedMessage = new JFGEncodedMessage(message);
 		for (JFGConnection con : connections) {
 			if (!con.equals(fromConnection)) {
-				con.sendMessage(message);
+				con.sendEncodedMessage(encodedMessage);
 			}
 		}
 	}
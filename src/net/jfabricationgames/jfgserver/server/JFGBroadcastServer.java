@@ -2,6 +2,9 @@ package net.jfabricationgames.jfgserver.server;
 
 import net.jfabricationgames.jfgserver.client.JFGClientMessage;
 import net.jfabricationgames.jfgserver.client.JFGServerMessage;
+import net.jfabricationgames.jfgserver.codec.JFGEncodedMessage;
+import net.jfabricationgames.jfgserver.codec.JFGFrame;
+import net.jfabricationgames.jfgserver.interpreter.JFGRelayInterpreter;
 import net.jfabricationgames.jfgserver.interpreter.JFGServerInterpreter;
 
 /**
@@ -31,15 +34,27 @@ public class JFGBroadcastServer extends JFGServer {
 	 * 		The message to be sent.
 	 */
 	public void sendBroadcast(JFGClientMessage message) {
+		//encode the message only once for all connections
+		sendBroadcast(new JFGEncodedMessage(message));
+	}
+	/**
+	 * Send an encoded broadcast message (message to all known connections).
+	 * 
+	 * @param message
+	 * 		The encoded message to be sent.
+	 */
+	public void sendBroadcast(JFGEncodedMessage message) {
 		for (JFGConnection con : connections) {
-			con.sendMessage(message);
+			con.sendEncodedMessage(message);
 		}
 	}
 	
 	/**
 	 * A simple implementation of a broadcast interpreter.
+	 * 
+	 * If the server uses a codec the received frames are relayed without decoding them.
 	 */
-	private class BroadcastInterpreter implements JFGServerInterpreter {
+	private class BroadcastInterpreter implements JFGRelayInterpreter {
 		
 		@Override
 		public void interpreteServerMessage(JFGServerMessage message, JFGConnection connection) {
@@ -51,6 +66,16 @@ public class JFGBroadcastServer extends JFGServer {
 			}
 		}
 		
+		@Override
+		public void interpreteFrame(JFGFrame frame, JFGConnection connection) {
+			if (frame.isClientMessage()) {
+				sendBroadcast(new JFGEncodedMessage(frame, connection.getMessageCodec()));
+			}
+			else {
+				JFGServer.printError("JFGBroadcastServer: Couldn't repeat. Message doesn't implement JFGClientMessage", JFGServer.ERROR_LEVEL_DEBUG);
+			}
+		}
+		
 		@Override
 		public JFGServerInterpreter getInstance() {
 			return new BroadcastInterpreter();
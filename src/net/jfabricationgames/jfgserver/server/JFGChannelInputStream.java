@@ -0,0 +1,258 @@
+package net.jfabricationgames.jfgserver.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StreamCorruptedException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+import net.jfabricationgames.jfgserver.codec.JFGFrame;
+import net.jfabricationgames.jfgserver.codec.JFGMessageScanner;
+
+/**
+ * An InputStream that reads from a (non-blocking) {@link SocketChannel}.
+ *
+ * The stream buffers the received data. The {@link JFGEventLoopGroup} reads the data that is available without waiting (see {@link #readAvailable()})
+ * and only passes the connection on to a worker when a message is complete (see {@link #hasCompleteMessage()}).
+ * The end of a message is found by the stream's {@link JFGMessageScanner}, so a worker never waits for the rest of a message that a slow client didn't send yet.
+ *
+ * Without a scanner (e.g. while the stream header is read in the handshake) a read waits till the channel is readable, so the stream can be used like a normal socket stream.
+ * Like a normal socket stream the read fails with a {@link SocketTimeoutException} if the socket's timeout (SO_TIMEOUT) is exceeded.
+ */
+public class JFGChannelInputStream extends InputStream {
+	
+	/**
+	 * The size of the read buffer of every connection. The buffer grows if a message is bigger.
+	 */
+	public static final int BUFFER_SIZE = 2048;
+	/**
+	 * The maximum size of a message. Bigger messages are treated as a corrupted stream.
+	 */
+	public static final int MAX_MESSAGE_SIZE = JFGFrame.MAX_FRAME_SIZE + 5;
+	
+	private SocketChannel channel;
+	
+	private byte[] buffer;
+	private int position;
+	private int limit;
+	private boolean endOfStream;
+	
+	private JFGMessageScanner scanner;
+	//the end of the complete message that is read next or -1 if the next message was not scanned yet
+	private int messageEnd = -1;
+	//the number of bytes the next message needs at least
+	private int requiredSize;
+	
+	public JFGChannelInputStream(SocketChannel channel) {
+		this.channel = channel;
+		buffer = new byte[BUFFER_SIZE];
+	}
+	
+	@Override
+	public synchronized int read() throws IOException {
+		if (!fill()) {
+			return -1;
+		}
+		return buffer[position++] & 0xFF;
+	}
+	
+	@Override
+	public synchronized int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (!fill()) {
+			return -1;
+		}
+		int read = Math.min(len, limit - position);
+		System.arraycopy(buffer, position, b, off, read);
+		position += read;
+		return read;
+	}
+	
+	/**
+	 * The number of bytes that are already buffered and can be read without a call to the channel.
+	 */
+	@Override
+	public synchronized int available() {
+		return limit - position;
+	}
+	
+	/**
+	 * Read the data that the channel has received, without waiting for more data.
+	 *
+	 * The buffer only grows if the next message doesn't fit into it, so a client can't make the server buffer more than one message.
+	 *
+	 * @return
+	 * 		False if the end of the stream is reached.
+	 *
+	 * @throws IOException
+	 * 		An {@link IOException} is thrown if the channel can't be read or the next message is too big.
+	 */
+	public synchronized boolean readAvailable() throws IOException {
+		if (endOfStream) {
+			return false;
+		}
+		compact();
+		while (limit < buffer.length || grow()) {
+			int read;
+			try {
+				read = channel.read(ByteBuffer.wrap(buffer, limit, buffer.length - limit));
+			}
+			catch (IOException ioe) {
+				//nothing more can be read from the channel
+				endOfStream = true;
+				throw ioe;
+			}
+			if (read < 0) {
+				endOfStream = true;
+				return false;
+			}
+			if (read == 0) {
+				break;
+			}
+			limit += read;
+		}
+		return true;
+	}
+	
+	/**
+	 * Check whether the next message was received completely, so it can be read without waiting.
+	 *
+	 * The message has to be read before the next call to this method (after the message is read, the next message is scanned).
+	 *
+	 * @return
+	 * 		True if the next message is complete. Without a {@link JFGMessageScanner} every buffered data counts as a complete message.
+	 *
+	 * @throws IOException
+	 * 		An {@link IOException} is thrown if the buffered data is no valid message.
+	 */
+	public synchronized boolean hasCompleteMessage() throws IOException {
+		if (scanner == null) {
+			return position < limit;
+		}
+		if (messageEnd >= 0) {
+			if (position < messageEnd) {
+				return true;
+			}
+			if (position > messageEnd) {
+				throw new StreamCorruptedException("JFGChannelInputStream: More data was read than the message contains.");
+			}
+			messageEnd = -1;
+		}
+		int available = limit - position;
+		if (available == 0 || available < requiredSize) {
+			return false;
+		}
+		int size = scanner.scan(buffer, position, available);
+		if (size < 0) {
+			requiredSize = -size;
+			if (requiredSize > MAX_MESSAGE_SIZE) {
+				throw new StreamCorruptedException("JFGChannelInputStream: The message is too big (" + requiredSize + " bytes).");
+			}
+			return false;
+		}
+		requiredSize = 0;
+		messageEnd = position + size;
+		return true;
+	}
+	
+	/**
+	 * Check whether the client has closed the connection (the buffered data can still be read).
+	 */
+	public synchronized boolean isEndOfStream() {
+		return endOfStream;
+	}
+	
+	public synchronized JFGMessageScanner getMessageScanner() {
+		return scanner;
+	}
+	/**
+	 * Set the scanner that finds the end of the messages. The scanner is used for all data that was not read yet.
+	 *
+	 * @param scanner
+	 * 		The scanner of the stream's format or null to read without checking the messages.
+	 */
+	public synchronized void setMessageScanner(JFGMessageScanner scanner) {
+		this.scanner = scanner;
+		messageEnd = -1;
+		requiredSize = 0;
+	}
+	
+	/**
+	 * Move the unread data to the start of the buffer. A buffer that has grown for a big message is freed if it's empty.
+	 */
+	private void compact() {
+		if (position == limit && buffer.length > BUFFER_SIZE) {
+			buffer = new byte[BUFFER_SIZE];
+		}
+		else if (position > 0) {
+			System.arraycopy(buffer, position, buffer, 0, limit - position);
+		}
+		if (messageEnd >= 0) {
+			messageEnd -= position;
+		}
+		limit -= position;
+		position = 0;
+	}
+	
+	/**
+	 * Grow the full buffer if the next message is not complete (called after the buffer was compacted).
+	 *
+	 * @return
+	 * 		True if the buffer has grown.
+	 */
+	private boolean grow() throws IOException {
+		if (scanner == null || hasCompleteMessage()) {
+			//the complete messages are read first
+			return false;
+		}
+		if (buffer.length >= MAX_MESSAGE_SIZE) {
+			throw new StreamCorruptedException("JFGChannelInputStream: The message is too big (more than " + MAX_MESSAGE_SIZE + " bytes).");
+		}
+		int capacity = (int) Math.min(MAX_MESSAGE_SIZE, Math.max(requiredSize, buffer.length * 2L));
+		byte[] grown = new byte[capacity];
+		System.arraycopy(buffer, 0, grown, 0, limit);
+		buffer = grown;
+		return true;
+	}
+	
+	/**
+	 * Make sure there is buffered data to be read.
+	 *
+	 * Without a scanner this waits till the channel is readable if there is no data available. With a scanner only the complete messages are read,
+	 * so the data is always buffered already (a worker never waits for the channel).
+	 *
+	 * @return
+	 * 		False if the end of the stream is reached.
+	 */
+	private boolean fill() throws IOException {
+		while (position == limit) {
+			if (endOfStream) {
+				return false;
+			}
+			if (scanner != null) {
+				throw new StreamCorruptedException("JFGChannelInputStream: The message is longer than it's scanned size.");
+			}
+			position = 0;
+			limit = 0;
+			int read = channel.read(ByteBuffer.wrap(buffer));
+			if (read < 0) {
+				endOfStream = true;
+				return false;
+			}
+			limit = read;
+			if (read == 0 && !JFGEventLoopGroup.awaitReady(channel, SelectionKey.OP_READ, channel.socket().getSoTimeout())) {
+				throw new SocketTimeoutException("JFGChannelInputStream: Read timed out.");
+			}
+		}
+		return true;
+	}
+	
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}
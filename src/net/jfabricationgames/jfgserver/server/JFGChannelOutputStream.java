@@ -0,0 +1,224 @@
+package net.jfabricationgames.jfgserver.server;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+
+/**
+ * An OutputStream that writes to a (non-blocking) {@link SocketChannel}.
+ *
+ * While the channel is registered to a {@link JFGEventLoopGroup} the stream never waits for the channel. The data that the channel can't take is queued
+ * and the event loop writes it when the channel is writable again (OP_WRITE). If a slow client lets the queued data exceed {@link #MAX_PENDING_SIZE}
+ * the writing thread waits till the event loop has written the data (backpressure), so a client that doesn't read can't fill the server's memory.
+ *
+ * Before the channel is registered (e.g. while the stream header is written in the handshake) the stream waits till the channel is writable, like a normal socket stream.
+ */
+public class JFGChannelOutputStream extends OutputStream {
+	
+	/**
+	 * The maximum number of queued bytes before a writing thread waits for the event loop.
+	 */
+	public static final int MAX_PENDING_SIZE = 1024 * 1024;
+	/**
+	 * The maximum time in milliseconds that a close waits to write the queued data.
+	 */
+	public static final int CLOSE_TIMEOUT = 1000;
+	
+	private SocketChannel channel;
+	private SelectionKey selectionKey;
+	
+	private Queue<ByteBuffer> pending;
+	private int pendingSize;
+	private boolean closed;
+	
+	public JFGChannelOutputStream(SocketChannel channel) {
+		this.channel = channel;
+		pending = new ArrayDeque<ByteBuffer>();
+	}
+	
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] {(byte) b}, 0, 1);
+	}
+	
+	@Override
+	public synchronized void write(byte[] b, int off, int len) throws IOException {
+		if (closed) {
+			throw new ClosedChannelException();
+		}
+		ByteBuffer data = ByteBuffer.wrap(b, off, len);
+		if (!isRegistered()) {
+			writeBlocking(0);
+			writeBlocking(data, 0);
+			return;
+		}
+		if (pending.isEmpty()) {
+			channel.write(data);
+			if (!data.hasRemaining()) {
+				return;
+			}
+			JFGEventLoopGroup.setInterest(selectionKey, SelectionKey.OP_WRITE, true);
+		}
+		//the caller may reuse the array, so the data is copied
+		pending.add(ByteBuffer.wrap(Arrays.copyOfRange(b, data.position(), data.limit())));
+		pendingSize += data.remaining();
+		awaitPendingData();
+	}
+	
+	/**
+	 * Write the queued data that the channel can take (called by the event loop when the channel is writable).
+	 *
+	 * @throws IOException
+	 * 		An {@link IOException} is thrown if the channel can't be written.
+	 */
+	public synchronized void writePending() throws IOException {
+		try {
+			while (!pending.isEmpty()) {
+				ByteBuffer data = pending.peek();
+				pendingSize -= channel.write(data);
+				if (data.hasRemaining()) {
+					break;
+				}
+				pending.poll();
+			}
+		}
+		catch (IOException ioe) {
+			//the data can't be written anymore
+			pending.clear();
+			pendingSize = 0;
+			throw ioe;
+		}
+		finally {
+			if (isRegistered()) {
+				JFGEventLoopGroup.setInterest(selectionKey, SelectionKey.OP_WRITE, !pending.isEmpty());
+			}
+			if (pendingSize <= MAX_PENDING_SIZE) {
+				notifyAll();
+			}
+		}
+	}
+	
+	/**
+	 * The number of bytes that are queued, because the channel couldn't take them yet.
+	 */
+	public synchronized int getPendingSize() {
+		return pendingSize;
+	}
+	
+	/**
+	 * Set the key of the channel's registration to the event loop. Without a key the stream waits for the channel.
+	 *
+	 * @param selectionKey
+	 * 		The key of the channel or null if the channel is not registered (anymore).
+	 */
+	public synchronized void setSelectionKey(SelectionKey selectionKey) {
+		this.selectionKey = selectionKey;
+		if (isRegistered() && !pending.isEmpty()) {
+			JFGEventLoopGroup.setInterest(selectionKey, SelectionKey.OP_WRITE, true);
+		}
+		notifyAll();
+	}
+	
+	/**
+	 * Remove the key of the channel's registration, if the channel was not registered with another key meanwhile (e.g. by a re-login).
+	 *
+	 * @param selectionKey
+	 * 		The key that was cancelled.
+	 */
+	public synchronized void removeSelectionKey(SelectionKey selectionKey) {
+		if (this.selectionKey == selectionKey) {
+			this.selectionKey = null;
+			notifyAll();
+		}
+	}
+	
+	/**
+	 * Check whether the channel is registered to an event loop that writes the queued data.
+	 */
+	private boolean isRegistered() {
+		return selectionKey != null && selectionKey.isValid();
+	}
+	
+	/**
+	 * Wait till the event loop has written the queued data, if more data than {@link #MAX_PENDING_SIZE} is queued.
+	 * The event loop thread itself never waits.
+	 */
+	private void awaitPendingData() throws IOException {
+		while (pendingSize > MAX_PENDING_SIZE && !JFGEventLoopGroup.isEventLoopThread()) {
+			if (!isRegistered()) {
+				//the channel was deregistered meanwhile, so the data is written here
+				writeBlocking(0);
+				return;
+			}
+			try {
+				//the key could be cancelled without a notification
+				wait(CLOSE_TIMEOUT);
+			}
+			catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("JFGChannelOutputStream: Interrupted while waiting for the queued data to be written.");
+			}
+			if (closed) {
+				throw new ClosedChannelException();
+			}
+		}
+	}
+	
+	/**
+	 * Write the queued data and wait till the channel is writable.
+	 *
+	 * @return
+	 * 		False if the timeout was exceeded.
+	 */
+	private boolean writeBlocking(int timeout) throws IOException {
+		while (!pending.isEmpty()) {
+			ByteBuffer data = pending.peek();
+			int remaining = data.remaining();
+			boolean written = writeBlocking(data, timeout);
+			pendingSize -= remaining - data.remaining();
+			if (!written) {
+				return false;
+			}
+			pending.poll();
+		}
+		notifyAll();
+		return true;
+	}
+	private boolean writeBlocking(ByteBuffer data, int timeout) throws IOException {
+		while (data.hasRemaining()) {
+			if (channel.write(data) == 0 && !JFGEventLoopGroup.awaitReady(channel, SelectionKey.OP_WRITE, timeout)) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Close the channel. The queued data is written first (waiting at most {@link #CLOSE_TIMEOUT} milliseconds for the channel).
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			if (channel.isOpen() && !writeBlocking(CLOSE_TIMEOUT)) {
+				JFGServer.printError("JFGChannelOutputStream: The queued data couldn't be written before the channel was closed.", JFGServer.ERROR_LEVEL_DEBUG);
+			}
+		}
+		finally {
+			pending.clear();
+			pendingSize = 0;
+			notifyAll();
+			channel.close();
+		}
+	}
+}
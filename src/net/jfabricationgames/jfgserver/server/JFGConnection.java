@@ -1,14 +1,32 @@
 package net.jfabricationgames.jfgserver.server;
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 import net.jfabricationgames.jfgserver.client.JFGClientMessage;
 import net.jfabricationgames.jfgserver.client.JFGServerMessage;
+import net.jfabricationgames.jfgserver.codec.JFGCoalescingOutputStream;
+import net.jfabricationgames.jfgserver.codec.JFGEncodedMessage;
+import net.jfabricationgames.jfgserver.codec.JFGFrame;
+import net.jfabricationgames.jfgserver.codec.JFGMessageCodec;
+import net.jfabricationgames.jfgserver.codec.JFGObjectInputStream;
+import net.jfabricationgames.jfgserver.codec.JFGObjectOutputStream;
+import net.jfabricationgames.jfgserver.codec.JFGObjectStreamScanner;
+import net.jfabricationgames.jfgserver.codec.JFGResetPolicy;
+import net.jfabricationgames.jfgserver.codec.JFGWriteBatch;
+import net.jfabricationgames.jfgserver.interpreter.JFGRelayInterpreter;
 import net.jfabricationgames.jfgserver.interpreter.JFGServerInterpreter;
 
 /**
@@ -16,6 +34,9 @@ import net.jfabricationgames.jfgserver.interpreter.JFGServerInterpreter;
  * For every client there is one JFGConnection instance.
  * 
  * The connection is used to forward the messages from the client to the interpreter and vice versa.
+ * 
+ * If the server uses a {@link JFGMessageCodec} the messages are sent as {@link JFGFrame}s (using frameIn and frameOut).
+ * Otherwise they are written to an object stream (using serverIn and serverOut).
  */
 public class JFGConnection implements Runnable {
 	
@@ -25,12 +46,33 @@ public class JFGConnection implements Runnable {
 	protected ObjectInputStream serverIn;
 	protected ObjectOutputStream serverOut;
 	
-	private Thread connection;
-	protected int sleepTime = 100;
+	protected JFGMessageCodec codec;
+	protected DataInputStream frameIn;
+	protected DataOutputStream frameOut;
+	
+	private InputStream socketIn;
+	private JFGCoalescingOutputStream socketOut;
+	private JFGChannelOutputStream channelOut;
+	
+	private JFGOutboundQueue outboundQueue;
+	
+	private volatile Thread connection;
+	protected int sleepTime = 0;
+	private long lastMessageTime;
+	
+	private volatile JFGEventLoopGroup eventLoopGroup;
+	private SelectionKey selectionKey;
+	final Object selectionLock = new Object();
 	
 	protected JFGConnectionGroup group;
 	protected JFGServerInterpreter interpreter;
 	
+	private volatile int connectionId = -1;
+	private volatile JFGLoginState loginState = JFGLoginState.NEW;
+	
+	private static final AtomicReferenceFieldUpdater<JFGConnection, JFGLoginState> loginStateUpdater = AtomicReferenceFieldUpdater
+			.newUpdater(JFGConnection.class, JFGLoginState.class, "loginState");
+	
 	private static boolean resetBeforeSending = false;
 	
 	/**
@@ -51,8 +93,7 @@ public class JFGConnection implements Runnable {
 	public JFGConnection(JFGServer server, Socket socket) throws IOException {
 		this.server = server;
 		this.socket = socket;
-		serverOut = new ObjectOutputStream(socket.getOutputStream());
-		serverIn = new ObjectInputStream(socket.getInputStream());
+		createStreams(true);
 	}
 	/**
 	 * Create a new JFGConnection and pass on the server and the connected socket and an interpreter.
@@ -77,11 +118,10 @@ public class JFGConnection implements Runnable {
 		if (interpreter == null) {
 			throw new IllegalArgumentException("Interpreter mussnt be null.");
 		}
-		serverIn = new ObjectInputStream(socket.getInputStream());
-		serverOut = new ObjectOutputStream(socket.getOutputStream());
+		createStreams(false);
 		startConnection();
 	}
-
+	
 	/**
 	 * Create a new JFGConnection from another connection by cloning it.
 	 * 
@@ -93,10 +133,21 @@ public class JFGConnection implements Runnable {
 		this.socket = connection.socket;
 		this.serverIn = connection.serverIn;
 		this.serverOut = connection.serverOut;
+		this.codec = connection.codec;
+		this.frameIn = connection.frameIn;
+		this.frameOut = connection.frameOut;
+		this.socketIn = connection.socketIn;
+		this.socketOut = connection.socketOut;
+		this.channelOut = connection.channelOut;
 		this.connection = connection.connection;
+		this.eventLoopGroup = connection.eventLoopGroup;
+		this.selectionKey = connection.selectionKey;
 		this.sleepTime = connection.sleepTime;
 		this.group = connection.group;
 		this.interpreter = connection.interpreter;
+		if (connection.outboundQueue != null) {
+			outboundQueue = server.createOutboundQueue(this);
+		}
 	}
 	
 	/**
@@ -113,22 +164,18 @@ public class JFGConnection implements Runnable {
 	public void run() {
 		try {
 			while (true) {
-				Object clientRequest = serverIn.readObject();
-				if (clientRequest instanceof JFGServerMessage) {
-					receiveMessage((JFGServerMessage) clientRequest);
-				}
-				else {
-					JFGServer.printError("JFGConnection: Received object is no JFGServerMessage. Couldn't interprete the message.", JFGServer.ERROR_LEVEL_DEBUG);
-				}
-				Thread.sleep(sleepTime);
+				readMessage();
+				limitRate();
 			}
 		}
 		catch (SocketException | EOFException e) {
 			//occurs when the connection is closed by the client and the server tries to read/write from/to the connection.
 			JFGServer.printError(e, JFGServer.ERROR_LEVEL_INFO);
+			endClosedConnection();
 		}
 		catch (IOException ioe) {
 			JFGServer.printError(ioe, JFGServer.ERROR_LEVEL_ERROR);
+			endClosedConnection();
 		}
 		catch (InterruptedException ie) {
 			JFGServer.printError(ie, JFGServer.ERROR_LEVEL_ALL);
@@ -138,6 +185,287 @@ public class JFGConnection implements Runnable {
 		}
 	}
 	
+	/**
+	 * End the connection after the client closed it (like the non-blocking engine does), so the server and the groups don't keep it.
+	 * If the connection was stopped or restarted meanwhile (e.g. by a re-login) it's not ended.
+	 */
+	private void endClosedConnection() {
+		if (connection == Thread.currentThread()) {
+			endConnection();
+		}
+	}
+	
+	/**
+	 * Read the next message from the client and pass it on to {@link #receiveMessage(JFGServerMessage)}.
+	 * 
+	 * @throws IOException
+	 * 		An {@link IOException} is thrown if the message couldn't be read.
+	 * 
+	 * @throws ClassNotFoundException
+	 * 		A {@link ClassNotFoundException} is thrown if the class of the received object is unknown.
+	 */
+	protected void readMessage() throws IOException, ClassNotFoundException {
+		if (isRelayEnabled()) {
+			receiveFrame(JFGFrame.read(frameIn));
+			return;
+		}
+		Object clientRequest = readObject();
+		if (clientRequest instanceof JFGServerMessage) {
+			receiveMessage((JFGServerMessage) clientRequest);
+		}
+		else {
+			JFGServer.printError("JFGConnection: Received object is no JFGServerMessage. Couldn't interprete the message.", JFGServer.ERROR_LEVEL_DEBUG);
+		}
+	}
+	
+	/**
+	 * Read the next object from the client (from the object stream or the next frame if a codec is used).
+	 * 
+	 * @return
+	 * 		The object that was read.
+	 * 
+	 * @throws IOException
+	 * 		An {@link IOException} is thrown if the object couldn't be read.
+	 * 
+	 * @throws ClassNotFoundException
+	 * 		A {@link ClassNotFoundException} is thrown if the class of the received object is unknown.
+	 */
+	protected Object readObject() throws IOException, ClassNotFoundException {
+		if (codec != null) {
+			return JFGFrame.read(frameIn).decode(codec);
+		}
+		return serverIn.readObject();
+	}
+	
+	/**
+	 * Create the streams of the socket. The streams depend on the {@link JFGMessageCodec} of the server.
+	 * 
+	 * @param outputFirst
+	 * 		Create the output stream before the input stream (only relevant for the object streams).
+	 */
+	private void createStreams(boolean outputFirst) throws IOException {
+		codec = server.getMessageCodec();
+		socketIn = openInputStream(socket);
+		OutputStream out = openOutputStream(socket);
+		channelOut = out instanceof JFGChannelOutputStream ? (JFGChannelOutputStream) out : null;
+		socketOut = new JFGCoalescingOutputStream(out);
+		socketOut.setAutoFlush(server.isAutoFlush());
+		socketOut.setFlushThreshold(server.getFlushThreshold());
+		socketOut.setFlushDelay(server.getFlushDelay());
+		if (codec != null) {
+			//the channel stream is buffered already; another buffer would hide the buffered data from the event loop
+			frameIn = new DataInputStream(socketIn instanceof JFGChannelInputStream ? socketIn : new BufferedInputStream(socketIn));
+			frameOut = new DataOutputStream(socketOut);
+		}
+		else if (outputFirst) {
+			serverOut = createObjectOutputStream();
+			//the client needs the stream header to create it's input stream
+			socketOut.flushNow();
+			serverIn = new JFGObjectInputStream(socketIn);
+		}
+		else {
+			serverIn = new JFGObjectInputStream(socketIn);
+			serverOut = createObjectOutputStream();
+			socketOut.flushNow();
+		}
+		JFGChannelInputStream channelIn = getChannelInput();
+		if (channelIn != null) {
+			//the event loop passes the connection on to a worker when a message is complete
+			if (codec != null) {
+				channelIn.setMessageScanner(JFGFrame.SCANNER);
+			}
+			else {
+				channelIn.setMessageScanner(new JFGObjectStreamScanner(((JFGObjectInputStream) serverIn).isCachedDescriptors()));
+			}
+		}
+		outboundQueue = server.createOutboundQueue(this);
+	}
+	
+	private JFGObjectOutputStream createObjectOutputStream() throws IOException {
+		JFGObjectOutputStream out = new JFGObjectOutputStream(socketOut, server.isDescriptorCaching());
+		out.setResetPolicy(server.getResetPolicy());
+		return out;
+	}
+	
+	/**
+	 * Read all messages that are available without waiting for new data.
+	 * 
+	 * This method is used instead of the {@link #run()} method when the connection is handled by the non-blocking {@link JFGEventLoopGroup}.
+	 * If the client closed the connection or the interpreter throws a RuntimeException the connection is ended and removed from the server.
+	 */
+	protected void readAvailableMessages() {
+		try {
+			readBufferedMessages();
+		}
+		catch (SocketException | EOFException e) {
+			//occurs when the connection is closed by the client and the server tries to read/write from/to the connection.
+			JFGServer.printError(e, JFGServer.ERROR_LEVEL_INFO);
+			endConnection();
+		}
+		catch (IOException ioe) {
+			JFGServer.printError(ioe, JFGServer.ERROR_LEVEL_ERROR);
+			endConnection();
+		}
+		catch (ClassNotFoundException cnfe) {
+			JFGServer.printError(cnfe, JFGServer.ERROR_LEVEL_DEBUG);
+		}
+		catch (RuntimeException re) {
+			//an interpreter failed; the worker must not stop without ending the connection, because it would never be selected again
+			JFGServer.printError(re, JFGServer.ERROR_LEVEL_ERROR);
+			endConnection();
+		}
+	}
+	
+	/**
+	 * Read the messages that were received completely (in a worker of the non-blocking engine).
+	 * 
+	 * The messages are read till the buffer contains no complete message, the rate limit is reached or the connection was stopped or restarted by a message.
+	 * 
+	 * @throws EOFException
+	 * 		An {@link EOFException} is thrown if the client closed the connection and all complete messages were read.
+	 * 
+	 * @throws IOException
+	 * 		An {@link IOException} is thrown if a message couldn't be read.
+	 * 
+	 * @throws ClassNotFoundException
+	 * 		A {@link ClassNotFoundException} is thrown if the class of a received object is unknown.
+	 */
+	protected void readBufferedMessages() throws IOException, ClassNotFoundException {
+		JFGChannelInputStream in = getChannelInput();
+		if (in == null) {
+			//the streams were passed on by a restart; they are read like the streams of a thread
+			readMessage();
+			messageRead();
+			return;
+		}
+		while (in.hasCompleteMessage()) {
+			readMessage();
+			messageRead();
+			if (!isNonBlocking() || getRateLimitDelay() > 0 || in != getChannelInput()) {
+				return;
+			}
+		}
+		if (in.isEndOfStream()) {
+			throw new EOFException("JFGConnection: The client closed the connection.");
+		}
+	}
+	
+	/**
+	 * Wait till the next message may be read, if the message rate is limited by the sleep time.
+	 * 
+	 * @throws InterruptedException
+	 * 		An {@link InterruptedException} is thrown if the connection's thread was interrupted (also if the rate is not limited).
+	 */
+	protected void limitRate() throws InterruptedException {
+		if (Thread.interrupted()) {
+			throw new InterruptedException("JFGConnection: The connection thread was interrupted.");
+		}
+		long delay = getRateLimitDelay();
+		if (delay > 0) {
+			Thread.sleep(delay);
+		}
+		messageRead();
+	}
+	/**
+	 * Remember the time of the last read message for the rate limit.
+	 */
+	protected void messageRead() {
+		if (sleepTime > 0) {
+			lastMessageTime = System.currentTimeMillis();
+		}
+	}
+	/**
+	 * Get the time till the next message may be read (if the message rate is limited by the sleep time).
+	 * 
+	 * @return
+	 * 		The time in milliseconds or 0 if the next message can be read directly.
+	 */
+	protected long getRateLimitDelay() {
+		if (sleepTime <= 0) {
+			return 0;
+		}
+		return Math.max(0, lastMessageTime + sleepTime - System.currentTimeMillis());
+	}
+	
+	/**
+	 * Check whether the next message was received completely, so it can be read without waiting (only known for connections of the non-blocking engine).
+	 * 
+	 * @return
+	 * 		True if the next message can be read directly or the client has closed the connection.
+	 */
+	protected boolean hasBufferedMessage() {
+		JFGChannelInputStream in = getChannelInput();
+		try {
+			return in != null && (in.hasCompleteMessage() || in.isEndOfStream());
+		}
+		catch (IOException ioe) {
+			//the next read will report the error
+			return true;
+		}
+	}
+	
+	/**
+	 * Read the data that the client has sent into the connection's buffer, without waiting (called by the event loop).
+	 * 
+	 * @return
+	 * 		True if a worker needs to read the connection (because a message is complete, the client closed the connection or the data is no valid message).
+	 */
+	boolean receiveInput() {
+		JFGChannelInputStream in = getChannelInput();
+		if (in == null) {
+			return true;
+		}
+		try {
+			return !in.readAvailable() || in.hasCompleteMessage();
+		}
+		catch (IOException ioe) {
+			//the worker ends the connection when it reads the error
+			JFGServer.printError(ioe, JFGServer.ERROR_LEVEL_INFO);
+			return true;
+		}
+	}
+	
+	/**
+	 * Get the buffered input stream of the channel (only used by connections of the non-blocking engine).
+	 * 
+	 * @return
+	 * 		The stream or null if the socket is read using a normal socket stream.
+	 */
+	JFGChannelInputStream getChannelInput() {
+		InputStream in = socketIn;
+		return in instanceof JFGChannelInputStream ? (JFGChannelInputStream) in : null;
+	}
+	/**
+	 * Get the output stream of the channel that queues the data that the channel can't take (only used by connections of the non-blocking engine).
+	 * 
+	 * @return
+	 * 		The stream or null if the socket is written using a normal socket stream.
+	 */
+	JFGChannelOutputStream getChannelOutput() {
+		return channelOut;
+	}
+	
+	/**
+	 * Get the input stream of a socket. Sockets from a non-blocking channel are read using a {@link JFGChannelInputStream}.
+	 */
+	protected static InputStream openInputStream(Socket socket) throws IOException {
+		SocketChannel channel = socket.getChannel();
+		if (channel != null && !channel.isBlocking()) {
+			return new JFGChannelInputStream(channel);
+		}
+		return socket.getInputStream();
+	}
+	/**
+	 * Get the output stream of a socket. Sockets from a non-blocking channel are written using a {@link JFGChannelOutputStream}.
+	 */
+	protected static OutputStream openOutputStream(Socket socket) throws IOException {
+		SocketChannel channel = socket.getChannel();
+		if (channel != null && !channel.isBlocking()) {
+			return new JFGChannelOutputStream(channel);
+		}
+		return socket.getOutputStream();
+	}
+	
 	/**
 	 * Create a new instance of the JFGConnection as factory instance for the server.
 	 * 
@@ -176,8 +504,33 @@ public class JFGConnection implements Runnable {
 		this.socket = socket;
 		this.serverIn = in;
 		this.serverOut = out;
+		this.socketIn = null;
+		this.socketOut = null;
+		this.channelOut = null;
+		startConnection();
+		JFGServer.printError("JFGConnection: Connection restarted.", JFGServer.ERROR_LEVEL_DEBUG);
+	}
+	/**
+	 * End the old connection and start a new connection with the socket and streams of another connection.
+	 * 
+	 * Other than {@link #restart(Socket, ObjectInputStream, ObjectOutputStream)} this method also takes over the data that the other connection has already buffered.
+	 * 
+	 * @param connection
+	 * 		The connection which's socket and streams are taken over.
+	 */
+	public void restart(JFGConnection connection) {
+		endConnection(false);
+		this.socket = connection.socket;
+		this.serverIn = connection.serverIn;
+		this.serverOut = connection.serverOut;
+		this.codec = connection.codec;
+		this.frameIn = connection.frameIn;
+		this.frameOut = connection.frameOut;
+		this.socketIn = connection.socketIn;
+		this.socketOut = connection.socketOut;
+		this.channelOut = connection.channelOut;
 		startConnection();
-		System.out.println("connection restarted " + Thread.currentThread());
+		JFGServer.printError("JFGConnection: Connection restarted.", JFGServer.ERROR_LEVEL_DEBUG);
 	}
 	
 	/**
@@ -187,21 +540,120 @@ public class JFGConnection implements Runnable {
 	 * 		The message that was sent.
 	 */
 	public void receiveMessage(JFGServerMessage message) {
-		interpreter.interpreteServerMessage(message, this);
+		if (!isAutoFlush()) {
+			interpreter.interpreteServerMessage(message, this);
+			return;
+		}
+		//the answers of the interpreter are written when it's done
+		JFGWriteBatch.begin();
+		try {
+			interpreter.interpreteServerMessage(message, this);
+		}
+		finally {
+			JFGWriteBatch.end();
+		}
+	}
+	/**
+	 * Receive a frame that is passed on to the {@link JFGRelayInterpreter} without decoding the message.
+	 * 
+	 * @param frame
+	 * 		The frame that was sent.
+	 */
+	public void receiveFrame(JFGFrame frame) {
+		if (!frame.isServerMessage()) {
+			JFGServer.printError("JFGConnection: Received frame contains no JFGServerMessage. Couldn't interprete the message.", JFGServer.ERROR_LEVEL_DEBUG);
+		}
+		else if (!isAutoFlush()) {
+			((JFGRelayInterpreter) interpreter).interpreteFrame(frame, this);
+		}
+		else {
+			JFGWriteBatch.begin();
+			try {
+				((JFGRelayInterpreter) interpreter).interpreteFrame(frame, this);
+			}
+			finally {
+				JFGWriteBatch.end();
+			}
+		}
+	}
+	
+	/**
+	 * Check whether the messages are collected and written together (see {@link JFGServer#setAutoFlush(boolean)}).
+	 */
+	public boolean isAutoFlush() {
+		return socketOut != null && socketOut.isAutoFlush();
+	}
+	
+	/**
+	 * Check whether the received frames are passed to the interpreter without decoding them.
+	 * 
+	 * @return
+	 * 		True if the connection uses a {@link JFGMessageCodec} and the interpreter is a {@link JFGRelayInterpreter}.
+	 */
+	protected boolean isRelayEnabled() {
+		return codec != null && interpreter instanceof JFGRelayInterpreter;
 	}
 	
 	/**
 	 * Start the connection.
 	 * 
+	 * If the server uses the non-blocking engine the connection is registered to it's {@link JFGEventLoopGroup}.
+	 * Otherwise a new thread of the server's {@link JFGThreadMode} is started.
+	 * 
 	 * @throws IllegalArgumentException
 	 * 		An {@link IllegalArgumentException} is thrown if the connection thread is already started.
 	 */
 	private void startConnection() throws IllegalArgumentException {
-		if (connection != null) {
+		if (connection != null || eventLoopGroup != null) {
 			throw new IllegalArgumentException("The connection thread is already started. Can't start another one.");
 		}
-		connection = new Thread(this);
-		connection.start();
+		SocketChannel channel = socket.getChannel();
+		if (server != null && server.getEventLoopGroup() != null && channel != null && !channel.isBlocking()) {
+			synchronized (selectionLock) {
+				eventLoopGroup = server.getEventLoopGroup();
+			}
+			eventLoopGroup.register(this);
+		}
+		else {
+			connection = getThreadMode().newThread(this);
+			connection.start();
+		}
+	}
+	
+	/**
+	 * Get the kind of threads used by this connection (the thread mode of the server).
+	 * 
+	 * @return
+	 * 		The thread mode of the server or {@link JFGThreadMode#PLATFORM} if the connection has no server.
+	 */
+	public JFGThreadMode getThreadMode() {
+		if (server != null) {
+			return server.getThreadMode();
+		}
+		return JFGThreadMode.PLATFORM;
+	}
+	
+	/**
+	 * Stop reading the connection's input (without closing the resources).
+	 * 
+	 * @return
+	 * 		True if the connection was started before.
+	 */
+	private boolean stopReading() {
+		if (connection != null) {
+			connection.interrupt();
+			connection = null;
+			return true;
+		}
+		else if (eventLoopGroup != null) {
+			JFGEventLoopGroup group = eventLoopGroup;
+			synchronized (selectionLock) {
+				eventLoopGroup = null;
+			}
+			group.deregister(this);
+			return true;
+		}
+		return false;
 	}
 	
 	/**
@@ -217,11 +669,20 @@ public class JFGConnection implements Runnable {
 	 * 		Optionally remove the connection from the server.
 	 */
 	public void endConnection(boolean removeConnection) {
-		if (connection != null) {
-			connection.interrupt();
+		if (stopReading()) {
+			if (outboundQueue != null) {
+				outboundQueue.close();
+			}
 			try {
-				serverIn.close();
-				serverOut.close();
+				//the output is closed first, so the data that is still queued is written before the socket is closed
+				if (codec != null) {
+					frameOut.close();
+					frameIn.close();
+				}
+				else {
+					serverOut.close();
+					serverIn.close();
+				}
 			}
 			catch (IOException ioe) {
 				JFGServer.printError(ioe, JFGServer.ERROR_LEVEL_DEBUG);
@@ -236,7 +697,6 @@ public class JFGConnection implements Runnable {
 			if (removeConnection) {
 				server.removeConnection(this);				
 			}
-			connection = null;
 		}
 	}
 	
@@ -244,51 +704,212 @@ public class JFGConnection implements Runnable {
 	 * Stop the connection by interrupting the thread WITHOUT closing the resources.
 	 */
 	public void stopConnection() {
-		if (connection != null) {
-			connection.interrupt();
+		if (stopReading()) {
 			server.removeConnection(this);
-			connection = null;
 		}
 	}
 	
 	/**
 	 * Send a message to the client connected to this JFGConnection.
 	 * 
+	 * If the connection has an outbound queue the message is written by the queue's writer later. Connections that use a {@link JFGMessageCodec} encode
+	 * the message directly, connections that use object streams serialize it when it's written (so the message must not be changed after it was sent).
+	 * 
 	 * @param message
 	 * 		The message to send to the client.
 	 */
 	public void sendMessage(JFGClientMessage message) {
+		if (outboundQueue != null) {
+			queueMessage(new JFGEncodedMessage(message));
+			return;
+		}
+		writeMessage(message);
+	}
+	/**
+	 * Send a message to the client connected to this JFGConnection using the writeUnshared method.
+	 * 
+	 * @param message
+	 * 		The message to send to the client.
+	 */
+	public void sendMessageUnshared(JFGClientMessage message) {
+		if (outboundQueue != null) {
+			queueMessage(new JFGEncodedMessage(message));
+			return;
+		}
+		writeMessageUnshared(message);
+	}
+	/**
+	 * Send a message that was encoded before, so a message that is sent to many connections (e.g. a broadcast) is only encoded once.
+	 * 
+	 * Connections with a codec write the encoded frame. Connections without a codec serialize the message with their own object stream
+	 * (see {@link #writeEncodedMessage(JFGEncodedMessage)}).
+	 * 
+	 * @param message
+	 * 		The encoded message to send to the client.
+	 */
+	public void sendEncodedMessage(JFGEncodedMessage message) {
+		if (outboundQueue != null) {
+			queueMessage(message);
+			return;
+		}
+		writeEncodedMessage(message);
+	}
+	/**
+	 * Send an encoded frame to the client (only possible if the connection uses a {@link JFGMessageCodec}).
+	 * 
+	 * @param frame
+	 * 		The frame to send. The frame has to be encoded with the same codec as the connection uses.
+	 */
+	public void sendFrame(JFGFrame frame) {
+		if (codec == null) {
+			throw new IllegalStateException("The connection uses no JFGMessageCodec. Frames can't be sent.");
+		}
+		if (outboundQueue != null) {
+			queueMessage(new JFGEncodedMessage(frame, codec));
+			return;
+		}
+		writeFrame(frame);
+	}
+	
+	/**
+	 * Add a message to the outbound queue. The message is encoded directly if the connection uses a codec, otherwise it's serialized by the connection's
+	 * object stream when it's written.
+	 * 
+	 * If the queue has a byte limit the size of a message that is serialized later is measured by encoding it (the encoded bytes are not sent).
+	 */
+	private void queueMessage(JFGEncodedMessage message) {
+		try {
+			int size = 0;
+			if (codec != null || server.getOutboundQueueByteLimit() > 0) {
+				size = message.getEncodedSize(codec);
+			}
+			outboundQueue.offer(message, size, message.getConflationKey());
+		}
+		catch (IOException ioe) {
+			JFGServer.printError(ioe, JFGServer.ERROR_LEVEL_INFO);
+		}
+	}
+	
+	/**
+	 * Write a message to the client directly (in the current thread).
+	 * 
+	 * @param message
+	 * 		The message to write.
+	 */
+	protected void writeMessage(JFGClientMessage message) {
+		if (codec != null) {
+			writeFrame(message);
+			return;
+		}
 		try {
 			if (resetBeforeSending) {
 				resetOutput();
 			}
-			serverOut.writeObject(message);
-			serverOut.flush();
+			writeObject(message, false);
 		}
 		catch (IOException ie) {
 			JFGServer.printError(ie, JFGServer.ERROR_LEVEL_INFO);
 		}
 	}
 	/**
-	 * Send a message to the client connected to this JFGConnection using the writeUnshared method.
+	 * Write a message to the client directly (in the current thread) using the writeUnshared method.
 	 * 
 	 * @param message
-	 * 		The message to send to the client.
+	 * 		The message to write.
 	 */
-	public void sendMessageUnshared(JFGClientMessage message) {
+	protected void writeMessageUnshared(JFGClientMessage message) {
+		if (codec != null) {
+			//frames never share objects with earlier frames
+			writeFrame(message);
+			return;
+		}
 		try {
-			serverOut.writeUnshared(message);
-			serverOut.flush();
+			writeObject(message, true);
 		}
 		catch (IOException ie) {
 			JFGServer.printError(ie, JFGServer.ERROR_LEVEL_INFO);
 		}
 	}
+	/**
+	 * Write a message to the object stream, using the reset policy if the stream is a {@link JFGObjectOutputStream}.
+	 */
+	private void writeObject(JFGClientMessage message, boolean unshared) throws IOException {
+		synchronized (serverOut) {
+			if (serverOut instanceof JFGObjectOutputStream) {
+				((JFGObjectOutputStream) serverOut).writeMessage(message, unshared);
+				return;
+			}
+			//the stream was passed on a restart
+			if (unshared) {
+				serverOut.writeUnshared(message);
+			}
+			else {
+				serverOut.writeObject(message);
+			}
+			serverOut.flush();
+		}
+	}
+	/**
+	 * Write an encoded message to the client directly (in the current thread or in the writer task of the outbound queue).
+	 * 
+	 * Only connections that use a codec write the shared bytes (the frame). Connections that use object streams serialize the message with
+	 * their own stream (like {@link #writeMessageUnshared(JFGClientMessage)}), so the reset policy of the stream is kept and the class descriptors
+	 * are sent only once per stream. Writing the shared serialized bytes instead would need a reset before and after the message and would send
+	 * all class descriptors of the message to every client again, which costs more bandwidth than serializing the message for every connection
+	 * costs time.
+	 * 
+	 * @param message
+	 * 		The encoded message to write.
+	 */
+	protected void writeEncodedMessage(JFGEncodedMessage message) {
+		if (codec != null) {
+			try {
+				writeFrame(message.getFrame(codec));
+			}
+			catch (IOException ioe) {
+				JFGServer.printError(ioe, JFGServer.ERROR_LEVEL_INFO);
+			}
+			return;
+		}
+		try {
+			writeMessageUnshared(message.getMessage());
+		}
+		catch (IOException ioe) {
+			JFGServer.printError(ioe, JFGServer.ERROR_LEVEL_INFO);
+		}
+	}
+	
+	/**
+	 * Encode the message using the codec of the connection and write it as a frame.
+	 */
+	private void writeFrame(JFGClientMessage message) {
+		try {
+			writeFrame(JFGFrame.encode(codec, message));
+		}
+		catch (IOException ioe) {
+			JFGServer.printError(ioe, JFGServer.ERROR_LEVEL_INFO);
+		}
+	}
+	private void writeFrame(JFGFrame frame) {
+		try {
+			synchronized (frameOut) {
+				frame.write(frameOut);
+				frameOut.flush();
+			}
+		}
+		catch (IOException ioe) {
+			JFGServer.printError(ioe, JFGServer.ERROR_LEVEL_INFO);
+		}
+	}
 	
 	/**
 	 * Reset the ouput stream to prevent sending the same reference of an object with a changed state.
+	 * Connections that use a {@link JFGMessageCodec} don't need to be reset, because every frame is independent.
 	 */
 	public void resetOutput() {
+		if (serverOut == null) {
+			return;
+		}
 		try {
 			serverOut.reset();
 		}
@@ -315,7 +936,7 @@ public class JFGConnection implements Runnable {
 	 */
 	public void setInterpreter(JFGServerInterpreter interpreter) {
 		this.interpreter = interpreter;
-		if (connection == null) {
+		if (connection == null && eventLoopGroup == null) {
 			startConnection();
 		}
 	}
@@ -333,7 +954,11 @@ public class JFGConnection implements Runnable {
 	 * 
 	 * @return
 	 * 		Returns true if the output is set to reset before sending.
+	 * 
+	 * @deprecated
+	 * 		Use a {@link JFGResetPolicy} for every connection instead (see {@link #setResetPolicy(JFGResetPolicy)}).
 	 */
+	@Deprecated
 	public static boolean isResetBeforeSending() {
 		return resetBeforeSending;
 	}
@@ -342,7 +967,11 @@ public class JFGConnection implements Runnable {
 	 * 
 	 * @param resetBeforeSending
 	 * 		Set the reset on or off.
+	 * 
+	 * @deprecated
+	 * 		Use a {@link JFGResetPolicy} for every connection instead (see {@link #setResetPolicy(JFGResetPolicy)}).
 	 */
+	@Deprecated
 	public static void setResetBeforeSending(boolean resetBeforeSending) {
 		JFGConnection.resetBeforeSending = resetBeforeSending;
 	}
@@ -351,19 +980,127 @@ public class JFGConnection implements Runnable {
 		return sleepTime;
 	}
 	/**
-	 * Set the time to sleep, for the thread, between two reads.
+	 * Set the minimum time between two interpreted messages to limit the message rate.
+	 * 
+	 * Other than a fixed sleep this only delays a message if the previous message was interpreted less than sleepTime milliseconds ago.
 	 * 
 	 * @param sleepTime
-	 * 		The sleep time in milliseconds.
+	 * 		The minimum time between two messages in milliseconds or 0 to interpret every message as soon as it arrives (default).
 	 */
 	public void setSleepTime(int sleepTime) {
 		this.sleepTime = sleepTime;
 	}
 	
+	/**
+	 * Get the id of the connection, that is unique on the server as long as the connection is known by the server.
+	 * The ids are compact (ids of removed connections are given to new connections).
+	 * 
+	 * @return
+	 * 		The id or -1 if the connection is not (or not yet) known by the server.
+	 */
+	public int getConnectionId() {
+		return connectionId;
+	}
+	void setConnectionId(int connectionId) {
+		this.connectionId = connectionId;
+	}
+	
+	/**
+	 * Get the login state of the connection (only used by a {@link JFGLoginServer}).
+	 */
+	public JFGLoginState getLoginState() {
+		return loginState;
+	}
+	/**
+	 * Change the login state, if the connection is in the expected state.
+	 * 
+	 * @return
+	 * 		False if the connection was not in the expected state.
+	 */
+	boolean changeLoginState(JFGLoginState expected, JFGLoginState loginState) {
+		return loginStateUpdater.compareAndSet(this, expected, loginState);
+	}
+	/**
+	 * Set the login state (independent of the current state).
+	 * 
+	 * @return
+	 * 		The previous login state.
+	 */
+	JFGLoginState setLoginState(JFGLoginState loginState) {
+		return loginStateUpdater.getAndSet(this, loginState);
+	}
+	
+	/**
+	 * Get the reset policy of the connection's object stream.
+	 * 
+	 * @return
+	 * 		The reset policy or null if the connection uses a {@link JFGMessageCodec} (or the streams were passed on a restart).
+	 */
+	public JFGResetPolicy getResetPolicy() {
+		if (serverOut instanceof JFGObjectOutputStream) {
+			return ((JFGObjectOutputStream) serverOut).getResetPolicy();
+		}
+		return null;
+	}
+	/**
+	 * Set the policy that decides when the connection's object stream is reset (see {@link JFGServer#setResetPolicy(JFGResetPolicy)}).
+	 * Connections that use a {@link JFGMessageCodec} don't need to be reset, because every frame is independent.
+	 * 
+	 * @param resetPolicy
+	 * 		The new reset policy.
+	 */
+	public void setResetPolicy(JFGResetPolicy resetPolicy) {
+		if (serverOut instanceof JFGObjectOutputStream) {
+			synchronized (serverOut) {
+				((JFGObjectOutputStream) serverOut).setResetPolicy(resetPolicy);
+			}
+		}
+	}
+	
+	/**
+	 * Get the object input stream of the connection (null if the connection uses a {@link JFGMessageCodec}).
+	 */
 	public ObjectInputStream getInputStream() {
 		return serverIn;
 	}
+	/**
+	 * Get the object output stream of the connection (null if the connection uses a {@link JFGMessageCodec}).
+	 */
 	public ObjectOutputStream getOutputStream() {
 		return serverOut;
 	}
+	
+	/**
+	 * Get the outbound queue of the connection.
+	 * 
+	 * @return
+	 * 		The queue or null if the messages are written directly (see {@link JFGServer#setOutboundQueueLimit(int)}).
+	 */
+	public JFGOutboundQueue getOutboundQueue() {
+		return outboundQueue;
+	}
+	
+	/**
+	 * Get the codec used to encode the messages.
+	 * 
+	 * @return
+	 * 		The codec of the connection or null if the messages are sent using object streams.
+	 */
+	public JFGMessageCodec getMessageCodec() {
+		return codec;
+	}
+	
+	/**
+	 * Indicates whether the connection is handled by the non-blocking {@link JFGEventLoopGroup} of the server.
+	 */
+	public boolean isNonBlocking() {
+		return eventLoopGroup != null;
+	}
+	
+	SelectionKey getSelectionKey() {
+		return selectionKey;
+	}
+	void setSelectionKey(SelectionKey selectionKey) {
+		this.selectionKey = selectionKey;
+	}
 }
\ No newline at end of file
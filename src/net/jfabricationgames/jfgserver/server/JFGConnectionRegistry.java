@@ -0,0 +1,283 @@
+package net.jfabricationgames.jfgserver.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The table of the connections known by a {@link JFGServer}.
+ * 
+ * Every added connection gets a compact id (the ids of removed connections are reused), that is used as index in the table.
+ * So finding a connection doesn't depend on the number of connections.
+ * 
+ * The slots of the table are kept in {@link AtomicReferenceArray}s (blocks that double in size and are never copied), and the free ids are
+ * kept in a lock-free stack, so adding and removing a connection takes constant time and no lock.
+ * Broadcasts iterate over the slots weakly consistent: a connection that is added or removed during the iteration may be visited or not, but
+ * every other connection is visited exactly once. The list of {@link #getSnapshot()} is only built when it's requested after the table changed.
+ */
+public class JFGConnectionRegistry implements Iterable<JFGConnection> {
+	
+	private static final int FIRST_BLOCK_SIZE = 16;
+	//block i has the size FIRST_BLOCK_SIZE * 2^i, so 27 blocks hold all positive int ids
+	private static final int MAX_BLOCKS = 27;
+	
+	private final AtomicReferenceArray<AtomicReferenceArray<JFGConnection>> blocks;
+	
+	//the ids that were never used start at nextId; the ids of removed connections are in the free id stack
+	private final AtomicInteger nextId;
+	private final AtomicReference<FreeId> freeIds;
+	
+	private final AtomicInteger size;
+	//counted up on every change, to know whether the snapshot is outdated
+	private final AtomicInteger version;
+	private volatile Snapshot snapshot;
+	
+	public JFGConnectionRegistry() {
+		blocks = new AtomicReferenceArray<AtomicReferenceArray<JFGConnection>>(MAX_BLOCKS);
+		blocks.set(0, new AtomicReferenceArray<JFGConnection>(FIRST_BLOCK_SIZE));
+		nextId = new AtomicInteger();
+		freeIds = new AtomicReference<FreeId>();
+		size = new AtomicInteger();
+		version = new AtomicInteger();
+	}
+	
+	/**
+	 * Add a connection to the table and give it an id.
+	 * 
+	 * @param connection
+	 * 		The connection that is added.
+	 * 
+	 * @return
+	 * 		The connection's id (the same id if the connection is already in the table).
+	 */
+	public int add(JFGConnection connection) {
+		int id = connection.getConnectionId();
+		if (get(id) == connection) {
+			return id;
+		}
+		while (true) {
+			id = takeFreeId();
+			connection.setConnectionId(id);
+			//the id is only owned by this thread, so the slot is empty (the compareAndSet only protects the table against wrong usage)
+			if (getBlock(id, true).compareAndSet(getIndex(id), null, connection)) {
+				size.incrementAndGet();
+				version.incrementAndGet();
+				return id;
+			}
+		}
+	}
+	
+	/**
+	 * Remove a connection from the table. It's id can be given to another connection afterwards.
+	 * 
+	 * @param connection
+	 * 		The connection that is removed.
+	 * 
+	 * @return
+	 * 		True if the connection was in the table.
+	 */
+	public boolean remove(JFGConnection connection) {
+		int id = connection.getConnectionId();
+		AtomicReferenceArray<JFGConnection> block = getBlock(id, false);
+		if (block == null || !block.compareAndSet(getIndex(id), connection, null)) {
+			return false;
+		}
+		connection.setConnectionId(-1);
+		size.decrementAndGet();
+		version.incrementAndGet();
+		//the slot is empty now, so the id can be reused
+		releaseId(id);
+		return true;
+	}
+	
+	/**
+	 * Find a connection by it's id.
+	 * 
+	 * @param id
+	 * 		The id of the connection.
+	 * 
+	 * @return
+	 * 		The connection or null if no connection has this id.
+	 */
+	public JFGConnection get(int id) {
+		AtomicReferenceArray<JFGConnection> block = getBlock(id, false);
+		if (block == null) {
+			return null;
+		}
+		return block.get(getIndex(id));
+	}
+	
+	/**
+	 * Check whether a connection is in the table.
+	 */
+	public boolean contains(JFGConnection connection) {
+		int id = connection.getConnectionId();
+		return id >= 0 && get(id) == connection;
+	}
+	
+	/**
+	 * The number of connections in the table.
+	 */
+	public int size() {
+		return size.get();
+	}
+	
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+	
+	/**
+	 * Get a list of all connections in the table (ordered by their ids).
+	 * 
+	 * The list is built only when the table was changed since the last call, so this is a cheap call if connections are rarely added or
+	 * removed.
+	 * 
+	 * @return
+	 * 		An unmodifiable list that doesn't change when connections are added or removed.
+	 */
+	public List<JFGConnection> getSnapshot() {
+		//read the version before the slots, so a change during the iteration makes the snapshot outdated
+		int currentVersion = version.get();
+		Snapshot current = snapshot;
+		if (current != null && current.version == currentVersion) {
+			return current.connections;
+		}
+		List<JFGConnection> connections = new ArrayList<JFGConnection>(size());
+		for (JFGConnection connection : this) {
+			connections.add(connection);
+		}
+		current = new Snapshot(currentVersion, Collections.unmodifiableList(connections));
+		snapshot = current;
+		return current.connections;
+	}
+	
+	/**
+	 * Iterate over the connections in the table (ordered by their ids).
+	 * 
+	 * The iteration is weakly consistent (it reads the slots of the table directly): it doesn't fail if connections are added or removed
+	 * meanwhile, but these connections may be visited or not. Use {@link #getSnapshot()} for a list that doesn't change.
+	 */
+	@Override
+	public Iterator<JFGConnection> iterator() {
+		return new SlotIterator();
+	}
+	
+	private int takeFreeId() {
+		while (true) {
+			FreeId free = freeIds.get();
+			if (free == null) {
+				return nextId.getAndIncrement();
+			}
+			//the stack nodes are never reused, so the compareAndSet can't succeed on a node that was removed and added again (ABA)
+			if (freeIds.compareAndSet(free, free.next)) {
+				return free.id;
+			}
+		}
+	}
+	
+	private void releaseId(int id) {
+		FreeId free = new FreeId(id);
+		do {
+			free.next = freeIds.get();
+		} while (!freeIds.compareAndSet(free.next, free));
+	}
+	
+	private static int getBlockIndex(int id) {
+		return 31 - Integer.numberOfLeadingZeros(id / FIRST_BLOCK_SIZE + 1);
+	}
+	private static int getIndex(int id) {
+		return id - FIRST_BLOCK_SIZE * ((1 << getBlockIndex(id)) - 1);
+	}
+	
+	/**
+	 * Get the block of the table that holds the slot of an id.
+	 * 
+	 * @param id
+	 * 		The id.
+	 * 
+	 * @param create
+	 * 		Create the block if it doesn't exist yet (if two threads create it at the same time only one of the blocks is used).
+	 * 
+	 * @return
+	 * 		The block or null if the id is not valid or the block doesn't exist (and create is false).
+	 */
+	private AtomicReferenceArray<JFGConnection> getBlock(int id, boolean create) {
+		if (id < 0) {
+			return null;
+		}
+		int blockIndex = getBlockIndex(id);
+		AtomicReferenceArray<JFGConnection> block = blocks.get(blockIndex);
+		if (block == null && create) {
+			blocks.compareAndSet(blockIndex, null, new AtomicReferenceArray<JFGConnection>(FIRST_BLOCK_SIZE << blockIndex));
+			block = blocks.get(blockIndex);
+		}
+		return block;
+	}
+	
+	/**
+	 * An entry of the lock-free stack of the free ids.
+	 */
+	private static class FreeId {
+		
+		private final int id;
+		private FreeId next;
+		
+		public FreeId(int id) {
+			this.id = id;
+		}
+	}
+	
+	private static class Snapshot {
+		
+		private final int version;
+		private final List<JFGConnection> connections;
+		
+		public Snapshot(int version, List<JFGConnection> connections) {
+			this.version = version;
+			this.connections = connections;
+		}
+	}
+	
+	/**
+	 * Iterates over the slots of the table up to the highest id that was given when the iterator was created.
+	 */
+	private class SlotIterator implements Iterator<JFGConnection> {
+		
+		private final int end;
+		private int id;
+		private JFGConnection next;
+		
+		public SlotIterator() {
+			end = nextId.get();
+			findNext();
+		}
+		
+		private void findNext() {
+			next = null;
+			while (next == null && id < end) {
+				next = get(id);
+				id++;
+			}
+		}
+		
+		@Override
+		public boolean hasNext() {
+			return next != null;
+		}
+		
+		@Override
+		public JFGConnection next() {
+			if (next == null) {
+				throw new NoSuchElementException();
+			}
+			JFGConnection connection = next;
+			findNext();
+			return connection;
+		}
+	}
+}
@@ -2,6 +2,8 @@ package net.jfabricationgames.jfgserver.server;
 
 import net.jfabricationgames.jfgserver.client.JFGClientMessage;
 import net.jfabricationgames.jfgserver.client.JFGServerMessage;
+import net.jfabricationgames.jfgserver.codec.JFGFrame;
+import net.jfabricationgames.jfgserver.interpreter.JFGRelayInterpreter;
 import net.jfabricationgames.jfgserver.interpreter.JFGServerInterpreter;
 
 /**
@@ -26,8 +28,10 @@ public class JFGEchoServer extends JFGServer {
 	
 	/**
 	 * A simple implementation of a server interpreter for an echo server.
+	 * 
+	 * If the server uses a codec the received frames are sent back without decoding them.
 	 */
-	private class EchoInterpreter implements JFGServerInterpreter {
+	private class EchoInterpreter implements JFGRelayInterpreter {
 		
 		/**
 		 * Interpreter the message from the client.
@@ -49,6 +53,25 @@ public class JFGEchoServer extends JFGServer {
 			}
 		}
 		
+		/**
+		 * Send the same frame back if it contains a JFGClientMessage.
+		 * 
+		 * @param frame
+		 * 		The frame from the client.
+		 * 
+		 * @param connection
+		 * 		The connection that received the frame.
+		 */
+		@Override
+		public void interpreteFrame(JFGFrame frame, JFGConnection connection) {
+			if (frame.isClientMessage()) {
+				connection.sendFrame(frame);
+			}
+			else {
+				JFGServer.printError("JFGEchoServer: Couldn't repeat. Message doesn't implement JFGClientMessage", JFGServer.ERROR_LEVEL_DEBUG);
+			}
+		}
+		
 		@Override
 		public JFGServerInterpreter getInstance() {
 			return new EchoInterpreter();
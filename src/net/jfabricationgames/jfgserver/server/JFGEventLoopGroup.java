@@ -0,0 +1,385 @@
+package net.jfabricationgames.jfgserver.server;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The JFGEventLoopGroup is the non-blocking engine of the {@link JFGServer}.
+ *
+ * Instead of a thread per connection a small number of event loops watch all connections using a {@link Selector}.
+ * The event loops read the received data into the connection's buffer without waiting. When a message was received completely
+ * it's read by a pool of worker threads and passed on to the interpreter, so a slow client never holds a worker while it sends the rest of a message.
+ * While a connection is read by a worker it's not selected again, so the messages of one connection are always interpreted in the right order.
+ *
+ * The data that a channel can't take directly is queued by the connection's {@link JFGChannelOutputStream} and written by the event loop when the channel is writable.
+ *
+ * Idle connections don't need a thread, so the server can hold a lot more connections than with one thread per connection.
+ */
+public class JFGEventLoopGroup {
+
+	private EventLoop[] eventLoops;
+	private ExecutorService workers;
+	private ScheduledExecutorService scheduler;
+
+	private AtomicInteger nextLoop;
+
+	private static final ThreadLocal<Selector> temporarySelector = new ThreadLocal<Selector>();
+	private static final ThreadLocal<EventLoop> currentLoop = new ThreadLocal<EventLoop>();
+
+	/**
+	 * Create a new JFGEventLoopGroup and start the event loop threads.
+	 *
+	 * @param eventLoopThreads
+	 * 		The number of event loops (each using it's own selector and thread).
+	 *
+	 * @param workerThreads
+	 * 		The number of threads that read the messages and call the interpreters.
+	 *
+	 * @throws IOException
+	 * 		An {@link IOException} is thrown if a selector couldn't be opened.
+	 */
+	public JFGEventLoopGroup(int eventLoopThreads, int workerThreads) throws IOException {
+		if (eventLoopThreads <= 0 || workerThreads <= 0) {
+			throw new IllegalArgumentException("The event loop group needs at least one event loop and one worker thread.");
+		}
+		nextLoop = new AtomicInteger();
+		workers = Executors.newFixedThreadPool(workerThreads);
+		scheduler = Executors.newSingleThreadScheduledExecutor();
+		eventLoops = new EventLoop[eventLoopThreads];
+		for (int i = 0; i < eventLoopThreads; i++) {
+			eventLoops[i] = new EventLoop(Selector.open());
+			eventLoops[i].thread.start();
+		}
+	}
+
+	/**
+	 * Register a connection to one of the event loops. The connection's messages are read as soon as they arrive.
+	 *
+	 * @param connection
+	 * 		The connection that is registered. The connection's socket needs to be created by a SocketChannel.
+	 */
+	public void register(final JFGConnection connection) {
+		final EventLoop loop = eventLoops[Math.floorMod(nextLoop.getAndIncrement(), eventLoops.length)];
+		loop.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				loop.register(connection);
+			}
+		});
+	}
+
+	/**
+	 * Remove a connection from it's event loop. The channel is not closed.
+	 *
+	 * @param connection
+	 * 		The connection that is removed.
+	 */
+	public void deregister(JFGConnection connection) {
+		SelectionKey key;
+		synchronized (connection.selectionLock) {
+			key = connection.getSelectionKey();
+			//the key could be taken over by another connection on a re-login
+			if (key != null && key.attachment() == connection) {
+				key.cancel();
+			}
+			connection.setSelectionKey(null);
+		}
+		JFGChannelOutputStream out = connection.getChannelOutput();
+		if (key != null && out != null) {
+			//the output stream's lock is never taken while holding the selection lock
+			out.removeSelectionKey(key);
+		}
+	}
+
+	/**
+	 * Stop all event loops and worker threads. The connections are not closed.
+	 */
+	public void shutdown() {
+		for (EventLoop loop : eventLoops) {
+			loop.thread.interrupt();
+			loop.selector.wakeup();
+		}
+		workers.shutdown();
+		scheduler.shutdown();
+	}
+
+	/**
+	 * Read all available messages of a connection (in a worker thread) and select the connection again afterwards.
+	 *
+	 * If the connection's message rate is limited (see {@link JFGConnection#setSleepTime(int)}) the connection is selected again after the delay.
+	 */
+	private void read(final JFGConnection connection, final SelectionKey key) {
+		if (workers.isShutdown()) {
+			//the group was shut down while the connection was selected
+			return;
+		}
+		workers.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				connection.readAvailableMessages();
+				long delay = connection.getRateLimitDelay();
+				if (delay > 0 && !scheduler.isShutdown()) {
+					scheduler.schedule(new Runnable() {
+
+						@Override
+						public void run() {
+							select(connection, key);
+						}
+					}, delay, TimeUnit.MILLISECONDS);
+				}
+				else {
+					select(connection, key);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Select the connection again after it was read. Data that is already buffered is read directly, because it would not be selected.
+	 */
+	private void select(JFGConnection connection, SelectionKey key) {
+		try {
+			if (key.isValid() && key.attachment() == connection) {
+				if (connection.isNonBlocking() && connection.hasBufferedMessage()) {
+					read(connection, key);
+				}
+				else {
+					setInterest(key, SelectionKey.OP_READ, true);
+				}
+			}
+		}
+		catch (CancelledKeyException cke) {
+			//the connection was ended while reading
+			JFGServer.printError(cke, JFGServer.ERROR_LEVEL_ALL);
+		}
+	}
+
+	/**
+	 * Write the queued data of a connection (in the event loop thread).
+	 */
+	private void writePending(JFGConnection connection, SelectionKey key) {
+		JFGChannelOutputStream out = connection.getChannelOutput();
+		//the stream selects the write operation again (using it's current key) if there is data left
+		setInterest(key, SelectionKey.OP_WRITE, false);
+		if (out != null) {
+			try {
+				out.writePending();
+			}
+			catch (IOException ioe) {
+				//the connection is ended when it's read
+				JFGServer.printError(ioe, JFGServer.ERROR_LEVEL_INFO);
+			}
+		}
+	}
+
+	/**
+	 * Add or remove an operation from the interest set of a key, without changing the other operations.
+	 *
+	 * @param key
+	 * 		The key of the channel.
+	 *
+	 * @param ops
+	 * 		The operations to add or remove.
+	 *
+	 * @param enabled
+	 * 		Add (true) or remove (false) the operations.
+	 */
+	static void setInterest(SelectionKey key, int ops, boolean enabled) {
+		try {
+			synchronized (key) {
+				int interestOps = key.interestOps();
+				int changedOps = enabled ? interestOps | ops : interestOps & ~ops;
+				if (changedOps == interestOps) {
+					return;
+				}
+				key.interestOps(changedOps);
+			}
+			if (enabled && currentLoop.get() == null) {
+				key.selector().wakeup();
+			}
+		}
+		catch (CancelledKeyException cke) {
+			//the connection was ended
+			JFGServer.printError(cke, JFGServer.ERROR_LEVEL_ALL);
+		}
+	}
+
+	/**
+	 * Check whether the current thread is the thread of an event loop (that must never wait).
+	 */
+	static boolean isEventLoopThread() {
+		return currentLoop.get() != null;
+	}
+
+	/**
+	 * Wait till a channel is ready for an operation, using a temporary selector of the current thread.
+	 *
+	 * This is used by the {@link JFGChannelInputStream} and {@link JFGChannelOutputStream} to block on a non-blocking channel.
+	 *
+	 * @param channel
+	 * 		The channel to wait for.
+	 *
+	 * @param ops
+	 * 		The operation to wait for (e.g. {@link SelectionKey#OP_READ}).
+	 * 
+	 * @param timeout
+	 * 		The maximum time to wait in milliseconds or 0 to wait without a timeout.
+	 * 
+	 * @return
+	 * 		False if the timeout was exceeded.
+	 */
+	static boolean awaitReady(SelectableChannel channel, int ops, int timeout) throws IOException {
+		if (channel.isBlocking()) {
+			return true;
+		}
+		Selector selector = temporarySelector.get();
+		if (selector == null) {
+			selector = Selector.open();
+			temporarySelector.set(selector);
+		}
+		SelectionKey key = channel.register(selector, ops);
+		try {
+			int selected = selector.select(timeout);
+			if (Thread.currentThread().isInterrupted()) {
+				throw new InterruptedIOException("JFGEventLoopGroup: Interrupted while waiting for the channel.");
+			}
+			return selected > 0 || timeout == 0;
+		}
+		finally {
+			key.cancel();
+			//flush the cancelled key so the channel can be registered again
+			selector.selectNow();
+		}
+	}
+
+	/**
+	 * An event loop selecting the connections that have new messages.
+	 */
+	private class EventLoop implements Runnable {
+
+		private Selector selector;
+		private Thread thread;
+		private Queue<Runnable> tasks;
+
+		public EventLoop(Selector selector) {
+			this.selector = selector;
+			tasks = new ConcurrentLinkedQueue<Runnable>();
+			thread = new Thread(this, "JFGEventLoop");
+		}
+
+		@Override
+		public void run() {
+			currentLoop.set(this);
+			try {
+				while (!Thread.currentThread().isInterrupted()) {
+					selector.select();
+					runTasks();
+					Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+					while (selected.hasNext()) {
+						SelectionKey key = selected.next();
+						selected.remove();
+						JFGConnection connection = (JFGConnection) key.attachment();
+						try {
+							if (key.isValid() && key.isWritable()) {
+								writePending(connection, key);
+							}
+							if (key.isValid() && key.isReadable() && connection.receiveInput()) {
+								//don't select the connection again while the worker reads from it
+								setInterest(key, SelectionKey.OP_READ, false);
+								read(connection, key);
+							}
+						}
+						catch (CancelledKeyException cke) {
+							JFGServer.printError(cke, JFGServer.ERROR_LEVEL_ALL);
+						}
+					}
+				}
+			}
+			catch (IOException ioe) {
+				JFGServer.printError(ioe, JFGServer.ERROR_LEVEL_ERROR);
+			}
+			finally {
+				try {
+					selector.close();
+				}
+				catch (IOException ioe) {
+					JFGServer.printError(ioe, JFGServer.ERROR_LEVEL_DEBUG);
+				}
+			}
+		}
+
+		/**
+		 * Execute a task in the event loop thread.
+		 */
+		private void execute(Runnable task) {
+			tasks.add(task);
+			selector.wakeup();
+		}
+
+		private void runTasks() {
+			Runnable task;
+			while ((task = tasks.poll()) != null) {
+				task.run();
+			}
+		}
+
+		/**
+		 * Register the connection's channel to the selector (called in the event loop thread).
+		 */
+		private void register(JFGConnection connection) {
+			SelectionKey key = null;
+			synchronized (connection.selectionLock) {
+				if (!connection.isNonBlocking()) {
+					//the connection was ended before it was registered
+					return;
+				}
+				SocketChannel channel = connection.getSocket().getChannel();
+				try {
+					try {
+						key = channel.register(selector, SelectionKey.OP_READ, connection);
+					}
+					catch (CancelledKeyException cke) {
+						//the channel was registered by another connection before (re-login); remove the cancelled key first
+						selector.selectNow();
+						key = channel.register(selector, SelectionKey.OP_READ, connection);
+					}
+					connection.setSelectionKey(key);
+				}
+				catch (ClosedChannelException cce) {
+					JFGServer.printError(cce, JFGServer.ERROR_LEVEL_INFO);
+					return;
+				}
+				catch (IOException ioe) {
+					JFGServer.printError(ioe, JFGServer.ERROR_LEVEL_ERROR);
+					return;
+				}
+			}
+			JFGChannelOutputStream out = connection.getChannelOutput();
+			if (out != null) {
+				//the data that was queued before the registration is written by the event loop now
+				out.setSelectionKey(key);
+			}
+			if (connection.isNonBlocking() && connection.hasBufferedMessage()) {
+				//data that was already read into the buffer would not be selected
+				setInterest(key, SelectionKey.OP_READ, false);
+				read(connection, key);
+			}
+		}
+	}
+}
@@ -0,0 +1,112 @@
+package net.jfabricationgames.jfgserver.server;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BiFunction;
+
+/**
+ * An index of the groups that contain a connection, so the group of a connection is found without searching all groups.
+ * 
+ * The index knows the connections that were in a group when it was added. If the connections of a group change, the group needs to be removed and added again.
+ */
+public class JFGGroupIndex {
+	
+	private final ConcurrentHashMap<JFGConnection, List<JFGConnectionGroup>> groups = new ConcurrentHashMap<JFGConnection, List<JFGConnectionGroup>>();
+	
+	/**
+	 * Add a group for all of it's connections.
+	 * 
+	 * @param group
+	 * 		The group that is added.
+	 */
+	public void addGroup(final JFGConnectionGroup group) {
+		//the list is changed inside compute, so a concurrent removeGroup can't remove the list while the group is added to it
+		BiFunction<JFGConnection, List<JFGConnectionGroup>, List<JFGConnectionGroup>> add = new BiFunction<JFGConnection, List<JFGConnectionGroup>, List<JFGConnectionGroup>>() {
+			
+			@Override
+			public List<JFGConnectionGroup> apply(JFGConnection connection, List<JFGConnectionGroup> connectionGroups) {
+				if (connectionGroups == null) {
+					//most connections are in only one group
+					connectionGroups = new CopyOnWriteArrayList<JFGConnectionGroup>();
+				}
+				connectionGroups.add(group);
+				return connectionGroups;
+			}
+		};
+		for (JFGConnection connection : group.getConnections()) {
+			groups.compute(connection, add);
+		}
+	}
+	
+	/**
+	 * Remove a group (e.g. when it's dissolved).
+	 * 
+	 * @param group
+	 * 		The group that is removed.
+	 */
+	public void removeGroup(final JFGConnectionGroup group) {
+		BiFunction<JFGConnection, List<JFGConnectionGroup>, List<JFGConnectionGroup>> remove = new BiFunction<JFGConnection, List<JFGConnectionGroup>, List<JFGConnectionGroup>>() {
+			
+			@Override
+			public List<JFGConnectionGroup> apply(JFGConnection connection, List<JFGConnectionGroup> connectionGroups) {
+				connectionGroups.remove(group);
+				//an empty list is removed from the map
+				return connectionGroups.isEmpty() ? null : connectionGroups;
+			}
+		};
+		for (JFGConnection connection : group.getConnections()) {
+			groups.computeIfPresent(connection, remove);
+		}
+	}
+	
+	/**
+	 * Remove a connection from the index (e.g. when the connection is closed).
+	 * 
+	 * @param connection
+	 * 		The connection that is removed.
+	 */
+	public void removeConnection(JFGConnection connection) {
+		groups.remove(connection);
+	}
+	
+	/**
+	 * Get the group of a connection (the group that was added last if the connection is in more than one group).
+	 * 
+	 * @param connection
+	 * 		The connection which's group is searched.
+	 * 
+	 * @return
+	 * 		The group or null if the connection is in no group.
+	 */
+	public JFGConnectionGroup getGroup(JFGConnection connection) {
+		List<JFGConnectionGroup> connectionGroups = groups.get(connection);
+		if (connectionGroups == null) {
+			return null;
+		}
+		JFGConnectionGroup group = null;
+		//the list can be changed meanwhile, so the iterator is used instead of the last index
+		for (JFGConnectionGroup g : connectionGroups) {
+			group = g;
+		}
+		return group;
+	}
+	
+	/**
+	 * Get all groups that contain a connection.
+	 * 
+	 * @param connection
+	 * 		The connection which's groups are searched.
+	 * 
+	 * @return
+	 * 		An unmodifiable list of the groups (empty if the connection is in no group).
+	 */
+	public List<JFGConnectionGroup> getGroups(JFGConnection connection) {
+		List<JFGConnectionGroup> connectionGroups = groups.get(connection);
+		if (connectionGroups == null) {
+			return Collections.emptyList();
+		}
+		return Collections.unmodifiableList(connectionGroups);
+	}
+}
@@ -1,32 +1,57 @@
 package net.jfabricationgames.jfgserver.server;
 
+import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import net.jfabricationgames.jfgserver.client.JFGClientMessage;
 import net.jfabricationgames.jfgserver.client.JFGServerMessage;
+import net.jfabricationgames.jfgserver.codec.JFGEncodedMessage;
+import net.jfabricationgames.jfgserver.codec.JFGFrame;
+import net.jfabricationgames.jfgserver.interpreter.JFGRelayInterpreter;
 import net.jfabricationgames.jfgserver.interpreter.JFGServerInterpreter;
 
 /**
  * This server is used to accept all connections and group them into variable sized groups.
- * If there are enough {@link JFGConnection}s a group is created directly.
+ * The connections are grouped by a {@link JFGMatchmaker}: if there are enough {@link JFGConnection}s in a queue a group is created with the next match.
+ * 
+ * To match the connections by their skill or region override {@link #getQueueKey(JFGConnection)} and {@link #getRating(JFGConnection)}
+ * or add the connections to the matchmaker later (e.g. after a login message) using {@link #getMatchmaker()}.
  * 
  * The groups used can be changed by changing the groupFactory using the {@link #setGroupFactory(JFGConnectionGroup)} method.
+ * 
+ * A group is dissolved by {@link #dissolveGroup(JFGConnectionGroup)} (e.g. when the match is over) or automatically when all it's connections are removed,
+ * so the server only keeps the groups that are still used.
  */
 public class JFGGroupServer extends JFGServer {
 	
-	private int groupSize;
-	private List<JFGConnectionGroup> groups;
+	private Set<JFGConnectionGroup> groups;
+	private JFGGroupIndex groupIndex;
 	
-	private List<JFGConnection> tmpGroup;
+	private JFGMatchmaker matchmaker;
+	private final Object groupLock = new Object();
 	
 	private JFGConnectionGroup connectionGroup;
-
+	
+	private boolean autoDissolve = true;
+	private int groupPoolSize = 0;
+	private ArrayDeque<DefaultJFGConnectionGroup> groupPool;
+	
 	public JFGGroupServer(int port, int groupSize) {
 		super(port);
-		this.groupSize = groupSize;
-		groups = new ArrayList<JFGConnectionGroup>();
-		tmpGroup = new ArrayList<JFGConnection>(groupSize);
+		groups = ConcurrentHashMap.newKeySet();
+		groupIndex = new JFGGroupIndex();
+		groupPool = new ArrayDeque<DefaultJFGConnectionGroup>();
+		matchmaker = new JFGMatchmaker(groupSize, new JFGMatchListener() {
+			
+			@Override
+			public void matchFound(List<JFGConnection> connections) {
+				createMatchedGroup(connections);
+			}
+		});
 		connectionGroup = new DefaultJFGConnectionGroup();
 	}
 	
@@ -36,24 +61,173 @@ public class JFGGroupServer extends JFGServer {
 	}
 	
 	/**
-	 * Add the connection to the known connections and create a group of the connections.
-	 * The group is created directly when there are enough connections for a group.
+	 * Add the connection to the known connections and to the queue of the matchmaker.
+	 * The group is created with the next match when there are enough connections for a group.
 	 */
 	@Override
 	public void addConnection(JFGConnection connection) {
 		super.addConnection(connection);
-		tmpGroup.add(connection);
-		if (tmpGroup.size() == groupSize) {
-			JFGConnectionGroup group = connectionGroup.getInstance(tmpGroup);
-			groups.add(group);
-			tmpGroup = new ArrayList<JFGConnection>(groupSize);
+		matchmaker.enqueue(connection, getQueueKey(connection), getRating(connection));
+	}
+	
+	/**
+	 * Get the key of the matchmaker queue for a new connection. Only connections with the same key are grouped.
+	 * 
+	 * @param connection
+	 * 		The new connection.
+	 * 
+	 * @return
+	 * 		The queue key or null to use the default queue (default).
+	 */
+	protected Object getQueueKey(JFGConnection connection) {
+		return null;
+	}
+	/**
+	 * Get the rating (e.g. the skill) of a new connection, that is used by the matchmaker.
+	 * 
+	 * @param connection
+	 * 		The new connection.
+	 * 
+	 * @return
+	 * 		The rating (0 by default).
+	 */
+	protected int getRating(JFGConnection connection) {
+		return 0;
+	}
+	
+	@Override
+	public void stopServer() {
+		super.stopServer();
+		matchmaker.shutdown();
+	}
+	
+	/**
+	 * Remove the connection from the known connections and from the group index.
+	 * If the connection was the last connected member of it's group the group is dissolved (see {@link #setAutoDissolve(boolean)}).
+	 */
+	@Override
+	public void removeConnection(JFGConnection connection) {
+		super.removeConnection(connection);
+		//the group is looked up after the connection was removed, so a group that is created meanwhile is found here or by createMatchedGroup
+		JFGConnectionGroup group = groupIndex.getGroup(connection);
+		groupIndex.removeConnection(connection);
+		//a connection that waits for a group is not grouped anymore
+		matchmaker.remove(connection);
+		if (group != null && autoDissolve && !hasConnectedMembers(group)) {
+			dissolveGroup(group);
+		}
+	}
+	
+	/**
+	 * Create a new group (or reuse a group from the pool) and add it to the known groups.
+	 * 
+	 * @param connections
+	 * 		The connections of the new group.
+	 * 
+	 * @return
+	 * 		The new group.
+	 */
+	protected JFGConnectionGroup createGroup(List<JFGConnection> connections) {
+		JFGConnectionGroup group = null;
+		if (connectionGroup.getClass() == DefaultJFGConnectionGroup.class) {
+			synchronized (groupLock) {
+				group = groupPool.poll();
+			}
+		}
+		if (group != null) {
+			((DefaultJFGConnectionGroup) group).reuse(connections);
+		}
+		else {
+			group = connectionGroup.getInstance(connections);
+		}
+		groups.add(group);
+		groupIndex.addGroup(group);
+		return group;
+	}
+	
+	/**
+	 * Create the group of a match. If a connection of the match was removed meanwhile the group is dissolved directly
+	 * and the other connections wait for the next match again.
+	 */
+	private void createMatchedGroup(List<JFGConnection> matched) {
+		JFGConnectionGroup group = createGroup(matched);
+		List<JFGConnection> connected = new ArrayList<JFGConnection>(matched.size());
+		for (JFGConnection member : matched) {
+			if (connections.contains(member)) {
+				connected.add(member);
+			}
+		}
+		if (connected.size() < matched.size()) {
+			dissolveGroup(group);
+			for (JFGConnection member : connected) {
+				matchmaker.enqueue(member, getQueueKey(member), getRating(member));
+			}
+		}
+	}
+	
+	/**
+	 * Dissolve a group (e.g. when the match is over). The group is removed from the server and the group index.
+	 * 
+	 * A {@link DefaultJFGConnectionGroup} is emptied and put into the group pool (if the pool is enabled), so references to the group must not be kept.
+	 * 
+	 * @param group
+	 * 		The group that is dissolved.
+	 * 
+	 * @return
+	 * 		False if the group was not known by the server (e.g. if it was dissolved before).
+	 */
+	public boolean dissolveGroup(JFGConnectionGroup group) {
+		if (!groups.remove(group)) {
+			return false;
+		}
+		groupIndex.removeGroup(group);
+		if (group instanceof DefaultJFGConnectionGroup) {
+			DefaultJFGConnectionGroup defaultGroup = (DefaultJFGConnectionGroup) group;
+			defaultGroup.dissolve();
+			if (defaultGroup.getClass() == DefaultJFGConnectionGroup.class) {
+				synchronized (groupLock) {
+					if (groupPool.size() < groupPoolSize) {
+						//the oldest dissolved groups are reused first
+						groupPool.add(defaultGroup);
+					}
+				}
+			}
 		}
+		return true;
+	}
+	
+	/**
+	 * Check whether a group still contains a connection that is known by the server.
+	 */
+	private boolean hasConnectedMembers(JFGConnectionGroup group) {
+		for (JFGConnection member : group.getConnections()) {
+			if (connections.contains(member)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Get the matchmaker that groups the connections (e.g. to configure the match ranges).
+	 */
+	public JFGMatchmaker getMatchmaker() {
+		return matchmaker;
+	}
+	
+	/**
+	 * The number of groups that are not dissolved.
+	 */
+	public int getGroupCount() {
+		return groups.size();
 	}
 	
 	/**
 	 * A simple implementation of a group server interpreter.
+	 * 
+	 * If the server uses a codec the received frames are relayed to the group without decoding them (if the group is a {@link DefaultJFGConnectionGroup}).
 	 */
-	private class DefaultGroupInterpreter implements JFGServerInterpreter {
+	private class DefaultGroupInterpreter implements JFGRelayInterpreter {
 		
 		@Override
 		public void interpreteServerMessage(JFGServerMessage message, JFGConnection connection) {
@@ -70,7 +244,33 @@ public class JFGGroupServer extends JFGServer {
 				JFGServer.printError("JFGGroupServer: Couldn't repeat. Message doesn't implement JFGClientMessage.", JFGServer.ERROR_LEVEL_DEBUG);
 			}
 		}
-
+		
+		@Override
+		public void interpreteFrame(JFGFrame frame, JFGConnection connection) {
+			if (!frame.isClientMessage()) {
+				JFGServer.printError("JFGGroupServer: Couldn't repeat. Message doesn't implement JFGClientMessage.", JFGServer.ERROR_LEVEL_DEBUG);
+				return;
+			}
+			JFGConnectionGroup group = getGroup(connection);
+			if (group == null) {
+				JFGServer.printError("JFGGroupServer: Couldn't send broadcast. The connection has no group.", JFGServer.ERROR_LEVEL_DEBUG);
+				return;
+			}
+			JFGEncodedMessage message = new JFGEncodedMessage(frame, connection.getMessageCodec());
+			if (group instanceof DefaultJFGConnectionGroup) {
+				((DefaultJFGConnectionGroup) group).sendGroupBroadcast(message);
+			}
+			else {
+				//other groups only know the decoded messages
+				try {
+					group.sendGroupBroadcast(message.getMessage());
+				}
+				catch (IOException ioe) {
+					JFGServer.printError(ioe, JFGServer.ERROR_LEVEL_INFO);
+				}
+			}
+		}
+		
 		@Override
 		public JFGServerInterpreter getInstance() {
 			return new DefaultGroupInterpreter();
@@ -87,15 +287,7 @@ public class JFGGroupServer extends JFGServer {
 	 * 		The group of connection.
 	 */
 	public JFGConnectionGroup getGroup(JFGConnection connection) {
-		JFGConnectionGroup group = null;
-		for (JFGConnectionGroup g : groups) {
-			for (JFGConnection c : g.getConnections()) {
-				if (c.equals(connection)) {
-					group = g;
-				}
-			}
-		}
-		return group;
+		return groupIndex.getGroup(connection);
 	}
 	
 	/**
@@ -117,4 +309,38 @@ public class JFGGroupServer extends JFGServer {
 	public void setGroupFactory(JFGConnectionGroup connectionGroup) {
 		this.connectionGroup = connectionGroup;
 	}
+	
+	public boolean isAutoDissolve() {
+		return autoDissolve;
+	}
+	/**
+	 * Dissolve the groups automatically when all their connections are removed from the server.
+	 * 
+	 * @param autoDissolve
+	 * 		True to dissolve the groups automatically (default is true).
+	 */
+	public void setAutoDissolve(boolean autoDissolve) {
+		this.autoDissolve = autoDissolve;
+	}
+	
+	public int getGroupPoolSize() {
+		return groupPoolSize;
+	}
+	/**
+	 * Set the maximum number of dissolved groups that are kept to be reused for new groups.
+	 * Only groups of the {@link DefaultJFGConnectionGroup} class are reused (no subclasses).
+	 * 
+	 * A reused group sends the messages to the new connections, so a dissolved group must not be used anymore (e.g. by a timer of the match).
+	 * 
+	 * @param groupPoolSize
+	 * 		The size of the pool or 0 to not reuse the groups (default).
+	 */
+	public void setGroupPoolSize(int groupPoolSize) {
+		synchronized (groupLock) {
+			this.groupPoolSize = groupPoolSize;
+			while (groupPool.size() > groupPoolSize) {
+				groupPool.poll();
+			}
+		}
+	}
 }
\ No newline at end of file
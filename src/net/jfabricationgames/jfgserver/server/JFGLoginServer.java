@@ -1,10 +1,12 @@
 package net.jfabricationgames.jfgserver.server;
 
-import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import net.jfabricationgames.jfgserver.client.JFGClientMessage;
 import net.jfabricationgames.jfgserver.client.JFGServerMessage;
+import net.jfabricationgames.jfgserver.codec.JFGEncodedMessage;
 import net.jfabricationgames.jfgserver.interpreter.JFGServerInterpreter;
 
 /**
@@ -14,19 +16,24 @@ import net.jfabricationgames.jfgserver.interpreter.JFGServerInterpreter;
  * In a real implementation the user data should be checked.
  * 
  * The server is also able to create and manage groups of connections.
+ * 
+ * The login state of every connection is kept in the connection (see {@link JFGConnection#getLoginState()}), so checking a login doesn't depend on the number of connections.
  */
 public class JFGLoginServer extends JFGServer {
 	
-	private List<JFGConnectionGroup> groups;
+	private Set<JFGConnectionGroup> groups;
+	private JFGGroupIndex groupIndex;
 	
 	private JFGConnectionGroup groupFactory;
 	
-	private List<JFGConnection> waitingConnections;
+	private Set<JFGConnection> waitingConnections;
 
 	public JFGLoginServer(int port) {
 		super(port);
-		groups = new ArrayList<JFGConnectionGroup>();
-		waitingConnections = new ArrayList<JFGConnection>();
+		//groups are created by the interpreters of different connections
+		groups = ConcurrentHashMap.newKeySet();
+		groupIndex = new JFGGroupIndex();
+		waitingConnections = ConcurrentHashMap.newKeySet();
 		groupFactory = new DefaultJFGConnectionGroup();
 	}
 
@@ -35,9 +42,14 @@ public class JFGLoginServer extends JFGServer {
 		setInterpreterFactory(new DefaultLoginInterpreter(this));
 	}
 	
+	/**
+	 * Add the connection to the waiting connections. It's added to the known connections when the login is accepted.
+	 */
 	@Override
 	public void addConnection(JFGConnection connection) {
-		waitingConnections.add(connection);
+		if (connection.changeLoginState(JFGLoginState.NEW, JFGLoginState.WAITING)) {
+			waitingConnections.add(connection);
+		}
 	}
 	
 	/**
@@ -83,12 +95,16 @@ public class JFGLoginServer extends JFGServer {
 	 * 		An {@link IllegalArgumentException} is thrown if the connection is not in the pending list.
 	 */
 	public void acceptLogin(JFGConnection connection) throws IllegalArgumentException {
-		if (waitingConnections.remove(connection)) {
-			connections.add(connection);
-		}
-		else {
+		//the first message can be interpreted before the connection was added to the waiting connections
+		if (!connection.changeLoginState(JFGLoginState.WAITING, JFGLoginState.LOGGED_IN) && !connection.changeLoginState(JFGLoginState.NEW, JFGLoginState.LOGGED_IN)) {
 			throw new IllegalArgumentException("The connection is not in the waiting list.");
 		}
+		waitingConnections.remove(connection);
+		connections.add(connection);
+		if (connection.getLoginState() != JFGLoginState.LOGGED_IN) {
+			//the connection was removed meanwhile
+			connections.remove(connection);
+		}
 	}
 	
 	/**
@@ -101,16 +117,16 @@ public class JFGLoginServer extends JFGServer {
 	 * 		An {@link IllegalArgumentException} is thrown if the connection is not in the pending list.
 	 */
 	public void denyLogin(JFGConnection connection) throws IllegalArgumentException {
-		if (waitingConnections.remove(connection)) {
-			connection.endConnection();
-		}
-		else {
+		//the first message can be interpreted before the connection was added to the waiting connections
+		if (!connection.changeLoginState(JFGLoginState.WAITING, JFGLoginState.LOGGED_OUT) && !connection.changeLoginState(JFGLoginState.NEW, JFGLoginState.LOGGED_OUT)) {
 			throw new IllegalArgumentException("The connection is not in the waiting list.");
 		}
+		waitingConnections.remove(connection);
+		connection.endConnection();
 	}
 	
 	/**
-	 * Remove a connection from the waiting list without closing the connection.
+	 * Remove a connection from the waiting list without closing the connection. The connection is moved back to the login state NEW.
 	 * 
 	 * This method is primary called by the (subclass) JFGSecureLoginServer for the re-login of an already known user.
 	 * 
@@ -118,7 +134,24 @@ public class JFGLoginServer extends JFGServer {
 	 * 		The connection to remove from the waiting list.
 	 */
 	protected void removeWaiting(JFGConnection connection) {
-		waitingConnections.remove(connection);
+		if (connection.changeLoginState(JFGLoginState.WAITING, JFGLoginState.NEW)) {
+			waitingConnections.remove(connection);
+		}
+	}
+	
+	/**
+	 * Remove a connection from the waiting or active connections and from the index of the groups.
+	 * 
+	 * @param connection
+	 * 		The removed connection.
+	 */
+	@Override
+	public void removeConnection(JFGConnection connection) {
+		if (connection.setLoginState(JFGLoginState.LOGGED_OUT) == JFGLoginState.WAITING) {
+			waitingConnections.remove(connection);
+		}
+		super.removeConnection(connection);
+		groupIndex.removeConnection(connection);
 	}
 	
 	/**
@@ -131,7 +164,14 @@ public class JFGLoginServer extends JFGServer {
 	 * 		True if the connection is listed as active connection.
 	 */
 	public boolean isLoggedIn(JFGConnection connection) {
-		return connections.contains(connection);
+		return connection.getLoginState() == JFGLoginState.LOGGED_IN;
+	}
+	
+	/**
+	 * The number of connections that wait for the login to be accepted or denied.
+	 */
+	public int getWaitingConnectionCount() {
+		return waitingConnections.size();
 	}
 	
 	/**
@@ -143,9 +183,30 @@ public class JFGLoginServer extends JFGServer {
 	public JFGConnectionGroup createGroup(List<JFGConnection> connections) {
 		JFGConnectionGroup group = groupFactory.getInstance(connections);
 		groups.add(group);
+		groupIndex.addGroup(group);
 		return group;
 	}
 	
+	/**
+	 * Dissolve a group that was created by {@link #createGroup(List)} (e.g. when the match is over).
+	 * 
+	 * @param group
+	 * 		The group that is dissolved.
+	 * 
+	 * @return
+	 * 		False if the group was not managed by the server (e.g. if it was dissolved before).
+	 */
+	public boolean dissolveGroup(JFGConnectionGroup group) {
+		if (!groups.remove(group)) {
+			return false;
+		}
+		groupIndex.removeGroup(group);
+		if (group instanceof DefaultJFGConnectionGroup) {
+			((DefaultJFGConnectionGroup) group).dissolve();
+		}
+		return true;
+	}
+	
 	/**
 	 * A list of all groups a connection is contained in.
 	 * 
@@ -156,15 +217,7 @@ public class JFGLoginServer extends JFGServer {
 	 * 		A list of the connections groups.
 	 */
 	public List<JFGConnectionGroup> getGroups(JFGConnection connection) {
-		List<JFGConnectionGroup> groups = new ArrayList<JFGConnectionGroup>(this.groups.size());
-		for (JFGConnectionGroup g : groups) {
-			for (JFGConnection c : g.getConnections()) {
-				if (c.equals(connection)) {
-					groups.add(g);
-				}
-			}
-		}
-		return groups;
+		return groupIndex.getGroups(connection);
 	}
 	
 	/**
@@ -174,8 +227,10 @@ public class JFGLoginServer extends JFGServer {
 	 * 		The message to be send.
 	 */
 	public void sendBroadcast(JFGClientMessage message) {
+		//encode the message only once for all connections
+		JFGEncodedMessage encodedMessage = new JFGEncodedMessage(message);
 		for (JFGConnection con : connections) {
-			con.sendMessage(message);
+			con.sendEncodedMessage(encodedMessage);
 		}
 	}
 	
@@ -0,0 +1,29 @@
+package net.jfabricationgames.jfgserver.server;
+
+/**
+ * The login state of a {@link JFGConnection} on a {@link JFGLoginServer}.
+ * 
+ * A connection is usually moved forward: NEW -&gt; WAITING -&gt; LOGGED_IN -&gt; LOGGED_OUT. A denied login is moved to LOGGED_OUT
+ * and the login can be accepted or denied in the state NEW too (if the first message is interpreted before the connection was added to the server).
+ * The only step back is from WAITING to NEW, when a connection is removed from the waiting connections without closing it
+ * (see {@link JFGLoginServer#removeWaiting(JFGConnection)}).
+ */
+public enum JFGLoginState {
+	
+	/**
+	 * The connection is not (or no longer) known by a login server.
+	 */
+	NEW,
+	/**
+	 * The connection waits for the login to be accepted or denied.
+	 */
+	WAITING,
+	/**
+	 * The login was accepted.
+	 */
+	LOGGED_IN,
+	/**
+	 * The login was denied or the connection was removed from the server.
+	 */
+	LOGGED_OUT;
+}
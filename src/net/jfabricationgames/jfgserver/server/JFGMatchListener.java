@@ -0,0 +1,17 @@
+package net.jfabricationgames.jfgserver.server;
+
+import java.util.List;
+
+/**
+ * A listener that is informed by a {@link JFGMatchmaker} when enough connections were matched to start a group.
+ */
+public interface JFGMatchListener {
+	
+	/**
+	 * Called by a thread of the matchmaker when a match was found.
+	 * 
+	 * @param connections
+	 * 		The matched connections (a new list that is not used by the matchmaker anymore).
+	 */
+	public void matchFound(List<JFGConnection> connections);
+}
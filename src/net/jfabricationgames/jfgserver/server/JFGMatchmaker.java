@@ -0,0 +1,406 @@
+package net.jfabricationgames.jfgserver.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The JFGMatchmaker collects connections that wait for a group and forms matches of a fixed size.
+ * 
+ * Every connection is added to a queue with a key (e.g. the game mode and the region) and a rating (e.g. the skill of the player).
+ * Only connections of the same queue are matched. The connections of a match may differ in their ratings by the match range,
+ * that grows with the time the connections are waiting:
+ * <pre>
+ * range = min(maxRange, initialRange + rangeWidening * waiting seconds)
+ * </pre>
+ * A match is formed if the range of every matched connection covers the difference between the lowest and the highest rating.
+ * 
+ * Adding a connection doesn't lock. The queues are matched in batches every match interval.
+ * Different queues are matched in parallel (one thread per processor), so there is no lock that all queues share.
+ */
+public class JFGMatchmaker {
+	
+	/**
+	 * The key of the queue that is used if no key is given.
+	 */
+	public static final Object DEFAULT_QUEUE = new Object();
+	
+	private final int matchSize;
+	private final JFGMatchListener listener;
+	
+	private final ConcurrentHashMap<Object, MatchQueue> queues = new ConcurrentHashMap<Object, MatchQueue>();
+	private final ConcurrentHashMap<JFGConnection, Entry> entries = new ConcurrentHashMap<JFGConnection, Entry>();
+	
+	private volatile int initialRange = 0;
+	private volatile int rangeWidening = 0;
+	private volatile int maxRange = Integer.MAX_VALUE;
+	private long matchInterval = 50;
+	
+	private ScheduledExecutorService executor;
+	
+	/**
+	 * Create a new JFGMatchmaker. The threads are started when the first connection is added.
+	 * 
+	 * @param matchSize
+	 * 		The number of connections in a match.
+	 * 
+	 * @param listener
+	 * 		The listener that gets the matches.
+	 */
+	public JFGMatchmaker(int matchSize, JFGMatchListener listener) {
+		if (matchSize <= 0) {
+			throw new IllegalArgumentException("A match needs at least one connection.");
+		}
+		this.matchSize = matchSize;
+		this.listener = listener;
+	}
+	
+	/**
+	 * Add a connection to a queue. If the connection is already waiting it's moved to the new queue.
+	 * 
+	 * @param connection
+	 * 		The connection that waits for a match.
+	 * 
+	 * @param queueKey
+	 * 		The key of the queue (needs to implement equals and hashCode) or null to use the {@link #DEFAULT_QUEUE}.
+	 * 
+	 * @param rating
+	 * 		The rating of the connection.
+	 */
+	public void enqueue(JFGConnection connection, Object queueKey, int rating) {
+		if (queueKey == null) {
+			queueKey = DEFAULT_QUEUE;
+		}
+		MatchQueue queue = queues.get(queueKey);
+		if (queue == null) {
+			MatchQueue created = new MatchQueue();
+			queue = queues.putIfAbsent(queueKey, created);
+			if (queue == null) {
+				queue = created;
+			}
+		}
+		Entry entry = new Entry(connection, rating);
+		Entry previous = entries.put(connection, entry);
+		if (previous != null) {
+			previous.state.compareAndSet(Entry.WAITING, Entry.REMOVED);
+		}
+		queue.size.incrementAndGet();
+		queue.incoming.add(entry);
+		start();
+	}
+	
+	/**
+	 * Remove a connection from it's queue (e.g. when the connection is closed).
+	 * 
+	 * @param connection
+	 * 		The connection that is removed.
+	 * 
+	 * @return
+	 * 		False if the connection was not waiting (or was already matched).
+	 */
+	public boolean remove(JFGConnection connection) {
+		Entry entry = entries.get(connection);
+		if (entry == null) {
+			return false;
+		}
+		//a matched entry is already passed to the listener, so it's not removed anymore
+		if (!entry.state.compareAndSet(Entry.WAITING, Entry.REMOVED)) {
+			return false;
+		}
+		//the entry is removed from it's queue by the next match
+		entries.remove(connection, entry);
+		return true;
+	}
+	
+	/**
+	 * Check whether a connection waits for a match.
+	 */
+	public boolean isWaiting(JFGConnection connection) {
+		return entries.containsKey(connection);
+	}
+	
+	/**
+	 * The number of connections that wait for a match (in all queues).
+	 */
+	public int getWaitingCount() {
+		return entries.size();
+	}
+	
+	/**
+	 * Stop the threads of the matchmaker. The waiting connections are kept, but not matched till a connection is added.
+	 */
+	public synchronized void shutdown() {
+		if (executor != null) {
+			executor.shutdown();
+			executor = null;
+		}
+	}
+	
+	private synchronized void start() {
+		if (executor != null) {
+			return;
+		}
+		ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+			
+			private final AtomicInteger threads = new AtomicInteger();
+			
+			@Override
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, "JFGMatchmaker-" + threads.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		executor.scheduleWithFixedDelay(new Runnable() {
+			
+			@Override
+			public void run() {
+				matchQueues();
+			}
+		}, matchInterval, matchInterval, TimeUnit.MILLISECONDS);
+		this.executor = executor;
+	}
+	
+	/**
+	 * Start a match task for every queue that has waiting connections (and is not matched at the moment).
+	 */
+	private void matchQueues() {
+		ScheduledExecutorService executor = this.executor;
+		for (final MatchQueue queue : queues.values()) {
+			if (queue.size.get() >= matchSize && executor != null && queue.matching.compareAndSet(false, true)) {
+				executor.execute(new Runnable() {
+					
+					@Override
+					public void run() {
+						try {
+							queue.match();
+						}
+						finally {
+							queue.matching.set(false);
+						}
+					}
+				});
+			}
+		}
+	}
+	
+	/**
+	 * Get the match range of a connection that is waiting since a time.
+	 */
+	private long getRange(Entry entry, long now) {
+		long waitingMillis = TimeUnit.NANOSECONDS.toMillis(now - entry.enqueueTime);
+		return Math.min(maxRange, initialRange + rangeWidening * waitingMillis / 1000);
+	}
+	
+	public int getMatchSize() {
+		return matchSize;
+	}
+	
+	public int getInitialRange() {
+		return initialRange;
+	}
+	/**
+	 * Set the difference of the ratings that is accepted for connections that just started waiting.
+	 * 
+	 * @param initialRange
+	 * 		The initial range (default is 0).
+	 */
+	public void setInitialRange(int initialRange) {
+		this.initialRange = initialRange;
+	}
+	
+	public int getRangeWidening() {
+		return rangeWidening;
+	}
+	/**
+	 * Set how much the accepted difference of the ratings grows per second of waiting.
+	 * 
+	 * @param rangeWidening
+	 * 		The growth of the range per second (default is 0).
+	 */
+	public void setRangeWidening(int rangeWidening) {
+		this.rangeWidening = rangeWidening;
+	}
+	
+	public int getMaxRange() {
+		return maxRange;
+	}
+	/**
+	 * Set the maximum difference of the ratings in a match.
+	 * 
+	 * @param maxRange
+	 * 		The maximum range (default is Integer.MAX_VALUE).
+	 */
+	public void setMaxRange(int maxRange) {
+		this.maxRange = maxRange;
+	}
+	
+	public synchronized long getMatchInterval() {
+		return matchInterval;
+	}
+	/**
+	 * Set the time between two matches of the queues (before the first connection is added).
+	 * 
+	 * @param matchInterval
+	 * 		The interval in milliseconds (default is 50).
+	 */
+	public synchronized void setMatchInterval(long matchInterval) {
+		if (executor != null) {
+			throw new IllegalStateException("The match interval can't be changed after the matchmaker was started.");
+		}
+		this.matchInterval = matchInterval;
+	}
+	
+	/**
+	 * A connection that waits for a match.
+	 */
+	private static class Entry {
+		
+		private final JFGConnection connection;
+		private final int rating;
+		private final long enqueueTime;
+		private final AtomicInteger state = new AtomicInteger(WAITING);
+		
+		private static final int WAITING = 0;
+		private static final int MATCHED = 1;
+		private static final int REMOVED = 2;
+		
+		public Entry(JFGConnection connection, int rating) {
+			this.connection = connection;
+			this.rating = rating;
+			this.enqueueTime = System.nanoTime();
+		}
+	}
+	
+	/**
+	 * The connections of one queue key.
+	 */
+	private class MatchQueue {
+		
+		//new entries are added by any thread
+		private final ConcurrentLinkedQueue<Entry> incoming = new ConcurrentLinkedQueue<Entry>();
+		//the waiting entries are only used by the match task (that runs in one thread at a time)
+		private final List<Entry> waiting = new ArrayList<Entry>();
+		
+		private final AtomicInteger size = new AtomicInteger();
+		private final AtomicBoolean matching = new AtomicBoolean();
+		
+		/**
+		 * Match the waiting entries ordered by their ratings (the entries with the same rating are matched in the order they were added).
+		 */
+		private void match() {
+			Entry entry;
+			while ((entry = incoming.poll()) != null) {
+				waiting.add(entry);
+			}
+			removeCancelled();
+			Collections.sort(waiting, RATING_ORDER);
+			
+			long now = System.nanoTime();
+			List<Entry> remaining = new ArrayList<Entry>(waiting.size());
+			int i = 0;
+			while (i < waiting.size()) {
+				if (i + matchSize <= waiting.size() && isMatch(i, now)) {
+					if (claim(i)) {
+						List<JFGConnection> match = new ArrayList<JFGConnection>(matchSize);
+						for (int j = i; j < i + matchSize; j++) {
+							Entry matched = waiting.get(j);
+							entries.remove(matched.connection, matched);
+							match.add(matched.connection);
+						}
+						size.addAndGet(-matchSize);
+						try {
+							listener.matchFound(match);
+						}
+						catch (RuntimeException re) {
+							JFGServer.printError(re, JFGServer.ERROR_LEVEL_ERROR);
+						}
+					}
+					else {
+						//a connection was removed meanwhile; the others keep waiting
+						for (int j = i; j < i + matchSize; j++) {
+							if (waiting.get(j).state.get() == Entry.WAITING) {
+								remaining.add(waiting.get(j));
+							}
+							else {
+								size.decrementAndGet();
+							}
+						}
+					}
+					i += matchSize;
+				}
+				else {
+					remaining.add(waiting.get(i));
+					i++;
+				}
+			}
+			waiting.clear();
+			waiting.addAll(remaining);
+		}
+		
+		/**
+		 * Mark the entries of a match as matched, so they can't be removed anymore.
+		 * 
+		 * @return
+		 * 		False if an entry was removed (the other entries are waiting again).
+		 */
+		private boolean claim(int first) {
+			for (int j = first; j < first + matchSize; j++) {
+				if (!waiting.get(j).state.compareAndSet(Entry.WAITING, Entry.MATCHED)) {
+					for (int k = first; k < j; k++) {
+						//fails if the entry was removed meanwhile
+						waiting.get(k).state.compareAndSet(Entry.MATCHED, Entry.WAITING);
+					}
+					return false;
+				}
+			}
+			return true;
+		}
+		
+		private boolean isMatch(int first, long now) {
+			long difference = (long) waiting.get(first + matchSize - 1).rating - waiting.get(first).rating;
+			for (int j = first; j < first + matchSize; j++) {
+				if (getRange(waiting.get(j), now) < difference) {
+					return false;
+				}
+			}
+			return true;
+		}
+		
+		private void removeCancelled() {
+			int removed = 0;
+			for (int i = 0; i < waiting.size(); i++) {
+				if (waiting.get(i).state.get() == Entry.REMOVED) {
+					removed++;
+				}
+				else if (removed > 0) {
+					waiting.set(i - removed, waiting.get(i));
+				}
+			}
+			if (removed > 0) {
+				waiting.subList(waiting.size() - removed, waiting.size()).clear();
+				size.addAndGet(-removed);
+			}
+		}
+	}
+	
+	private static final Comparator<Entry> RATING_ORDER = new Comparator<Entry>() {
+		
+		@Override
+		public int compare(Entry e1, Entry e2) {
+			if (e1.rating != e2.rating) {
+				return Integer.compare(e1.rating, e2.rating);
+			}
+			return Long.compare(e1.enqueueTime, e2.enqueueTime);
+		}
+	};
+}
@@ -0,0 +1,237 @@
+package net.jfabricationgames.jfgserver.server;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import net.jfabricationgames.jfgserver.codec.JFGEncodedMessage;
+import net.jfabricationgames.jfgserver.codec.JFGWriteBatch;
+
+/**
+ * The bounded queue of the messages a {@link JFGConnection} sends to it's client.
+ * 
+ * The messages are written by a writer task of the server (one task per connection at a time), so sending a message never waits for the client.
+ * A slow client only fills it's own queue. If the queue is full the server's {@link JFGOverflowPolicy} is used.
+ * 
+ * The writer threads are shared by all connections, so a writer task writes at most {@link #MAX_WRITES_PER_TASK} messages before the task is
+ * executed again (behind the writer tasks of the other connections).
+ */
+public class JFGOutboundQueue {
+	
+	/**
+	 * The maximum number of messages a writer task writes before the other connections' writer tasks are executed.
+	 */
+	public static final int MAX_WRITES_PER_TASK = 64;
+	
+	private final JFGConnection connection;
+	private final Executor writerExecutor;
+	private final int messageLimit;
+	private final long byteLimit;
+	private final JFGOverflowPolicy overflowPolicy;
+	
+	private final ArrayDeque<Entry> entries = new ArrayDeque<Entry>();
+	private final Map<Object, Entry> conflatableEntries = new HashMap<Object, Entry>();
+	private long queuedBytes;
+	private long droppedMessages;
+	private boolean writing;
+	private boolean closed;
+	
+	private final Runnable writer = new Runnable() {
+		
+		@Override
+		public void run() {
+			writeMessages();
+		}
+	};
+	
+	/**
+	 * Create a new queue for a connection.
+	 * 
+	 * @param connection
+	 * 		The connection that writes the messages.
+	 * 
+	 * @param writerExecutor
+	 * 		The executor that runs the writer tasks.
+	 * 
+	 * @param messageLimit
+	 * 		The maximum number of waiting messages or 0 for no limit.
+	 * 
+	 * @param byteLimit
+	 * 		The maximum number of bytes of the waiting messages or 0 for no limit.
+	 * 
+	 * @param overflowPolicy
+	 * 		The policy that is used if a limit is exceeded.
+	 */
+	public JFGOutboundQueue(JFGConnection connection, Executor writerExecutor, int messageLimit, long byteLimit, JFGOverflowPolicy overflowPolicy) {
+		this.connection = connection;
+		this.writerExecutor = writerExecutor;
+		this.messageLimit = messageLimit;
+		this.byteLimit = byteLimit;
+		this.overflowPolicy = overflowPolicy;
+	}
+	
+	/**
+	 * Add a message to the queue and start the writer if it's not running.
+	 * 
+	 * @param message
+	 * 		The encoded message.
+	 * 
+	 * @param size
+	 * 		The number of bytes the message needs on the wire.
+	 * 
+	 * @param conflationKey
+	 * 		The key of a conflatable message or null.
+	 * 
+	 * @return
+	 * 		False if the message was not added because the queue is closed or the connection is closed by the {@link JFGOverflowPolicy#DISCONNECT} policy.
+	 */
+	public boolean offer(JFGEncodedMessage message, int size, Object conflationKey) {
+		boolean startWriter = false;
+		synchronized (this) {
+			if (closed) {
+				return false;
+			}
+			if (overflowPolicy == JFGOverflowPolicy.CONFLATE && conflationKey != null) {
+				Entry waiting = conflatableEntries.get(conflationKey);
+				if (waiting != null) {
+					//replace the waiting message (at it's position in the queue)
+					queuedBytes += size - waiting.size;
+					waiting.message = message;
+					waiting.size = size;
+					droppedMessages++;
+					return true;
+				}
+			}
+			while (!entries.isEmpty() && isFull(size)) {
+				if (overflowPolicy == JFGOverflowPolicy.DISCONNECT) {
+					close();
+					//the connection is not closed directly, because the caller may iterate over the server's connections
+					execute(new Runnable() {
+						
+						@Override
+						public void run() {
+							JFGServer.printError("JFGOutboundQueue: The client doesn't read it's messages. The connection is closed.", JFGServer.ERROR_LEVEL_INFO);
+							connection.endConnection();
+						}
+					});
+					return false;
+				}
+				remove(entries.poll());
+				droppedMessages++;
+			}
+			Entry entry = new Entry(message, size, conflationKey);
+			entries.add(entry);
+			queuedBytes += size;
+			if (conflationKey != null) {
+				conflatableEntries.put(conflationKey, entry);
+			}
+			if (!writing) {
+				writing = true;
+				startWriter = true;
+			}
+		}
+		if (startWriter) {
+			execute(writer);
+		}
+		return true;
+	}
+	
+	private boolean isFull(int size) {
+		return (messageLimit > 0 && entries.size() >= messageLimit) || (byteLimit > 0 && queuedBytes + size > byteLimit);
+	}
+	
+	private void remove(Entry entry) {
+		queuedBytes -= entry.size;
+		if (entry.conflationKey != null && conflatableEntries.get(entry.conflationKey) == entry) {
+			conflatableEntries.remove(entry.conflationKey);
+		}
+	}
+	
+	private void execute(Runnable task) {
+		try {
+			writerExecutor.execute(task);
+		}
+		catch (RejectedExecutionException ree) {
+			//the server was stopped
+			JFGServer.printError(ree, JFGServer.ERROR_LEVEL_DEBUG);
+			close();
+		}
+	}
+	
+	/**
+	 * Write the waiting messages (in the writer task). The messages are written to the socket together when the queue is empty
+	 * or the task has written {@link #MAX_WRITES_PER_TASK} messages.
+	 */
+	private void writeMessages() {
+		boolean continueWriting = false;
+		JFGWriteBatch.begin();
+		try {
+			for (int i = 0; i < MAX_WRITES_PER_TASK; i++) {
+				Entry entry;
+				synchronized (this) {
+					entry = entries.poll();
+					if (entry == null) {
+						writing = false;
+						return;
+					}
+					remove(entry);
+				}
+				connection.writeEncodedMessage(entry.message);
+			}
+			synchronized (this) {
+				continueWriting = !entries.isEmpty();
+				writing = continueWriting;
+			}
+		}
+		finally {
+			JFGWriteBatch.end();
+		}
+		if (continueWriting) {
+			execute(writer);
+		}
+	}
+	
+	/**
+	 * Remove all waiting messages and don't accept new messages.
+	 */
+	public synchronized void close() {
+		closed = true;
+		entries.clear();
+		conflatableEntries.clear();
+		queuedBytes = 0;
+	}
+	
+	/**
+	 * The number of messages that wait to be written.
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+	/**
+	 * The number of bytes of the messages that wait to be written.
+	 */
+	public synchronized long getQueuedBytes() {
+		return queuedBytes;
+	}
+	/**
+	 * The number of messages that were dropped or replaced by the overflow policy.
+	 */
+	public synchronized long getDroppedMessages() {
+		return droppedMessages;
+	}
+	
+	private static class Entry {
+		
+		private JFGEncodedMessage message;
+		private int size;
+		private final Object conflationKey;
+		
+		public Entry(JFGEncodedMessage message, int size, Object conflationKey) {
+			this.message = message;
+			this.size = size;
+			this.conflationKey = conflationKey;
+		}
+	}
+}
@@ -0,0 +1,23 @@
+package net.jfabricationgames.jfgserver.server;
+
+import net.jfabricationgames.jfgserver.client.JFGConflatableMessage;
+
+/**
+ * The policy that is used if the outbound queue of a {@link JFGConnection} is full, because the client reads slower than the messages are sent.
+ */
+public enum JFGOverflowPolicy {
+	
+	/**
+	 * Drop the oldest messages of the queue to make room for the new message.
+	 */
+	DROP_OLDEST,
+	/**
+	 * Replace a waiting message by a newer {@link JFGConflatableMessage} with the same conflation key.
+	 * If the queue is still full the oldest messages are dropped.
+	 */
+	CONFLATE,
+	/**
+	 * Close the connection of the slow client.
+	 */
+	DISCONNECT;
+}
@@ -1,11 +1,23 @@
 package net.jfabricationgames.jfgserver.server;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.ArrayList;
+import java.nio.channels.ServerSocketChannel;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
+import net.jfabricationgames.jfgserver.codec.JFGCoalescingOutputStream;
+import net.jfabricationgames.jfgserver.codec.JFGMessageCodec;
+import net.jfabricationgames.jfgserver.codec.JFGObjectInputStream;
+import net.jfabricationgames.jfgserver.codec.JFGResetPolicy;
+import net.jfabricationgames.jfgserver.codec.JFGWriteBatch;
 import net.jfabricationgames.jfgserver.interpreter.JFGServerInterpreter;
 
 /**
@@ -19,12 +31,40 @@ import net.jfabricationgames.jfgserver.interpreter.JFGServerInterpreter;
 public abstract class JFGServer {
 	
 	protected int port;
-	protected List<JFGConnection> connections;
+	protected JFGConnectionRegistry connections;
 	protected JFGServerInterpreter interpreterFactory;
 	protected JFGConnection connectionFactory;
+	protected JFGMessageCodec messageCodec;
 	
 	private ServerSocket serverSocket;
-	private Thread serverThread;
+	private Thread[] serverThreads;
+	private ExecutorService handshakeExecutor;
+	private final Object connectionLock = new Object();
+	
+	private int backlog = 50;
+	private int acceptorThreads = 1;
+	private int handshakeTimeout = 10000;
+	private int handshakeThreads = 16;
+	private int handshakeQueueSize = 1000;
+	
+	private int eventLoopThreads = 0;
+	private int workerThreads = Runtime.getRuntime().availableProcessors() * 2;
+	private JFGEventLoopGroup eventLoopGroup;
+	
+	protected JFGThreadMode threadMode = JFGThreadMode.PLATFORM;
+	
+	private int outboundQueueLimit = 0;
+	private long outboundQueueByteLimit = 0;
+	private JFGOverflowPolicy overflowPolicy = JFGOverflowPolicy.DROP_OLDEST;
+	private ExecutorService writerExecutor;
+	private int writerThreads = Runtime.getRuntime().availableProcessors() * 2;
+	
+	private boolean autoFlush = false;
+	private int flushThreshold = JFGCoalescingOutputStream.DEFAULT_BUFFER_SIZE;
+	private long flushDelay = 0;
+	
+	private JFGResetPolicy resetPolicy = JFGResetPolicy.NEVER;
+	private boolean descriptorCaching = false;
 	
 	public static final int ERROR_LEVEL_NONE = 1;
 	public static final int ERROR_LEVEL_ERROR = 2;
@@ -42,10 +82,26 @@ public abstract class JFGServer {
 	 */
 	public JFGServer(int port) {
 		this.port = port;
-		connections = new ArrayList<JFGConnection>();
+		//the broadcasts iterate over a snapshot, so connections can be removed (e.g. by a closed outbound queue) while a broadcast is sent
+		connections = new JFGConnectionRegistry();
 		connectionFactory = new JFGConnection();//use JFGConnection as default.
 		chooseInterpreter();
 	}
+	/**
+	 * Create a new JFGServer listening on a port, that sends all messages as frames encoded by a {@link JFGMessageCodec}.
+	 * 
+	 * The clients need to use the same codec.
+	 * 
+	 * @param port
+	 * 		The port to listen to.
+	 * 
+	 * @param messageCodec
+	 * 		The codec used to encode the messages or null to use object streams.
+	 */
+	public JFGServer(int port, JFGMessageCodec messageCodec) {
+		this(port);
+		this.messageCodec = messageCodec;
+	}
 	
 	/**
 	 * Create a new ServerSocket on the port of this server.
@@ -57,48 +113,130 @@ public abstract class JFGServer {
 	 * 
 	 * The interpreter that is added is created as instance of the interpreterFactory.
 	 * 
+	 * If the number of event loop threads is set (see {@link #setEventLoopThreads(int)}) the server uses the non-blocking engine.
+	 * Otherwise every connection reads the client's messages in it's own thread.
+	 * 
+	 * The acceptor threads only accept the sockets. Creating the streams (and waiting for the client's stream header) is done in a separate
+	 * handshake stage, so a slow client can't stall the login of other clients. The handshake stage uses a bounded number of threads and waiting sockets;
+	 * if both are exhausted (e.g. by a flood of clients that never send their header) new sockets are closed directly.
+	 * 
 	 * @throws IOException
 	 * 		An IOException is thrown when the ServerSocket couldn't be created for some reason.
 	 */
 	public void startServer() throws IOException {
-		serverSocket = new ServerSocket(port);
-		serverThread = new Thread(new Runnable() {
-			
-			@Override
-			public void run() {
-				try {
-					while (true) {
+		if (eventLoopThreads > 0) {
+			eventLoopGroup = new JFGEventLoopGroup(eventLoopThreads, workerThreads);
+			ServerSocketChannel serverChannel = ServerSocketChannel.open();
+			serverChannel.bind(new InetSocketAddress(port), backlog);
+			serverSocket = serverChannel.socket();
+		}
+		else {
+			serverSocket = new ServerSocket(port, backlog);
+		}
+		handshakeExecutor = new ThreadPoolExecutor(handshakeThreads, handshakeThreads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(handshakeQueueSize),
+				new ThreadFactory() {
+					
+					@Override
+					public Thread newThread(Runnable task) {
+						return threadMode.newThread(task);
+					}
+				});
+		//idle handshake threads are stopped, so the stage needs no threads while no clients connect
+		((ThreadPoolExecutor) handshakeExecutor).allowCoreThreadTimeOut(true);
+		serverThreads = new Thread[acceptorThreads];
+		for (int i = 0; i < acceptorThreads; i++) {
+			serverThreads[i] = new Thread(new Runnable() {
+				
+				@Override
+				public void run() {
+					while (!serverSocket.isClosed() && !Thread.currentThread().isInterrupted()) {
 						try {
-							Socket connectionSocket = serverSocket.accept();
-							JFGConnection connection = connectionFactory.getInstance(JFGServer.this, connectionSocket);
-							addInterpreter(connection);
-							addConnection(connection);
+							final Socket connectionSocket = serverSocket.accept();
+							try {
+								handshakeExecutor.execute(new Runnable() {
+									
+									@Override
+									public void run() {
+										handshake(connectionSocket);
+									}
+								});
+							}
+							catch (RejectedExecutionException ree) {
+								//too many clients are waiting for the handshake (or the server was stopped)
+								JFGServer.printError(ree, JFGServer.ERROR_LEVEL_INFO);
+								connectionSocket.close();
+							}
 						}
 						catch (IOException ioe) {
-							JFGServer.printError(ioe, JFGServer.ERROR_LEVEL_ERROR);
+							if (!serverSocket.isClosed()) {
+								JFGServer.printError(ioe, JFGServer.ERROR_LEVEL_ERROR);
+							}
 						}
-						Thread.sleep(10);
 					}
 				}
-				catch (InterruptedException ie) {
-					JFGServer.printError(ie, JFGServer.ERROR_LEVEL_ALL);
-				}
+			});
+			serverThreads[i].start();
+		}
+	}
+	
+	/**
+	 * Create the connection of a new accepted socket (executed in the handshake stage, not in the acceptor thread).
+	 * 
+	 * The client needs to send it's stream header within the handshake timeout. Otherwise the socket is closed.
+	 * 
+	 * @param connectionSocket
+	 * 		The accepted socket.
+	 */
+	protected void handshake(Socket connectionSocket) {
+		try {
+			if (connectionSocket.getChannel() != null) {
+				connectionSocket.getChannel().configureBlocking(false);
+			}
+			connectionSocket.setSoTimeout(handshakeTimeout);
+			JFGConnection connection = connectionFactory.getInstance(JFGServer.this, connectionSocket);
+			connectionSocket.setSoTimeout(0);
+			//the handshakes run in parallel, but the connections are added one by one (like they were added by a single acceptor thread)
+			synchronized (connectionLock) {
+				addInterpreter(connection);
+				addConnection(connection);
+			}
+		}
+		catch (IOException ioe) {
+			//the client didn't complete the handshake (in time)
+			JFGServer.printError(ioe, JFGServer.ERROR_LEVEL_INFO);
+			try {
+				connectionSocket.close();
+			}
+			catch (IOException ioe2) {
+				JFGServer.printError(ioe2, JFGServer.ERROR_LEVEL_DEBUG);
 			}
-		});
-		serverThread.start();
+		}
 	}
 	
 	/**
 	 * Stop the execution of the server.
 	 */
 	public void stopServer() {
-		serverThread.interrupt();
+		for (Thread serverThread : serverThreads) {
+			serverThread.interrupt();
+		}
+		handshakeExecutor.shutdown();
+		synchronized (connectionLock) {
+			if (writerExecutor != null) {
+				writerExecutor.shutdown();
+				writerExecutor = null;
+			}
+		}
 		try {
 			serverSocket.close();
 		}
 		catch (IOException ioe) {
 			JFGServer.printError(ioe, JFGServer.ERROR_LEVEL_ERROR);
 		}
+		if (eventLoopGroup != null) {
+			eventLoopGroup.shutdown();
+			eventLoopGroup = null;
+		}
 	}
 	
 	/**
@@ -148,8 +286,26 @@ public abstract class JFGServer {
 		connections.remove(connection);
 	}
 	
+	/**
+	 * Get the known connections.
+	 * 
+	 * @return
+	 * 		An unmodifiable snapshot of the connections (ordered by their ids).
+	 */
 	public List<JFGConnection> getConnections() {
-		return connections;
+		return connections.getSnapshot();
+	}
+	/**
+	 * Find a known connection by it's id (see {@link JFGConnection#getConnectionId()}).
+	 * 
+	 * @param id
+	 * 		The id of the connection.
+	 * 
+	 * @return
+	 * 		The connection or null if no known connection has this id.
+	 */
+	public JFGConnection getConnection(int id) {
+		return connections.get(id);
 	}
 	/**
 	 * Close the connection and remove it from the list of known connections.
@@ -198,6 +354,331 @@ public abstract class JFGServer {
 		JFGServer.errorLevel = errorLevel;
 	}
 	
+	public JFGMessageCodec getMessageCodec() {
+		return messageCodec;
+	}
+	/**
+	 * Set the codec used to encode the messages of all connections that are created afterwards (should be set before the server is started).
+	 * 
+	 * If a codec is set, every message is sent as a length-prefixed frame. Otherwise the messages are written to an object stream (default).
+	 * The clients need to use the same codec.
+	 * 
+	 * @param messageCodec
+	 * 		The new codec or null to use object streams.
+	 */
+	public void setMessageCodec(JFGMessageCodec messageCodec) {
+		this.messageCodec = messageCodec;
+	}
+	
+	public int getBacklog() {
+		return backlog;
+	}
+	/**
+	 * Set the maximum number of pending connections that the operating system queues before they are accepted (before the server is started).
+	 * 
+	 * @param backlog
+	 * 		The backlog of the server socket (default is 50).
+	 */
+	public void setBacklog(int backlog) {
+		this.backlog = backlog;
+	}
+	
+	public int getAcceptorThreads() {
+		return acceptorThreads;
+	}
+	/**
+	 * Set the number of threads that accept new connections (before the server is started).
+	 * 
+	 * @param acceptorThreads
+	 * 		The number of acceptor threads (default is 1).
+	 */
+	public void setAcceptorThreads(int acceptorThreads) {
+		if (acceptorThreads <= 0) {
+			throw new IllegalArgumentException("The server needs at least one acceptor thread.");
+		}
+		this.acceptorThreads = acceptorThreads;
+	}
+	
+	public int getHandshakeTimeout() {
+		return handshakeTimeout;
+	}
+	/**
+	 * Set the time a new client has to send it's stream header before the socket is closed.
+	 * 
+	 * @param handshakeTimeout
+	 * 		The timeout in milliseconds (default is 10000) or 0 to wait without a timeout.
+	 */
+	public void setHandshakeTimeout(int handshakeTimeout) {
+		this.handshakeTimeout = handshakeTimeout;
+	}
+	
+	public int getHandshakeThreads() {
+		return handshakeThreads;
+	}
+	/**
+	 * Set the maximum number of threads that create the streams of new clients at the same time (before the server is started).
+	 * 
+	 * @param handshakeThreads
+	 * 		The number of handshake threads (default is 16).
+	 */
+	public void setHandshakeThreads(int handshakeThreads) {
+		if (handshakeThreads <= 0) {
+			throw new IllegalArgumentException("The server needs at least one handshake thread.");
+		}
+		this.handshakeThreads = handshakeThreads;
+	}
+	
+	public int getHandshakeQueueSize() {
+		return handshakeQueueSize;
+	}
+	/**
+	 * Set the maximum number of accepted sockets that wait for a handshake thread (before the server is started). Further sockets are closed directly.
+	 * 
+	 * @param handshakeQueueSize
+	 * 		The size of the handshake queue (default is 1000).
+	 */
+	public void setHandshakeQueueSize(int handshakeQueueSize) {
+		if (handshakeQueueSize <= 0) {
+			throw new IllegalArgumentException("The handshake queue needs a size of at least 1.");
+		}
+		this.handshakeQueueSize = handshakeQueueSize;
+	}
+	
+	/**
+	 * Get the event loops of the non-blocking engine.
+	 * 
+	 * @return
+	 * 		The {@link JFGEventLoopGroup} of the server or null if the server doesn't use the non-blocking engine or is not started.
+	 */
+	public JFGEventLoopGroup getEventLoopGroup() {
+		return eventLoopGroup;
+	}
+	
+	public int getEventLoopThreads() {
+		return eventLoopThreads;
+	}
+	/**
+	 * Choose the engine of the server by setting the number of event loop threads (before the server is started).
+	 * 
+	 * If the number is greater than 0 the connections are handled by a non-blocking {@link JFGEventLoopGroup} instead of a thread per connection.
+	 * The interpreters and connections are used just like in the default engine.
+	 * 
+	 * @param eventLoopThreads
+	 * 		The number of event loop threads or 0 to use a thread per connection (default).
+	 */
+	public void setEventLoopThreads(int eventLoopThreads) {
+		this.eventLoopThreads = eventLoopThreads;
+	}
+	
+	public int getWorkerThreads() {
+		return workerThreads;
+	}
+	/**
+	 * Set the number of worker threads that read the messages and call the interpreters in the non-blocking engine.
+	 * 
+	 * @param workerThreads
+	 * 		The number of worker threads (default is twice the number of processors).
+	 */
+	public void setWorkerThreads(int workerThreads) {
+		this.workerThreads = workerThreads;
+	}
+	
+	public JFGThreadMode getThreadMode() {
+		return threadMode;
+	}
+	/**
+	 * Set the kind of threads that are used for the connections read loops and the timers of the secured connections.
+	 * 
+	 * Using {@link JFGThreadMode#VIRTUAL} every connection only costs a lightweight task while it waits for messages.
+	 * The mode is used for all connections that are started after it was set.
+	 * 
+	 * @param threadMode
+	 * 		The new thread mode (default is {@link JFGThreadMode#PLATFORM}).
+	 */
+	public void setThreadMode(JFGThreadMode threadMode) {
+		this.threadMode = threadMode;
+	}
+	
+	/**
+	 * Create the outbound queue of a new connection.
+	 * 
+	 * @param connection
+	 * 		The new connection.
+	 * 
+	 * @return
+	 * 		The queue of the connection or null if no outbound queue limit is set (the messages are written directly).
+	 */
+	protected JFGOutboundQueue createOutboundQueue(JFGConnection connection) {
+		if (outboundQueueLimit <= 0 && outboundQueueByteLimit <= 0) {
+			return null;
+		}
+		return new JFGOutboundQueue(connection, getWriterExecutor(), outboundQueueLimit, outboundQueueByteLimit, overflowPolicy);
+	}
+	/**
+	 * Get the executor that runs the writer tasks of the outbound queues (created on the first call).
+	 * 
+	 * The executor uses at most {@link #getWriterThreads()} threads. The waiting tasks are bounded by the number of connections, because every queue runs only one writer task at a time.
+	 */
+	private ExecutorService getWriterExecutor() {
+		synchronized (connectionLock) {
+			if (writerExecutor == null) {
+				ThreadPoolExecutor executor = new ThreadPoolExecutor(writerThreads, writerThreads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+						new ThreadFactory() {
+							
+							@Override
+							public Thread newThread(Runnable task) {
+								return threadMode.newThread(task);
+							}
+						});
+				executor.allowCoreThreadTimeOut(true);
+				writerExecutor = executor;
+			}
+			return writerExecutor;
+		}
+	}
+	
+	public int getWriterThreads() {
+		return writerThreads;
+	}
+	/**
+	 * Set the maximum number of threads that write the messages of the outbound queues (before the first connection with an outbound queue is created).
+	 * 
+	 * The writers of the non-blocking engine never wait for a slow client (unless it's {@link JFGChannelOutputStream} is full).
+	 * Connections with a thread per connection write to the socket directly, so a client that doesn't read can hold a writer thread.
+	 * 
+	 * @param writerThreads
+	 * 		The number of writer threads (default is twice the number of processors).
+	 */
+	public void setWriterThreads(int writerThreads) {
+		if (writerThreads <= 0) {
+			throw new IllegalArgumentException("The server needs at least one writer thread.");
+		}
+		this.writerThreads = writerThreads;
+	}
+	
+	public int getOutboundQueueLimit() {
+		return outboundQueueLimit;
+	}
+	/**
+	 * Set the maximum number of messages that wait in the outbound queue of a connection.
+	 * 
+	 * If a limit is set every connection sends it's messages using an outbound queue. The messages are written by a writer task,
+	 * so a client that reads slowly doesn't slow down the thread that sends the messages (e.g. a broadcast to a group).
+	 * If the queue is full the overflow policy is used (see {@link #setOverflowPolicy(JFGOverflowPolicy)}).
+	 * 
+	 * The limits are used for all connections that are created after they were set.
+	 * 
+	 * @param outboundQueueLimit
+	 * 		The maximum number of waiting messages or 0 for no limit (default).
+	 */
+	public void setOutboundQueueLimit(int outboundQueueLimit) {
+		this.outboundQueueLimit = outboundQueueLimit;
+	}
+	
+	public long getOutboundQueueByteLimit() {
+		return outboundQueueByteLimit;
+	}
+	/**
+	 * Set the maximum number of bytes of the messages that wait in the outbound queue of a connection (see {@link #setOutboundQueueLimit(int)}).
+	 * 
+	 * @param outboundQueueByteLimit
+	 * 		The maximum number of bytes or 0 for no limit (default).
+	 */
+	public void setOutboundQueueByteLimit(long outboundQueueByteLimit) {
+		this.outboundQueueByteLimit = outboundQueueByteLimit;
+	}
+	
+	public JFGOverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
+	/**
+	 * Set the policy that is used if the outbound queue of a connection is full.
+	 * 
+	 * @param overflowPolicy
+	 * 		The overflow policy (default is {@link JFGOverflowPolicy#DROP_OLDEST}).
+	 */
+	public void setOverflowPolicy(JFGOverflowPolicy overflowPolicy) {
+		this.overflowPolicy = overflowPolicy;
+	}
+	
+	public boolean isAutoFlush() {
+		return autoFlush;
+	}
+	/**
+	 * Enable the auto flush mode for all connections that are created afterwards.
+	 * 
+	 * In the auto flush mode the messages are not written to the socket one by one, but collected and written together when the interpreter
+	 * has handled the received message, the flush threshold is reached or the flush delay is exceeded (whichever comes first).
+	 * See {@link JFGCoalescingOutputStream} and {@link JFGWriteBatch}.
+	 * 
+	 * @param autoFlush
+	 * 		True to collect the messages (default is false).
+	 */
+	public void setAutoFlush(boolean autoFlush) {
+		this.autoFlush = autoFlush;
+	}
+	
+	public int getFlushThreshold() {
+		return flushThreshold;
+	}
+	/**
+	 * Set the number of collected bytes that are written directly (in the auto flush mode or in a {@link JFGWriteBatch}).
+	 * 
+	 * @param flushThreshold
+	 * 		The threshold in bytes (default is {@link JFGCoalescingOutputStream#DEFAULT_BUFFER_SIZE}).
+	 */
+	public void setFlushThreshold(int flushThreshold) {
+		this.flushThreshold = flushThreshold;
+	}
+	
+	public long getFlushDelay() {
+		return flushDelay;
+	}
+	/**
+	 * Set the maximum time a message is collected in the auto flush mode, if it's not sent by an interpreter (e.g. a message sent by a game loop).
+	 * 
+	 * @param flushDelay
+	 * 		The delay in microseconds or 0 to write messages that are not sent in a {@link JFGWriteBatch} directly (default).
+	 */
+	public void setFlushDelay(long flushDelay) {
+		this.flushDelay = flushDelay;
+	}
+	
+	public JFGResetPolicy getResetPolicy() {
+		return resetPolicy;
+	}
+	/**
+	 * Set the policy that decides when the object streams of the connections are reset (for all connections that are created afterwards).
+	 * 
+	 * Without a reset the object streams keep every sent object in memory. A reset clears the streams (the class descriptors are only kept if the descriptor caching is enabled).
+	 * Connections that use a {@link JFGMessageCodec} don't need to be reset, because every frame is independent.
+	 * 
+	 * @param resetPolicy
+	 * 		The reset policy (default is {@link JFGResetPolicy#NEVER}).
+	 */
+	public void setResetPolicy(JFGResetPolicy resetPolicy) {
+		if (resetPolicy == null) {
+			throw new IllegalArgumentException("The reset policy mustn't be null.");
+		}
+		this.resetPolicy = resetPolicy;
+	}
+	
+	public boolean isDescriptorCaching() {
+		return descriptorCaching;
+	}
+	/**
+	 * Enable the caching of the class descriptors in the object streams of the connections (for all connections that are created afterwards).
+	 * 
+	 * With the caching a class descriptor is sent only once, so a reset costs (almost) no bandwidth.
+	 * The clients have to read the streams with a {@link JFGObjectInputStream} then (like the JFGClient does), because the format is no standard serialization format.
+	 * 
+	 * @param descriptorCaching
+	 * 		True to cache the class descriptors (default is false).
+	 */
+	public void setDescriptorCaching(boolean descriptorCaching) {
+		this.descriptorCaching = descriptorCaching;
+	}
+	
 	public JFGServerInterpreter getInterpreterFactory() {
 		return interpreterFactory;
 	}
@@ -0,0 +1,74 @@
+package net.jfabricationgames.jfgserver.server;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * The kind of threads that are used for the blocking read loops of the {@link JFGConnection}s and clients.
+ *
+ * Virtual threads keep the blocking programming model but only cost as much as a small task while they wait for a message.
+ * They are only available on a Java runtime that supports them (Java 21 or newer). On older runtimes platform threads are used instead.
+ */
+public enum JFGThreadMode {
+
+	/**
+	 * Use a normal (platform) thread for every read loop.
+	 */
+	PLATFORM,
+	/**
+	 * Use a virtual thread for every read loop (if supported by the runtime).
+	 */
+	VIRTUAL;
+
+	private static final MethodHandle virtualThreadFactory = findVirtualThreadFactory();
+
+	/**
+	 * Create a new (not started) thread of this mode.
+	 *
+	 * @param task
+	 * 		The task that is executed by the thread.
+	 *
+	 * @return
+	 * 		The new thread.
+	 */
+	public Thread newThread(Runnable task) {
+		if (this == VIRTUAL && virtualThreadFactory != null) {
+			try {
+				return (Thread) virtualThreadFactory.invoke(task);
+			}
+			catch (Throwable t) {
+				JFGServer.printError("JFGThreadMode: Couldn't create a virtual thread. Using a platform thread instead. (" + t + ")", JFGServer.ERROR_LEVEL_ERROR);
+			}
+		}
+		return new Thread(task);
+	}
+
+	/**
+	 * Check whether the runtime supports virtual threads.
+	 *
+	 * @return
+	 * 		True if {@link #VIRTUAL} creates virtual threads.
+	 */
+	public static boolean isVirtualThreadSupported() {
+		return virtualThreadFactory != null;
+	}
+
+	/**
+	 * Find the virtual thread builder (Thread.ofVirtual().unstarted(Runnable)) using reflection, so the library still runs on older runtimes.
+	 */
+	private static MethodHandle findVirtualThreadFactory() {
+		try {
+			MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			Class<?> virtualBuilderClass = Class.forName("java.lang.Thread$Builder$OfVirtual");
+			Object builder = lookup.findStatic(Thread.class, "ofVirtual", MethodType.methodType(virtualBuilderClass)).invoke();
+			MethodHandle unstarted = lookup.findVirtual(builderClass, "unstarted", MethodType.methodType(Thread.class, Runnable.class));
+			return unstarted.bindTo(builder);
+		}
+		catch (Throwable t) {
+			//virtual threads are not supported by this runtime
+			return null;
+		}
+	}
+}